@@ -1,10 +1,19 @@
 package app;
 
+import elastic.ElasticClient;
 import rabbitmq.Consumer;
+import rabbitmq.FlowControl;
+import rabbitmq.Quarantine;
+import rabbitmq.RabbitMQConfigConstants;
+import rabbitmq.Spool;
+import rabbitmq.Transport;
 import utils.ConfigManager;
 import utils.GlobalLogger;
 import utils.Terminator;
+import watcher.Backfill;
 import watcher.DirectoryWatcher;
+import watcher.ParseStatus;
+import watcher.WatcherScheduler;
 
 import java.io.*;
 import java.nio.file.*;
@@ -19,7 +28,6 @@ public class App {
 
     private static final int EXIT = 0;
     private static final int CARRY_ON = 1;
-    private static final int THREAD_POOL_SIZE = 50;
     private static final LinkedList<Consumer> CONSUMERS = new LinkedList<>();
     private static final Terminator terminator = new Terminator();
 
@@ -49,6 +57,15 @@ public class App {
      */
     private static void init() {
         terminator.start();
+        WatcherScheduler.WATCHER_SCHEDULER.start();
+
+        // Replays what was spooled before the last shutdown, and takes what the transport can not
+        if (RabbitMQConfigConstants.SPOOL_ENABLED) {
+            Spool.SPOOL.start();
+        }
+
+        // Throttles the consumers and the watchers when Elasticsearch falls behind
+        FlowControl.FLOW_CONTROL.start();
     }
 
     /**
@@ -65,6 +82,8 @@ public class App {
             System.out.println("2. Show listened log files");
             System.out.println("3. Toggle debugging");
             System.out.println("4. Set the maximum wait time to be used when the program closes");
+            System.out.println("5. Backfill archived log files");
+            System.out.println("6. Show parsed and rejected line counts");
             System.out.println("99. Shut Down The Program And Exit");
             System.out.print("-> ");
             try {
@@ -143,6 +162,21 @@ public class App {
                 terminator.setMaxTimeoutSeconds(maxTimeout);
                 System.out.println("The time to wait before closing the program is set to " + maxTimeout + " seconds.");
             }
+            case 5 -> {
+                Scanner scanner = new Scanner(System.in);
+
+                System.out.print("Enter a directory or a glob of archived log files (e.g. /var/log/dns/*.log)\n-> ");
+                try {
+                    Backfill.BACKFILL.start(scanner.nextLine());
+                } catch (NoSuchElementException e) {
+                    System.out.println("Please enter a valid path next time.");
+                }
+            }
+            case 6 -> {
+                for (ParseStatus parseStatus : ParseStatus.values()) {
+                    System.out.println(parseStatus + ": " + Quarantine.QUARANTINE.getCount(parseStatus));
+                }
+            }
             case 99 -> {
                 return EXIT;
             }
@@ -153,12 +187,14 @@ public class App {
     }
 
     /**
-     * Creates a thread pool full of workers (Consumer). These workers listen the rabbitmq queue and when there is a
-     * data in the queue they take the data, enrich it sent it to the elastic search.
+     * Creates CONSUMER_COUNT workers (Consumer). These workers listen the transport and when there is a data in the
+     * queue they take the data, enrich it and send it to the elastic search without waiting for the response, so a
+     * handful of them keep the cluster busy. The workers are spread over the partitions round-robin, every partition
+     * gets at least one.
      */
     private static void startListeningQueue() {
-        for (int i = 0; i < THREAD_POOL_SIZE; i++) {
-            Consumer consumer = new Consumer();
+        for (int i = 0; i < Math.max(RabbitMQConfigConstants.CONSUMER_COUNT, RabbitMQConfigConstants.PARTITION_COUNT); i++) {
+            Consumer consumer = new Consumer(i % RabbitMQConfigConstants.PARTITION_COUNT);
             CONSUMERS.add(consumer);
             consumer.startReading();
         }
@@ -197,12 +233,16 @@ public class App {
     /**
      * If there are Watchers running when the program closes, the program saves the status of these Watchers in the
      * config file. The next time the program runs, it first checks the config file and starts the Watchers from where
-     * they left off, if there are any.
+     * they left off, if there are any. Each Watcher is woken up once to read what was written while the program was
+     * closed.
      */
     private static void startPreviouslyRunningWatchers() {
-        for (String[] watchersStatus : ConfigManager.CONFIG_MANAGER.getWatchersStatus()) {
-            Watcher watcher = new Watcher(watchersStatus[0], Long.parseLong(watchersStatus[1]));
+        for (ConfigManager.WatcherStatus watcherStatus : ConfigManager.CONFIG_MANAGER.getWatchersStatus()) {
+            Watcher watcher = watcherStatus.isLineCount()
+                    ? Watcher.fromLineCount(watcherStatus.path(), watcherStatus.offset())
+                    : new Watcher(watcherStatus.path(), watcherStatus.offset(), watcherStatus.identity());
             DirectoryWatcher.WATCHERS.put(watcher.getPath(), watcher);
+            watcher.wakeUp();
         }
     }
 
@@ -239,7 +279,28 @@ public class App {
         // Then stop each directory watcher
         DirectoryWatcher.DIRECTORY_WATCHERS.forEach(DirectoryWatcher::stop);
 
-        // Then stop each consumer (They listen RabbitMQ queue and write to ElasticSearch)
+        // Then stop the scheduler that runs the watchers
+        WatcherScheduler.WATCHER_SCHEDULER.stop();
+
+        // Then stop the backfill, the unfinished ranges will be sent on the next backfill
+        Backfill.BACKFILL.stop();
+
+        // Then stop replaying the spool and force what has been spooled to the disk
+        Spool.SPOOL.close();
+
+        // Then stop each consumer (They listen the transport and write to ElasticSearch)
         CONSUMERS.forEach(Consumer::close);
+
+        // Then close the ElasticSearch client, after sending what the consumers have left
+        ElasticClient.elasticClient.close();
+
+        // Then close the transport, after waiting for the last messages to be confirmed
+        Transport.TRANSPORT.close();
+
+        // Then close the file of the lines the consumers rejected
+        Quarantine.QUARANTINE.close();
+
+        // Finally write the statuses and the backfill ranges confirmed last to the config file
+        ConfigManager.CONFIG_MANAGER.flush();
     }
 }
@@ -0,0 +1,13 @@
+package elastic;
+
+/**
+ * How the ids of the documents in Elasticsearch are chosen.
+ */
+public enum DocumentIdMode {
+
+    // A hash of the source file and the byte offset of the line, so an entry that is sent again replaces its document
+    HASHED,
+
+    // Elasticsearch generates the ids, which is the cheapest for append-only data that is never sent twice
+    AUTO
+}
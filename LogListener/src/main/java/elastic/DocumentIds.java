@@ -0,0 +1,125 @@
+package elastic;
+
+import java.util.Base64;
+
+/**
+ * Derives the id of a document from where its line was read: the source file and the byte offset of the line. The
+ * same line always gets the same id, so a line that is delivered or read again overwrites its document instead of
+ * creating a duplicate.
+ * <p>
+ * The id is the 128-bit MurmurHash3 (x64 variant) of the UTF-8 bytes of the source followed by the offset as 8
+ * little-endian bytes, written in URL-safe Base64 without padding.
+ */
+public final class DocumentIds {
+
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private DocumentIds() {
+    }
+
+    /**
+     * @param source A buffer holding the UTF-8 bytes of the source key of the line.
+     * @param start  Index of the first byte of the source key in the buffer.
+     * @param length Number of bytes in the source key.
+     * @param offset The byte offset of the line in the source.
+     * @return The id of the document of the line, 22 characters long.
+     */
+    public static String of(byte[] source, int start, int length, long offset) {
+        long h1 = 0;
+        long h2 = 0;
+        int totalLength = length + Long.BYTES;
+
+        // Full 16 byte blocks of the source
+        int blockEnd = start + (length & ~15);
+        for (int i = start; i < blockEnd; i += 16) {
+            h1 ^= mixK1(readLong(source, i, 8));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52DCE729;
+
+            h2 ^= mixK2(readLong(source, i + 8, 8));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+
+        // The rest of the source followed by the offset, 8 to 23 bytes
+        byte[] tail = new byte[32];
+        int tailLength = start + length - blockEnd;
+        System.arraycopy(source, blockEnd, tail, 0, tailLength);
+        for (int i = 0; i < Long.BYTES; i++) {
+            tail[tailLength + i] = (byte) (offset >>> (8 * i));
+        }
+        tailLength += Long.BYTES;
+
+        if (tailLength >= 16) {
+            h1 ^= mixK1(readLong(tail, 0, 8));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52DCE729;
+
+            h2 ^= mixK2(readLong(tail, 8, 8));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495AB5;
+
+            System.arraycopy(tail, 16, tail, 0, tailLength - 16);
+            tailLength -= 16;
+        }
+
+        if (tailLength > 8) {
+            h2 ^= mixK2(readLong(tail, 8, tailLength - 8));
+        }
+
+        if (tailLength > 0) {
+            h1 ^= mixK1(readLong(tail, 0, Math.min(tailLength, 8)));
+        }
+
+        h1 ^= totalLength;
+        h2 ^= totalLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] hash = new byte[16];
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash[i] = (byte) (h1 >>> (8 * i));
+            hash[Long.BYTES + i] = (byte) (h2 >>> (8 * i));
+        }
+
+        return ENCODER.encodeToString(hash);
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    /**
+     * Reads up to 8 bytes as a little-endian long.
+     */
+    private static long readLong(byte[] buffer, int position, int length) {
+        long value = 0;
+
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (buffer[position + i] & 0xFF);
+        }
+
+        return value;
+    }
+}
@@ -1,16 +1,35 @@
 package elastic;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch.core.IndexResponse;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester;
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
+import co.elastic.clients.util.BinaryData;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
+import rabbitmq.FlowControl;
 import utils.GlobalLogger;
 import watcher.LogEntry;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.Level;
 
@@ -19,12 +38,38 @@ public class ElasticClient {
     private final RestClient restClient;
     private final ElasticsearchTransport elasticsearchTransport;
     private final ElasticsearchClient elasticsearchClient;
+    private final ElasticsearchAsyncClient elasticsearchAsyncClient;
+
+    // Null unless the INDEX_MODE is BULK
+    private final BulkIngester<PendingDocument> bulkIngester;
+
+    // Bounds the index requests in flight when the INDEX_MODE is ASYNC
+    private final Semaphore inFlightRequests;
+
+    // Sends the failed entries again after a backoff
+    private final ScheduledExecutorService retryScheduler;
+
+    // Start time of every bulk request in flight by its execution id, to record its latency
+    private final Map<Long, Long> bulkStartTimes;
+
+    // Open once the IndexTemplate has been installed or rejected, entries are not sent before that
+    private final CountDownLatch indexTemplateSettled;
+
+    private volatile boolean isClosed;
+
     public static final ElasticClient elasticClient = new ElasticClient();
 
     /**
      * This constructor initializes an instance of the ElasticClient class, which serves as a wrapper for interacting
      * with Elasticsearch. It sets up the necessary Elasticsearch client components to establish a connection to the
      * Elasticsearch cluster specified in the ElasticConstants.SERVER_URL.
+     * <p>
+     * In the BULK INDEX_MODE, entries are collected by a BulkIngester and sent in bulk requests. A bulk request is
+     * sent once it holds BULK_MAX_OPERATIONS entries or BULK_MAX_BYTES bytes, or BULK_FLUSH_INTERVAL_MILLIS after the
+     * last one, and at most BULK_MAX_CONCURRENT_REQUESTS requests are in flight at a time.
+     * <p>
+     * If INSTALL_INDEX_TEMPLATE is set, the IndexTemplate is installed before any entry is sent, so LOG_TABLE_NAME is
+     * created as a data stream with explicit mappings on the first write. Entries wait in send until it is installed.
      */
     private ElasticClient() {
         // Create the low-level client
@@ -35,41 +80,326 @@ public class ElasticClient {
         // Create the transport with jackson mapper
         elasticsearchTransport = new RestClientTransport(restClient, new JacksonJsonpMapper());
 
-        // Create the api client
+        // Create the api clients, they share the transport
         elasticsearchClient = new ElasticsearchClient(elasticsearchTransport);
+        elasticsearchAsyncClient = new ElasticsearchAsyncClient(elasticsearchTransport);
+
+        bulkStartTimes = new ConcurrentHashMap<>();
+        indexTemplateSettled = new CountDownLatch(ElasticConstants.INSTALL_INDEX_TEMPLATE ? 1 : 0);
+        inFlightRequests = new Semaphore(ElasticConstants.MAX_IN_FLIGHT_REQUESTS);
+
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (ElasticConstants.INDEX_MODE == IndexMode.BULK) {
+            bulkIngester = BulkIngester.of(b -> b
+                    .client(elasticsearchAsyncClient)
+                    .maxOperations(ElasticConstants.BULK_MAX_OPERATIONS)
+                    .maxSize(ElasticConstants.BULK_MAX_BYTES)
+                    .maxConcurrentRequests(ElasticConstants.BULK_MAX_CONCURRENT_REQUESTS)
+                    .flushInterval(ElasticConstants.BULK_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+                    .listener(new BulkResultListener()));
+        } else {
+            bulkIngester = null;
+        }
+
+        if (ElasticConstants.INSTALL_INDEX_TEMPLATE) {
+            installIndexTemplate();
+        }
+    }
+
+    /**
+     * Installs the IndexTemplate, trying again after MAX_RETRY_BACKOFF_MILLIS while Elasticsearch can not be reached.
+     * A template Elasticsearch rejects is not installed again, LOG_TABLE_NAME is then created with dynamic mappings
+     * rather than holding back the entries forever.
+     */
+    private void installIndexTemplate() {
+        try {
+            IndexTemplate.install(elasticsearchClient);
+            indexTemplateSettled.countDown();
+        } catch (ElasticsearchException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "ElasticSearch rejected the index template of " + ElasticConstants.LOG_TABLE_NAME + ", entries are written without it:", e);
+            indexTemplateSettled.countDown();
+        } catch (IOException | RuntimeException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to install the index template of " + ElasticConstants.LOG_TABLE_NAME + ", trying again in " + ElasticConstants.MAX_RETRY_BACKOFF_MILLIS + " milliseconds:", e);
+
+            if (!isClosed) {
+                retryScheduler.schedule(this::installIndexTemplate, ElasticConstants.MAX_RETRY_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     /**
      * This method is responsible for sending a log entry to Elasticsearch for indexing. It takes a LogEntry object
-     * representing a log event as a parameter. If the indexing operation is successful, the method returns an
-     * IndexResponse object. Or else, it returns null.
+     * representing a log event as a parameter.
+     * <p>
+     * In the ASYNC and BULK INDEX_MODEs the entry is serialized right away, so the entry can be reused as soon as this
+     * method returns, and sent without waiting for the response. The method only waits while MAX_IN_FLIGHT_REQUESTS
+     * index requests or BULK_MAX_CONCURRENT_REQUESTS bulk requests are in flight. Entries that fail with a temporary
+     * error are retried up to MAX_RETRIES times, entries of requests that fail as a whole are retried until they
+     * succeed. In the BLOCKING INDEX_MODE the entry is indexed, and retried the same way, before the method returns.
+     * <p>
+     * Entries are written with the create op type, as data streams only take new documents. An entry whose id has
+     * already been indexed has been sent before, so the conflict counts as indexed.
+     * <p>
+     * While the IndexTemplate is not installed yet, the method waits for it, as the first write would otherwise create
+     * LOG_TABLE_NAME as a plain index. If the client is closed meanwhile, the entry is not sent.
+     *
+     * @param logEntry  A LogEntry object containing the log data to be indexed.
+     * @param onIndexed Runs once Elasticsearch has indexed the entry, or has rejected it for good. It does not run if
+     *                  the client is closed before that.
+     */
+    public void send(LogEntry logEntry, Runnable onIndexed) {
+        if (!awaitIndexTemplate()) {
+            return;
+        }
+
+        if (ElasticConstants.INDEX_MODE == IndexMode.BLOCKING) {
+            long start = System.nanoTime();
+            boolean isSettled = index(logEntry);
+            FlowControl.FLOW_CONTROL.recordIndexLatency(System.nanoTime() - start);
+
+            if (isSettled) {
+                onIndexed.run();
+            }
+            return;
+        }
+
+        BinaryData document = BinaryData.of(logEntry, elasticsearchClient._jsonpMapper());
+        String id = logEntry.getId();
+
+        if (ElasticConstants.INDEX_MODE == IndexMode.ASYNC) {
+            indexAsync(id, document, new PendingDocument(onIndexed, 0));
+            return;
+        }
+
+        add(BulkOperation.of(o -> o.create(c -> c
+                .index(ElasticConstants.LOG_TABLE_NAME)
+                .id(id)
+                .document(document))), new PendingDocument(onIndexed, 0));
+    }
+
+    /**
+     * Waits until the IndexTemplate has been installed or rejected, checking every MAX_RETRY_BACKOFF_MILLIS whether
+     * the client has been closed.
+     *
+     * @return True if entries can be sent, false if the client has been closed or the thread has been interrupted. The
+     * message of the entry is not acknowledged then and is delivered again.
+     */
+    private boolean awaitIndexTemplate() {
+        try {
+            while (!indexTemplateSettled.await(ElasticConstants.MAX_RETRY_BACKOFF_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (isClosed) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "Interrupted while waiting for the index template of " + ElasticConstants.LOG_TABLE_NAME + ", an entry has not been sent.");
+            return false;
+        }
+
+        return !isClosed;
+    }
+
+    /**
+     * Indexes a log entry with a request of its own, waiting for the response. Requests that fail because the cluster
+     * can not be reached are sent again until they succeed, requests that fail with a temporary error up to
+     * MAX_RETRIES times, with the same backoff as the other INDEX_MODEs.
      *
      * @param logEntry A LogEntry object containing the log data to be indexed.
-     * @return An IndexResponse object representing the result of the indexing operation.
+     * @return True if Elasticsearch has indexed the entry or has rejected it for good, false if the client has been
+     * closed or the thread has been interrupted before that. The message of the entry must not be acknowledged then.
+     */
+    private boolean index(LogEntry logEntry) {
+        for (int attempt = 0; !isClosed; attempt++) {
+            try {
+                elasticsearchClient.index(i -> i
+                        .index(ElasticConstants.LOG_TABLE_NAME)
+                        .id(logEntry.getId())
+                        .opType(OpType.Create)
+                        .document(logEntry));
+                return true;
+            } catch (ElasticsearchException e) {
+                if (isAlreadyIndexed(e.status())) {
+                    return true;
+                }
+
+                if (!isRetryable(e.status()) || attempt >= ElasticConstants.MAX_RETRIES) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "ElasticSearch rejected an entry with status " + e.status() + ":", e);
+                    return true;
+                }
+            } catch (IOException e) {
+                // The cluster may not be reachable, the entry is sent until it succeeds
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "IOException occurred trying to index entry to ElasticSearch, sending it again:", e);
+            } catch (RuntimeException e) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "RuntimeException occurred trying to index entry to ElasticSearch. Probably caused because of the exit request of the program by the user:", e);
+                close();
+                return false;
+            }
+
+            try {
+                Thread.sleep(backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "Interrupted while waiting to index an entry to ElasticSearch again, the entry has not been indexed.");
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends an index request without waiting for the response, once fewer than MAX_IN_FLIGHT_REQUESTS requests are in
+     * flight. The response is handled on a thread of the client.
+     *
+     * @param id       The id of the entry, or null to let Elasticsearch generate it.
+     * @param document The serialized entry.
+     * @param pending  The callback of the entry and the number of times it has been sent before.
      */
-    public IndexResponse send(LogEntry logEntry) {
+    private void indexAsync(String id, BinaryData document, PendingDocument pending) {
         try {
-            return elasticsearchClient.index(i -> i
-                    .index(ElasticConstants.LOG_TABLE_NAME)
-                    .id(logEntry.getId().toString())
-                    .document(logEntry));
-        } catch (IOException e) {
-            GlobalLogger.getLoggerInstance().log(Level.WARN, "IOException occurred trying to index entry to ElasticSearch:", e);
-        } catch (RuntimeException e) {
-            GlobalLogger.getLoggerInstance().log(Level.WARN, "RuntimeException occurred trying to index entry to ElasticSearch. Probably caused because of the exit request of the program by the user:", e);
-            close();
+            inFlightRequests.acquire();
+        } catch (InterruptedException e) {
+            // The message of the entry is not acknowledged and is delivered again
+            Thread.currentThread().interrupt();
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "Interrupted while waiting for ElasticSearch to index entries, an entry has not been sent.");
+            return;
+        }
+
+        if (isClosed) {
+            inFlightRequests.release();
+            return;
         }
 
-        return null;
+        long start = System.nanoTime();
+
+        elasticsearchAsyncClient.index(i -> i
+                        .index(ElasticConstants.LOG_TABLE_NAME)
+                        .id(id)
+                        .opType(OpType.Create)
+                        .document(document))
+                .whenComplete((response, failure) -> {
+                    inFlightRequests.release();
+                    FlowControl.FLOW_CONTROL.recordIndexLatency(System.nanoTime() - start);
+
+                    if (failure == null) {
+                        pending.onIndexed().run();
+                        return;
+                    }
+
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+
+                    if (!(cause instanceof ElasticsearchException exception)) {
+                        // The cluster may not be reachable, the entry is sent until it succeeds
+                        GlobalLogger.getLoggerInstance().log(Level.WARN, "An index request to ElasticSearch failed, sending it again: " + cause);
+                        retry(() -> indexAsync(id, document, pending.nextAttempt()), pending);
+                    } else if (isAlreadyIndexed(exception.status())) {
+                        pending.onIndexed().run();
+                    } else if (isRetryable(exception.status()) && pending.attempt() < ElasticConstants.MAX_RETRIES) {
+                        retry(() -> indexAsync(id, document, pending.nextAttempt()), pending);
+                    } else {
+                        GlobalLogger.getLoggerInstance().log(Level.ERROR, "ElasticSearch rejected an entry with status " + exception.status() + ": " + exception.getMessage());
+                        pending.onIndexed().run();
+                    }
+                });
+    }
+
+    /**
+     * Adds an operation to the next bulk request, waiting while BULK_MAX_CONCURRENT_REQUESTS requests are in flight.
+     *
+     * @param operation The operation to add.
+     * @param document  The entry of the operation and the number of times it has been sent before.
+     */
+    private void add(BulkOperation operation, PendingDocument document) {
+        try {
+            bulkIngester.add(operation, document);
+        } catch (IllegalStateException e) {
+            // The ingester has been closed, the message of the entry is not acknowledged and is delivered again
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "An entry could not be indexed because the ElasticSearch client has been closed.");
+        }
+    }
+
+    /**
+     * Sends an entry again after a backoff that doubles with every attempt, up to MAX_RETRY_BACKOFF_MILLIS.
+     *
+     * @param resend  Sends the entry again.
+     * @param pending The callback of the entry and the number of times it has been sent before.
+     */
+    private void retry(Runnable resend, PendingDocument pending) {
+        if (isClosed) {
+            return;
+        }
+
+        retryScheduler.schedule(resend, backoffMillis(pending.attempt()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param attempt The number of times the entry has been sent before.
+     * @return The time to wait before sending the entry again, doubling with every attempt up to
+     * MAX_RETRY_BACKOFF_MILLIS.
+     */
+    private static long backoffMillis(int attempt) {
+        return Math.min(ElasticConstants.RETRY_BACKOFF_MILLIS << Math.min(attempt, 16), ElasticConstants.MAX_RETRY_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param status The HTTP status of a failed bulk item.
+     * @return True if the item may succeed when it is sent again, like when the cluster is overloaded.
+     */
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @param status The HTTP status of a failed create operation.
+     * @return True if a document with the id of the entry already exists, because the entry has been sent before.
+     */
+    private static boolean isAlreadyIndexed(int status) {
+        return status == 409;
+    }
+
+    /**
+     * Sends the entries collected so far without waiting for the bulk request to fill up.
+     */
+    public void flush() {
+        if (bulkIngester != null && !isClosed) {
+            bulkIngester.flush();
+        }
     }
 
     /**
      * This method is responsible for gracefully shutting down and releasing resources associated with the Elasticsearch
      * client. It should be called when your application is shutting down or when you no longer need the Elasticsearch
-     * client instance.
+     * client instance. The collected entries are sent first, and the requests in flight are waited for up to
+     * CLOSE_TIMEOUT_MILLIS. Entries waiting for a retry are dropped, their messages are delivered again.
      */
-    public void close() {
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+
+        isClosed = true;
+
+        // The entries waiting for the IndexTemplate are not sent, their messages are delivered again
+        indexTemplateSettled.countDown();
+
         try {
+            if (bulkIngester != null) {
+                bulkIngester.close();
+            }
+
+            // Every permit is back once the index requests in flight have completed
+            if (!inFlightRequests.tryAcquire(ElasticConstants.MAX_IN_FLIGHT_REQUESTS, ElasticConstants.CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "Timed out waiting for ElasticSearch to index the entries sent right before closing.");
+            }
+
+            retryScheduler.shutdownNow();
+
             if (elasticsearchTransport != null) {
                 elasticsearchTransport.close();
             }
@@ -79,6 +409,80 @@ public class ElasticClient {
             }
         } catch (IOException e) {
             GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to close ElasticSearch channels:", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An entry that has been sent to Elasticsearch.
+     *
+     * @param onIndexed Runs once Elasticsearch has indexed the entry, or has rejected it for good.
+     * @param attempt   The number of times the entry has been sent before.
+     */
+    private record PendingDocument(Runnable onIndexed, int attempt) {
+
+        private PendingDocument nextAttempt() {
+            return new PendingDocument(onIndexed, attempt + 1);
+        }
+    }
+
+    /**
+     * Reports the indexed entries of every bulk request and sends the failed ones again.
+     */
+    private class BulkResultListener implements BulkListener<PendingDocument> {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request, List<PendingDocument> documents) {
+            bulkStartTimes.put(executionId, System.nanoTime());
+        }
+
+        /**
+         * Runs the callbacks of the indexed entries. Entries that failed with a temporary error are sent again, entries
+         * that failed for good are logged and count as indexed, so their messages are not delivered again forever.
+         */
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, List<PendingDocument> documents, BulkResponse response) {
+            recordLatency(executionId);
+
+            for (int i = 0; i < documents.size(); i++) {
+                BulkResponseItem item = response.items().get(i);
+                PendingDocument document = documents.get(i);
+
+                if (item.error() == null || isAlreadyIndexed(item.status())) {
+                    document.onIndexed().run();
+                } else if (isRetryable(item.status()) && document.attempt() < ElasticConstants.MAX_RETRIES) {
+                    BulkOperation operation = request.operations().get(i);
+                    retry(() -> add(operation, document.nextAttempt()), document);
+                } else {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "ElasticSearch rejected an entry with status " + item.status() + ": " + item.error().type() + ": " + item.error().reason());
+                    document.onIndexed().run();
+                }
+            }
+        }
+
+        /**
+         * Sends every entry of a bulk request that failed as a whole again, the cluster may not be reachable.
+         */
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, List<PendingDocument> documents, Throwable failure) {
+            recordLatency(executionId);
+
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "A bulk request of " + documents.size() + " entries to ElasticSearch failed, sending them again: " + failure);
+
+            for (int i = 0; i < documents.size(); i++) {
+                BulkOperation operation = request.operations().get(i);
+                PendingDocument document = documents.get(i);
+                retry(() -> add(operation, document.nextAttempt()), document);
+            }
+        }
+
+        private void recordLatency(long executionId) {
+            Long start = bulkStartTimes.remove(executionId);
+
+            if (start != null) {
+                FlowControl.FLOW_CONTROL.recordIndexLatency(System.nanoTime() - start);
+            }
         }
     }
 }
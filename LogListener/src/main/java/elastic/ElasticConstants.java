@@ -4,5 +4,23 @@ public interface ElasticConstants {
 
     String SERVER_URL = "http://localhost:9200";
     String LOG_TABLE_NAME = "dns-logs";
+    IndexMode INDEX_MODE = IndexMode.BULK;
+    DocumentIdMode DOCUMENT_ID_MODE = DocumentIdMode.HASHED;
+    int MAX_IN_FLIGHT_REQUESTS = 256;
+    int BULK_MAX_OPERATIONS = 1000;
+    long BULK_MAX_BYTES = 5 * 1024 * 1024;
+    long BULK_FLUSH_INTERVAL_MILLIS = 1000;
+    int BULK_MAX_CONCURRENT_REQUESTS = 2;
+    int MAX_RETRIES = 5;
+    long RETRY_BACKOFF_MILLIS = 500;
+    long MAX_RETRY_BACKOFF_MILLIS = 30000;
+    long CLOSE_TIMEOUT_MILLIS = 10000;
+    boolean INSTALL_INDEX_TEMPLATE = true;
+    String INDEX_TEMPLATE_NAME = "dns-logs";
+    String LIFECYCLE_POLICY_NAME = "dns-logs";
+    String REFRESH_INTERVAL = "30s";
+    String ROLLOVER_MAX_AGE = "1d";
+    String ROLLOVER_MAX_PRIMARY_SHARD_SIZE = "50gb";
+    String DELETE_AFTER = "30d";
 
 }
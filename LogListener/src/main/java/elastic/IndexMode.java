@@ -0,0 +1,16 @@
+package elastic;
+
+/**
+ * How the consumers send the entries to Elasticsearch.
+ */
+public enum IndexMode {
+
+    // One index request per entry, the consumer thread waits for the response
+    BLOCKING,
+
+    // One index request per entry without waiting, at most MAX_IN_FLIGHT_REQUESTS requests are in flight
+    ASYNC,
+
+    // The entries are collected and sent in bulk requests without waiting
+    BULK
+}
@@ -0,0 +1,96 @@
+package elastic;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.mapping.DynamicMapping;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.json.JsonData;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index template and the lifecycle policy of the log entries. LOG_TABLE_NAME is a data stream: Elasticsearch
+ * creates it from the template on the first write, rolls it over to a new backing index once the current one is
+ * ROLLOVER_MAX_AGE old or its primary shards reach ROLLOVER_MAX_PRIMARY_SHARD_SIZE, and deletes the backing indexes
+ * DELETE_AFTER their rollover. The template maps every field of a LogEntry explicitly:
+ * <ul>
+ *     <li>@timestamp is a date, the remote and local IPs are ips, and the other fields are keywords, as they are only
+ *     filtered and aggregated on, never searched as full text.</li>
+ *     <li>The date, the time and the question type are left out of _source and are not indexed, @timestamp and the
+ *     question name hold the same information.</li>
+ *     <li>Fields that are not mapped are kept in _source only, so they do not grow the mapping.</li>
+ * </ul>
+ * The index refreshes every REFRESH_INTERVAL instead of every second, and is stored with the best_compression codec.
+ */
+final class IndexTemplate {
+
+    // Fields that are filtered and aggregated on
+    private static final List<String> KEYWORD_FIELDS = List.of("threadId", "context", "internalPacketId",
+            "udpTcpIndicator", "sendReceiveIndicator", "xidHex", "queryResponse", "opcode", "flagsHex", "flagsChar",
+            "responseCode", "questionName", "topLevelDomain", "parentDomain", "hostAddress", "macAddress");
+
+    // Fields that @timestamp and the question name already hold
+    private static final List<String> REDUNDANT_FIELDS = List.of("date", "time", "questionType");
+
+    private IndexTemplate() {
+    }
+
+    /**
+     * Creates or updates the lifecycle policy and the index template of LOG_TABLE_NAME. Both requests replace what is
+     * installed, so they can be sent on every start.
+     *
+     * @param client The client to send the requests with.
+     * @throws IOException If Elasticsearch can not be reached.
+     */
+    static void install(ElasticsearchClient client) throws IOException {
+        client.ilm().putLifecycle(l -> l
+                .name(ElasticConstants.LIFECYCLE_POLICY_NAME)
+                .policy(p -> p.phases(ph -> ph
+                        .hot(h -> h.actions(JsonData.of(Map.of("rollover", Map.of(
+                                "max_age", ElasticConstants.ROLLOVER_MAX_AGE,
+                                "max_primary_shard_size", ElasticConstants.ROLLOVER_MAX_PRIMARY_SHARD_SIZE)))))
+                        .delete(d -> d
+                                .minAge(t -> t.time(ElasticConstants.DELETE_AFTER))
+                                .actions(JsonData.of(Map.of("delete", Map.of())))))));
+
+        client.indices().putIndexTemplate(t -> t
+                .name(ElasticConstants.INDEX_TEMPLATE_NAME)
+                .indexPatterns(ElasticConstants.LOG_TABLE_NAME)
+                .dataStream(d -> d)
+                .template(tm -> tm
+                        .settings(s -> s
+                                .refreshInterval(r -> r.time(ElasticConstants.REFRESH_INTERVAL))
+                                .codec("best_compression")
+                                .lifecycle(l -> l.name(ElasticConstants.LIFECYCLE_POLICY_NAME)))
+                        .mappings(m -> m
+                                .dynamic(DynamicMapping.False)
+                                .source(s -> s.excludes(REDUNDANT_FIELDS))
+                                .properties(properties()))));
+    }
+
+    /**
+     * @return The mapping of every field of a LogEntry.
+     */
+    private static Map<String, Property> properties() {
+        Map<String, Property> properties = new LinkedHashMap<>();
+
+        properties.put("@timestamp", Property.of(p -> p.date(d -> d)));
+        properties.put("labelCount", Property.of(p -> p.short_(s -> s)));
+
+        // Addresses that can not be parsed are left out of the index instead of rejecting the entry
+        properties.put("remoteIp", Property.of(p -> p.ip(i -> i.ignoreMalformed(true))));
+        properties.put("localIp", Property.of(p -> p.ip(i -> i.ignoreMalformed(true))));
+
+        for (String field : KEYWORD_FIELDS) {
+            properties.put(field, Property.of(p -> p.keyword(k -> k)));
+        }
+
+        for (String field : REDUNDANT_FIELDS) {
+            properties.put(field, Property.of(p -> p.keyword(k -> k.index(false).docValues(false))));
+        }
+
+        return properties;
+    }
+}
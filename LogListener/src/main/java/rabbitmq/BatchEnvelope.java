@@ -0,0 +1,245 @@
+package rabbitmq;
+
+import java.util.List;
+
+/**
+ * A chunk of log lines packed into a single RabbitMQ message, so the broker handles one message per chunk instead of
+ * one per line. The envelope starts with the number of lines, followed by each line prefixed with its length. Numbers
+ * are 4-byte big-endian integers:
+ * <pre>
+ * [line count] [length of line 1] [line 1] [length of line 2] [line 2] ...
+ * </pre>
+ * An envelope of the SOURCED_CONTENT_TYPE also carries where its lines were read: the UTF-8 source after the line
+ * count, see watcher.FileIdentity.sourceOf, and the byte offset of each line in the source as an 8-byte integer before
+ * its length. Consumers derive the document ids of the entries from them:
+ * <pre>
+ * [line count] [source length] [source] [position of line 1] [length of line 1] [line 1] ...
+ * </pre>
+ * An instance reads the lines of envelopes one by one without copying them. It is reused for every envelope, so one
+ * instance must only be used by one thread.
+ */
+public class BatchEnvelope {
+
+    // Content type of messages holding an envelope, messages without it hold a single line
+    public static final String CONTENT_TYPE = "application/x-log-batch";
+
+    // Content type of messages holding an envelope with the source and the positions of its lines
+    public static final String SOURCED_CONTENT_TYPE = "application/x-log-batch-sourced";
+
+    private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
+
+    private byte[] envelope;
+    private int position;
+    private int remainingLines;
+    private int lineOffset;
+    private int lineLength;
+    private long linePosition;
+    private boolean hasSource;
+    private int sourceStart;
+    private int sourceLength;
+    private boolean isCorrupt;
+
+    /**
+     * Packs lines into an envelope.
+     *
+     * @param lines The raw bytes of the lines.
+     * @return The envelope.
+     */
+    public static byte[] encode(List<byte[]> lines) {
+        int size = INT_SIZE;
+        for (byte[] line : lines) {
+            size += INT_SIZE + line.length;
+        }
+
+        byte[] envelope = new byte[size];
+        int position = writeInt(envelope, 0, lines.size());
+
+        for (byte[] line : lines) {
+            position = writeInt(envelope, position, line.length);
+            System.arraycopy(line, 0, envelope, position, line.length);
+            position += line.length;
+        }
+
+        return envelope;
+    }
+
+    /**
+     * Packs lines into an envelope of the SOURCED_CONTENT_TYPE.
+     *
+     * @param lines     The raw bytes of the lines.
+     * @param source    The UTF-8 bytes of where the lines were read.
+     * @param positions The byte offset of each line in the source.
+     * @return The envelope.
+     */
+    public static byte[] encode(List<byte[]> lines, byte[] source, long[] positions) {
+        int size = INT_SIZE + INT_SIZE + source.length;
+        for (byte[] line : lines) {
+            size += LONG_SIZE + INT_SIZE + line.length;
+        }
+
+        byte[] envelope = new byte[size];
+        int position = writeInt(envelope, 0, lines.size());
+        position = writeInt(envelope, position, source.length);
+        System.arraycopy(source, 0, envelope, position, source.length);
+        position += source.length;
+
+        for (int i = 0; i < lines.size(); i++) {
+            byte[] line = lines.get(i);
+            position = writeInt(envelope, position, (int) (positions[i] >>> 32));
+            position = writeInt(envelope, position, (int) positions[i]);
+            position = writeInt(envelope, position, line.length);
+            System.arraycopy(line, 0, envelope, position, line.length);
+            position += line.length;
+        }
+
+        return envelope;
+    }
+
+    /**
+     * Starts reading the lines of an envelope of the CONTENT_TYPE.
+     *
+     * @param envelope The envelope.
+     */
+    public void reset(byte[] envelope) {
+        reset(envelope, false);
+    }
+
+    /**
+     * Starts reading the lines of an envelope.
+     *
+     * @param envelope  The envelope.
+     * @param hasSource True for an envelope of the SOURCED_CONTENT_TYPE.
+     */
+    public void reset(byte[] envelope, boolean hasSource) {
+        this.envelope = envelope;
+        this.hasSource = hasSource;
+        this.isCorrupt = envelope.length < INT_SIZE;
+        this.remainingLines = isCorrupt ? 0 : readInt(envelope, 0);
+        this.position = INT_SIZE;
+        this.lineOffset = 0;
+        this.lineLength = 0;
+        this.linePosition = 0;
+        this.sourceStart = 0;
+        this.sourceLength = -1;
+
+        if (hasSource && !isCorrupt) {
+            int length = envelope.length - position < INT_SIZE ? -1 : readInt(envelope, position);
+
+            if (length < 0 || length > envelope.length - position - INT_SIZE) {
+                isCorrupt = true;
+                remainingLines = 0;
+                return;
+            }
+
+            sourceStart = position + INT_SIZE;
+            sourceLength = length;
+            position = sourceStart + length;
+        }
+    }
+
+    /**
+     * Moves to the next line of the envelope. Its bounds are returned by getLineOffset and getLineLength.
+     *
+     * @return True if there is a next line, false if all lines have been read or the envelope is corrupt.
+     */
+    public boolean next() {
+        if (remainingLines <= 0 || isCorrupt) {
+            return false;
+        }
+
+        if (hasSource) {
+            if (envelope.length - position < LONG_SIZE) {
+                isCorrupt = true;
+                return false;
+            }
+
+            linePosition = (long) readInt(envelope, position) << 32 | (readInt(envelope, position + INT_SIZE) & 0xFFFFFFFFL);
+            position += LONG_SIZE;
+        }
+
+        if (envelope.length - position < INT_SIZE) {
+            isCorrupt = true;
+            return false;
+        }
+
+        int length = readInt(envelope, position);
+
+        if (length < 0 || length > envelope.length - position - INT_SIZE) {
+            isCorrupt = true;
+            return false;
+        }
+
+        lineOffset = position + INT_SIZE;
+        lineLength = length;
+        position = lineOffset + length;
+        remainingLines--;
+
+        return true;
+    }
+
+    /**
+     * @return True if the envelope ended before all of its lines could be read.
+     */
+    public boolean isCorrupt() {
+        return isCorrupt;
+    }
+
+    /**
+     * @return Index of the first byte of the current line in the envelope.
+     */
+    public int getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return Number of bytes in the current line.
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * @return The envelope, which holds the UTF-8 bytes of the source, see getSourceStart and getSourceLength.
+     */
+    public byte[] getSource() {
+        return envelope;
+    }
+
+    /**
+     * @return Index of the first byte of the source in the envelope.
+     */
+    public int getSourceStart() {
+        return sourceStart;
+    }
+
+    /**
+     * @return Number of bytes in the source, -1 if the envelope does not carry one.
+     */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * @return The byte offset of the current line in the source, if the envelope carries one.
+     */
+    public long getLinePosition() {
+        return linePosition;
+    }
+
+    private static int writeInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+
+        return position + INT_SIZE;
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) << 24
+                | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8
+                | (buffer[position + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,162 @@
+package rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Shares a small number of RabbitMQ connections between every Producer and Consumer of the process. Each of them gets
+ * its own channel, channels are multiplexed over the connections round-robin. Publishing and consuming use separate
+ * connections, so a publisher blocked by the flow control of the broker does not hold up the consumers.
+ * <p>
+ * The connections recover automatically after a network failure, along with their channels, queues and consumers.
+ */
+public class ConnectionManager {
+
+    public static final ConnectionManager CONNECTION_MANAGER = new ConnectionManager();
+
+    private final ConnectionFactory factory;
+    private final List<Connection> publisherConnections;
+    private final List<Connection> consumerConnections;
+    private final List<Channel> publisherChannels;
+
+    private int nextPublisherConnection;
+    private int nextConsumerConnection;
+
+    private ConnectionManager() {
+        this.factory = new ConnectionFactory();
+        this.factory.setHost(RabbitMQConfigConstants.HOST_NAME);
+        this.factory.setAutomaticRecoveryEnabled(true);
+        this.factory.setTopologyRecoveryEnabled(true);
+        this.factory.setNetworkRecoveryInterval(RabbitMQConfigConstants.NETWORK_RECOVERY_INTERVAL_MILLIS);
+        this.publisherConnections = new ArrayList<>();
+        this.consumerConnections = new ArrayList<>();
+        this.publisherChannels = new ArrayList<>();
+    }
+
+    /**
+     * Opens a channel for publishing and declares the queues on it.
+     *
+     * @return A new channel on one of the publisher connections.
+     * @throws IOException If the channel can not be opened.
+     */
+    public synchronized Channel createPublisherChannel() throws IOException {
+        Connection connection = nextConnection(publisherConnections, RabbitMQConfigConstants.PUBLISHER_CONNECTION_COUNT, nextPublisherConnection++, "publisher");
+        Channel channel = createChannel(connection);
+        publisherChannels.add(channel);
+
+        return channel;
+    }
+
+    /**
+     * Opens a channel for consuming and declares the queues on it.
+     *
+     * @return A new channel on one of the consumer connections.
+     * @throws IOException If the channel can not be opened.
+     */
+    public synchronized Channel createConsumerChannel() throws IOException {
+        Connection connection = nextConnection(consumerConnections, RabbitMQConfigConstants.CONSUMER_CONNECTION_COUNT, nextConsumerConnection++, "consumer");
+
+        return createChannel(connection);
+    }
+
+    /**
+     * Closes every connection. Publisher channels first wait up to CLOSE_TIMEOUT_MILLIS for their unconfirmed messages
+     * to be confirmed, so chunks sent right before the program closes are not lost.
+     */
+    public synchronized void close() {
+        for (Channel channel : publisherChannels) {
+            try {
+                if (channel.isOpen() && !channel.waitForConfirms(RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS)) {
+                    GlobalLogger.getLoggerInstance().log(Level.WARN, "RabbitMQ has nacked messages that were sent right before closing.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (TimeoutException e) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "Timed out waiting for RabbitMQ to confirm the messages sent right before closing.");
+            } catch (Exception e) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "An error occurred trying to wait for RabbitMQ confirms:", e);
+            }
+        }
+
+        closeConnections(publisherConnections);
+        closeConnections(consumerConnections);
+        publisherChannels.clear();
+    }
+
+    /**
+     * Returns a connection of a pool round-robin, opening it if it has not been opened yet.
+     *
+     * @param connections The pool of connections.
+     * @param size        The number of connections in the pool.
+     * @param index       The number of channels opened on the pool so far.
+     * @param name        The name of the pool, to name its connections in the management UI of the broker.
+     * @return An open or recovering connection.
+     * @throws IOException If the connection can not be opened.
+     */
+    private Connection nextConnection(List<Connection> connections, int size, int index, String name) throws IOException {
+        int slot = index % size;
+
+        if (slot < connections.size()) {
+            return connections.get(slot);
+        }
+
+        try {
+            Connection connection = factory.newConnection("log-listener-" + name + "-" + slot);
+            connections.add(connection);
+
+            return connection;
+        } catch (ConnectException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "Cannot connect to RabbitMQ. Probably it hasn't started yet.");
+            throw e;
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out connecting to RabbitMQ", e);
+        }
+    }
+
+    /**
+     * Opens a channel and declares the queue of every partition on it. With SINGLE_ACTIVE_CONSUMER the broker delivers
+     * the messages of a partition queue to one consumer at a time, and fails over to another one if it goes away.
+     *
+     * @param connection The connection to open the channel on.
+     * @return The new channel.
+     * @throws IOException If the channel can not be opened or a queue can not be declared.
+     */
+    private Channel createChannel(Connection connection) throws IOException {
+        Channel channel = connection.createChannel();
+        Map<String, Object> arguments = RabbitMQConfigConstants.SINGLE_ACTIVE_CONSUMER && RabbitMQConfigConstants.PARTITION_COUNT > 1
+                ? Map.of("x-single-active-consumer", true)
+                : null;
+
+        for (int partition = 0; partition < RabbitMQConfigConstants.PARTITION_COUNT; partition++) {
+            channel.queueDeclare(Partitions.queueName(partition), true, false, false, arguments);
+        }
+
+        return channel;
+    }
+
+    private void closeConnections(List<Connection> connections) {
+        for (Connection connection : connections) {
+            try {
+                if (connection.isOpen()) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close a RabbitMQ connection:", e);
+            }
+        }
+
+        connections.clear();
+    }
+}
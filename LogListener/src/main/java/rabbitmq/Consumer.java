@@ -1,104 +1,227 @@
 package rabbitmq;
 
-import com.rabbitmq.client.*;
+import elastic.DocumentIdMode;
+import elastic.DocumentIds;
 import elastic.ElasticClient;
+import elastic.ElasticConstants;
 import utils.GlobalLogger;
 import utils.NetworkInfo;
 import watcher.LogEntry;
-
-import java.net.ConnectException;
-import java.nio.charset.StandardCharsets;
+import watcher.LogFormatParser;
+import watcher.LogFormats;
+import watcher.ParseStatus;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.Level;
 
 public class Consumer {
 
-    private Channel channel;
-    private Connection connection;
+    // Subscribes the consumers again that could not subscribe because the transport was not available
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "consumer-subscriptions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int partition;
+    private volatile Transport.Subscription subscription;
+    private volatile ScheduledFuture<?> retryTask;
+
+    // Messages of a subscription are handled one at a time, so the parsers, the entry and the envelope reader are
+    // reused for every message
+    private final Map<String, LogFormatParser> parsers = new HashMap<>();
+    private final LogEntry logEntry = new LogEntry();
+    private final BatchEnvelope batchEnvelope = new BatchEnvelope();
+    private final RecordBatchDecoder recordBatchDecoder = new RecordBatchDecoder();
 
     /**
-     * Initializes a Consumer instance for receiving messages from a RabbitMQ queue and forwarding them to Elasticsearch
-     * for processing. It establishes a connection to both RabbitMQ and Elasticsearch.
+     * Initializes a Consumer instance for receiving the messages of a partition from the Transport and forwarding them
+     * to Elasticsearch for processing.
+     *
+     * @param partition The partition to consume, between 0 and PARTITION_COUNT - 1.
      */
-    public Consumer() {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(RabbitMQConfigConstants.HOST_NAME);
-
-        try {
-            try {
-                connection = factory.newConnection();
-            } catch(ConnectException e) {
-                GlobalLogger.getLoggerInstance().log(Level.FATAL, "Cannot connect to RabbitMQ. Probably database hasn't started yet.", e);
-                System.exit(1);
-            }
-            channel = connection.createChannel();
-            channel.queueDeclare(RabbitMQConfigConstants.QUEUE_NAME, true, false, false, null);
-        } catch (Exception e) {
-            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to open RabbitMQ channel:", e);
-        }
+    public Consumer(int partition) {
+        this.partition = partition;
     }
 
     /**
-     * Initiates the message consumption process from the RabbitMQ queue. It sets up a message handler
-     * (DeliverCallback) to process incoming messages.
+     * Initiates the message consumption process by subscribing to the partition on the Transport. A message holds a RecordBatch of
+     * entries parsed by the producer, a BatchEnvelope of lines or a single line. The transport acknowledges each
+     * message once Elasticsearch has indexed every entry of it.
      */
     public void startReading() {
         try {
-            DeliverCallback deliverCallback = (s, delivery) -> {
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
+            subscription = Transport.TRANSPORT.subscribe(this::handleMessage, partition);
+        } catch (IOException e) {
+            // The transport may not have started yet, the messages wait in the spool or the queue meanwhile
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to read data from the transport, trying again in " + RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS + " milliseconds:", e);
+            retryTask = RETRY_SCHEDULER.schedule(this::startReading, RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                // Enrich the data
-                LogEntry logEntry = new LogEntry(message.split(" "));
+    /**
+     * Processes every entry or line of a message. The entries are indexed asynchronously, the message counts as
+     * processed once every entry has been indexed.
+     *
+     * @param message     The delivered message.
+     * @param onProcessed Acknowledges the message.
+     */
+    private void handleMessage(TransportMessage message, Runnable onProcessed) {
+        // Held until every entry has been handed to Elasticsearch, so the message is not processed before that
+        PendingEntries pendingEntries = new PendingEntries(onProcessed);
+        byte[] body = message.getBody();
+        String contentType = message.getContentType();
+
+        if (RecordBatch.CONTENT_TYPE.equals(contentType)) {
+            recordBatchDecoder.reset(body);
+
+            // The lines have already been parsed and quarantined by the producer
+            while (recordBatchDecoder.next(logEntry)) {
+                if (recordBatchDecoder.hasSource()) {
+                    setId(recordBatchDecoder.getSource(), recordBatchDecoder.getSourceStart(), recordBatchDecoder.getSourceLength(), recordBatchDecoder.getLinePosition());
+                }
 
-                NetworkInfo networkInfo = new NetworkInfo(logEntry.getRemoteIp());
+                processEntry(pendingEntries);
+            }
 
-                logEntry.setLocalIp(networkInfo.getLocalIp());
-                logEntry.setHostAddress(networkInfo.getHostname());
-                logEntry.setMacAddress(networkInfo.getMacAddress());
+            if (recordBatchDecoder.isCorrupt()) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "Skipped the rest of a record batch message that could not be decoded.");
+            }
+        } else if (BatchEnvelope.CONTENT_TYPE.equals(contentType) || BatchEnvelope.SOURCED_CONTENT_TYPE.equals(contentType)) {
+            LogFormatParser parser = getParser(message.getFormat());
+            batchEnvelope.reset(body, BatchEnvelope.SOURCED_CONTENT_TYPE.equals(contentType));
 
-                ElasticClient.elasticClient.send(logEntry);
+            while (batchEnvelope.next()) {
+                if (parseLine(parser, body, batchEnvelope.getLineOffset(), batchEnvelope.getLineLength())) {
+                    if (batchEnvelope.getSourceLength() >= 0) {
+                        setId(batchEnvelope.getSource(), batchEnvelope.getSourceStart(), batchEnvelope.getSourceLength(), batchEnvelope.getLinePosition());
+                    }
 
-                // Acknowledge the message after processing
-                try {
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                } catch (AlreadyClosedException e) {
-                    GlobalLogger.getLoggerInstance().log(Level.WARN, "An error occurred trying to close a RabbitMQ channel that has  already been closed :", e);
+                    processEntry(pendingEntries);
                 }
-            };
+            }
 
-            channel.basicConsume(
-                    RabbitMQConfigConstants.QUEUE_NAME,
-                    RabbitMQConfigConstants.AUTO_ACKNOWLEDGE_MESSAGES,
-                    deliverCallback,
-                    consumerTag -> {
-                    });
+            if (batchEnvelope.isCorrupt()) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "Skipped the rest of a batch message that ended before all of its lines.");
+            }
+        } else {
+            if (parseLine(getParser(message.getFormat()), body, 0, body.length)) {
+                processEntry(pendingEntries);
+            }
+        }
 
-        } catch (Exception e) {
-            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to read data from RabbitMQ:", e);
+        pendingEntries.entryIndexed();
+    }
+
+    /**
+     * Parses a line into the reused entry. Lines that can not be parsed are quarantined.
+     *
+     * @param parser  The parser of the log format of the line.
+     * @param message A buffer holding the raw bytes of the line.
+     * @param offset  Index of the first byte of the line in the buffer.
+     * @param length  Number of bytes in the line.
+     * @return True if the line has been parsed.
+     */
+    private boolean parseLine(LogFormatParser parser, byte[] message, int offset, int length) {
+        ParseStatus status = parser.parse(message, offset, length, logEntry);
+        Quarantine.QUARANTINE.record(status, parser.getFormatName(), message, offset, length);
+
+        return status == ParseStatus.PARSED;
+    }
+
+    /**
+     * Gives the reused entry the id derived from the position of its line, if the DOCUMENT_ID_MODE is HASHED. Entries
+     * without one get an id generated by Elasticsearch.
+     *
+     * @param source   A buffer holding the UTF-8 bytes of the source of the line.
+     * @param start    Index of the first byte of the source in the buffer.
+     * @param length   Number of bytes in the source.
+     * @param position The byte offset of the line in the source.
+     */
+    private void setId(byte[] source, int start, int length, long position) {
+        if (ElasticConstants.DOCUMENT_ID_MODE == DocumentIdMode.HASHED) {
+            logEntry.setId(DocumentIds.of(source, start, length, position));
         }
     }
 
     /**
-     * Closes and releases resources associated with the Consumer. It closes the RabbitMQ channel and the
-     * elasticClient to ensure proper resource cleanup.
+     * Enriches the reused entry and sends it to Elasticsearch.
+     *
+     * @param pendingEntries The entries of the message that have not been indexed yet.
+     */
+    private void processEntry(PendingEntries pendingEntries) {
+        // Enrich the data, the lookups of recently seen addresses are reused
+        NetworkInfo networkInfo = NetworkInfo.of(logEntry.getRemoteIp());
+
+        logEntry.setLocalIp(networkInfo.getLocalIp());
+        logEntry.setHostAddress(networkInfo.getHostname());
+        logEntry.setMacAddress(networkInfo.getMacAddress());
+
+        pendingEntries.entrySent();
+        ElasticClient.elasticClient.send(logEntry, pendingEntries::entryIndexed);
+    }
+
+    /**
+     * Returns the parser of a log format. Messages without a format are parsed as Windows DNS debug log lines.
+     *
+     * @param format The name of the log format of a message, or null.
+     * @return The parser of this Consumer for the format.
+     */
+    private LogFormatParser getParser(String format) {
+        return parsers.computeIfAbsent(String.valueOf(format), name -> LogFormats.LOG_FORMATS.newParser(format));
+    }
+
+    /**
+     * Closes and releases resources associated with the Consumer. It sends the entries collected for Elasticsearch and
+     * stops the subscription, which acknowledges what has been processed so far. The elasticClient and the transport
+     * are shared by every Consumer and are closed separately.
      */
     public void close() {
         try {
-            // Close the RabbitMQ channel
-            if (channel != null && channel.isOpen()) {
-                channel.close();
+            if (retryTask != null) {
+                retryTask.cancel(false);
             }
 
-            // Close the RabbitMQ connection
-            if (connection != null && connection.isOpen()) {
-                connection.close();
+            if (subscription != null) {
+                // Send the collected entries right away, so the subscription does not wait for the flush interval
+                ElasticClient.elasticClient.flush();
+                subscription.close();
             }
+        } catch (Exception e) {
+            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to close the subscription and ElasticSearch channels:", e);
+        }
+    }
 
-            // Close the ElasticClient
-            ElasticClient.elasticClient.close();
+    /**
+     * Counts the entries of a message that Elasticsearch has not indexed yet, and acknowledges the message once the
+     * count drops to zero. The count starts at one for the handler itself.
+     */
+    private static class PendingEntries {
 
-        } catch (Exception e) {
-            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to close RabbitMQ and ElasticSearch channels:", e);
+        private final AtomicInteger count;
+        private final Runnable onProcessed;
+
+        private PendingEntries(Runnable onProcessed) {
+            this.count = new AtomicInteger(1);
+            this.onProcessed = onProcessed;
+        }
+
+        private void entrySent() {
+            count.incrementAndGet();
+        }
+
+        private void entryIndexed() {
+            if (count.decrementAndGet() == 0) {
+                onProcessed.run();
+            }
         }
     }
 }
@@ -0,0 +1,201 @@
+package rabbitmq;
+
+import utils.GlobalLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Credit-based backpressure from Elasticsearch back to the readers of the log files. A monitor thread samples the
+ * pipeline every FLOW_CONTROL_INTERVAL_MILLIS milliseconds:
+ * <ul>
+ *     <li>The average Elasticsearch index latency throttles the prefetch of the consumers. The prefetch is halved
+ *     while the latency is above INDEX_LATENCY_TARGET_MILLIS, and grows by one up to PREFETCH_COUNT while it is well
+ *     below, so slow indexing pulls fewer messages off the queue.</li>
+ *     <li>The depth of the queue refills the credits of the readers. A credit is one message in the queue: every
+ *     partition message of a chunk a reader sends takes a credit, and the credits are refilled by the messages that
+ *     have left the queue since the last sample, never above MAX_QUEUE_DEPTH minus the messages waiting in it.
+ *     Readers without a credit pause at the next chunk boundary until the credits are refilled.</li>
+ * </ul>
+ * The messages that have left the queue are the depth of the last sample, plus the messages the transport has
+ * confirmed since, minus the current depth. A message that is counted in the depth before it is confirmed, or the
+ * other way round, is counted in the wrong interval, and taken back in the next one.
+ * <p>
+ * A chunk takes its credits once it is sent, so the credits may go below zero by the messages of the chunks that were
+ * started at the same time, at most PARTITION_COUNT per reader. Throughput therefore degrades with the indexing rate,
+ * instead of the queue growing until the broker blocks.
+ */
+public class FlowControl implements Runnable {
+
+    public static final FlowControl FLOW_CONTROL = new FlowControl();
+
+    private final AtomicInteger credits;
+    private final Queue<Runnable> waiters;
+
+    // Messages the transport has confirmed since the last sample, and the depth of the queue at the last sample or -1
+    private final LongAdder confirmedMessages;
+    private long lastDepth;
+
+    // Index latencies recorded since the last sample
+    private final LongAdder latencyNanos;
+    private final LongAdder latencyCount;
+
+    private volatile int prefetch;
+    private Thread thread;
+
+    private FlowControl() {
+        this.credits = new AtomicInteger(RabbitMQConfigConstants.MAX_QUEUE_DEPTH);
+        this.waiters = new ConcurrentLinkedQueue<>();
+        this.confirmedMessages = new LongAdder();
+        this.lastDepth = -1;
+        this.latencyNanos = new LongAdder();
+        this.latencyCount = new LongAdder();
+        this.prefetch = RabbitMQConfigConstants.PREFETCH_COUNT;
+    }
+
+    /**
+     * Starts the monitor thread.
+     */
+    public synchronized void start() {
+        if (!RabbitMQConfigConstants.FLOW_CONTROL_ENABLED || thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "flow-control");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Samples the pipeline and refills the credits until the program closes.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(RabbitMQConfigConstants.FLOW_CONTROL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                sample();
+            } catch (RuntimeException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to sample the flow of messages:", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a reader may start a new chunk, without waiting. The chunk takes its credits once it is sent.
+     *
+     * @return True if there are credits left, false if the reader should pause.
+     */
+    public boolean hasCredit() {
+        return !RabbitMQConfigConstants.FLOW_CONTROL_ENABLED || credits.get() > 0;
+    }
+
+    /**
+     * Waits until there are credits left for a new chunk. Returns early if the thread is interrupted, with the
+     * interrupt flag set.
+     */
+    public void awaitCredit() {
+        while (!hasCredit()) {
+            try {
+                Thread.sleep(RabbitMQConfigConstants.FLOW_CONTROL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the credits of a sent chunk.
+     *
+     * @param messages The number of partition messages the chunk has been split into.
+     */
+    public void takeCredits(int messages) {
+        if (RabbitMQConfigConstants.FLOW_CONTROL_ENABLED) {
+            credits.addAndGet(-messages);
+        }
+    }
+
+    /**
+     * Records messages the transport has confirmed, they are in the queue or have already left it.
+     *
+     * @param messages The number of confirmed messages.
+     */
+    public void recordConfirmed(int messages) {
+        confirmedMessages.add(messages);
+    }
+
+    /**
+     * Runs a callback once the credits have been refilled, to resume a paused reader.
+     *
+     * @param callback Runs on the monitor thread, must not block.
+     */
+    public void whenCreditAvailable(Runnable callback) {
+        waiters.add(callback);
+    }
+
+    /**
+     * Records the time it took to index an entry into Elasticsearch.
+     *
+     * @param nanos The latency of the index request.
+     */
+    public void recordIndexLatency(long nanos) {
+        latencyNanos.add(nanos);
+        latencyCount.increment();
+    }
+
+    /**
+     * @return The number of unacknowledged messages a consumer should hold at most.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    private void sample() {
+        long count = latencyCount.sumThenReset();
+        long nanos = latencyNanos.sumThenReset();
+
+        if (count > 0) {
+            long averageMillis = TimeUnit.NANOSECONDS.toMillis(nanos / count);
+
+            if (averageMillis > RabbitMQConfigConstants.INDEX_LATENCY_TARGET_MILLIS) {
+                prefetch = Math.max(1, prefetch / 2);
+            } else if (averageMillis < RabbitMQConfigConstants.INDEX_LATENCY_TARGET_MILLIS / 2) {
+                prefetch = Math.min(RabbitMQConfigConstants.PREFETCH_COUNT, prefetch + 1);
+            }
+        }
+
+        long depth = Transport.TRANSPORT.getQueueDepth();
+        long confirmed = confirmedMessages.sumThenReset();
+
+        if (depth < 0) {
+            // Without a known depth the readers get a full set of credits every interval
+            credits.set(RabbitMQConfigConstants.MAX_QUEUE_DEPTH);
+        } else {
+            // Below zero while messages are in the queue before their confirm arrives, they are counted once it does
+            long drained = lastDepth < 0 ? 0 : lastDepth + confirmed - depth;
+            long room = Math.max(0, RabbitMQConfigConstants.MAX_QUEUE_DEPTH - depth);
+
+            credits.updateAndGet(available -> (int) Math.min(available + drained, room));
+        }
+
+        lastDepth = depth;
+
+        if (credits.get() > 0) {
+            Runnable waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiter.run();
+            }
+        }
+    }
+}
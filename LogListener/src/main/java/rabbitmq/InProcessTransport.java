@@ -0,0 +1,254 @@
+package rabbitmq;
+
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Carries messages through a RingBuffer per partition in memory, for running the Watchers and the Consumers in the same
+ * process without a broker. Each subscription has its own thread, which takes up to IN_PROCESS_BATCH_SIZE messages off
+ * the ring of its partition at a time, and hands them to its handler one by one. At most the prefetch of the
+ * FlowControl messages of a subscription are being processed at a time.
+ * With SINGLE_ACTIVE_CONSUMER a subscription holds its partition while it takes and handles a batch, so the messages
+ * of a partition are handled one batch after the other, in the order they were published.
+ * <p>
+ * A message is confirmed to its publisher once a Consumer has processed it, not when it enters the ring. The messages in
+ * the ring are lost if the process stops, so checkpoints must not move past them before they are handled; they are
+ * read from the log files again after a restart.
+ */
+class InProcessTransport implements Transport {
+
+    private final RingBuffer<Delivery>[] rings;
+
+    // True while a subscription takes and handles a batch of the partition, only used with SINGLE_ACTIVE_CONSUMER
+    private final AtomicBoolean[] activePartitions;
+    private final AtomicInteger subscriptionCount;
+
+    InProcessTransport() {
+        // Generic arrays can not be created, the array only ever holds RingBuffers of Deliveries
+        @SuppressWarnings("unchecked")
+        RingBuffer<Delivery>[] partitionRings = (RingBuffer<Delivery>[]) new RingBuffer<?>[RabbitMQConfigConstants.PARTITION_COUNT];
+
+        this.rings = partitionRings;
+        this.activePartitions = new AtomicBoolean[RabbitMQConfigConstants.PARTITION_COUNT];
+        this.subscriptionCount = new AtomicInteger();
+
+        for (int partition = 0; partition < rings.length; partition++) {
+            rings[partition] = new RingBuffer<>(RabbitMQConfigConstants.IN_PROCESS_QUEUE_CAPACITY,
+                    TimeUnit.MICROSECONDS.toNanos(RabbitMQConfigConstants.IN_PROCESS_MAX_IDLE_PARK_MICROS));
+            activePartitions[partition] = new AtomicBoolean();
+        }
+    }
+
+    @Override
+    public Publisher openPublisher(PublisherListener listener) {
+        return new InProcessPublisher(listener);
+    }
+
+    @Override
+    public Subscription subscribe(MessageHandler handler, int partition) {
+        InProcessSubscription subscription = new InProcessSubscription(handler, partition);
+
+        subscription.thread = new Thread(subscription::run, "in-process-consumer-" + partition + "-" + subscriptionCount.getAndIncrement());
+        subscription.thread.setDaemon(true);
+        subscription.thread.start();
+
+        return subscription;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        long depth = 0;
+
+        for (RingBuffer<Delivery> ring : rings) {
+            depth += ring.size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * The subscriptions are closed before the transport and have handled what was left in the ring, so there is
+     * nothing to wait for. Messages still in the ring have not been confirmed and are read again after a restart.
+     */
+    @Override
+    public void close() {
+        long depth = getQueueDepth();
+
+        if (depth > 0) {
+            GlobalLogger.getLoggerInstance().log(Level.WARN, depth + " in-process messages have not been handled before closing, they will be read from the log files again.");
+        }
+    }
+
+    /**
+     * A message in the ring, with what is needed to confirm it to its publisher.
+     */
+    private record Delivery(TransportMessage message, PublisherListener listener, long sequenceNumber) {
+    }
+
+    private class InProcessPublisher implements Publisher {
+
+        private final PublisherListener listener;
+        private long nextSequenceNumber = 1;
+
+        private InProcessPublisher(PublisherListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Puts the message into the ring, waiting while the ring is full so producers slow down to the pace of the
+         * consumers.
+         */
+        @Override
+        public long publish(TransportMessage message) throws IOException {
+            long sequenceNumber = nextSequenceNumber++;
+
+            try {
+                rings[message.getPartition()].put(new Delivery(message, listener, sequenceNumber));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for room in the in-process queue");
+            }
+
+            return sequenceNumber;
+        }
+    }
+
+    private class InProcessSubscription implements Subscription {
+
+        private final MessageHandler handler;
+        private final RingBuffer<Delivery> ring;
+        private final AtomicBoolean activePartition;
+        private final Object[] batch;
+
+        // Messages handed to the handler that have not been processed yet
+        private final AtomicInteger processingCount;
+
+        private Thread thread;
+        private volatile boolean isClosing;
+        private volatile long closeDeadline;
+
+        private InProcessSubscription(MessageHandler handler, int partition) {
+            this.handler = handler;
+            this.ring = rings[partition];
+            this.activePartition = activePartitions[partition];
+            this.batch = new Object[RabbitMQConfigConstants.IN_PROCESS_BATCH_SIZE];
+            this.processingCount = new AtomicInteger();
+        }
+
+        /**
+         * Handles batches of messages until the subscription is closed and the ring is empty, or the close timeout has
+         * passed, then waits until the close timeout for the handled messages to be processed.
+         */
+        private void run() {
+            int idleAttempts = 0;
+
+            while (true) {
+                int count = RabbitMQConfigConstants.SINGLE_ACTIVE_CONSUMER ? handleExclusiveBatch() : handleBatch();
+
+                if (count == 0) {
+                    if (isClosing && (processingCount.get() == 0 || System.currentTimeMillis() > closeDeadline)) {
+                        return;
+                    }
+
+                    try {
+                        ring.idle(idleAttempts++);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                idleAttempts = 0;
+
+                if (isClosing && System.currentTimeMillis() > closeDeadline) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Takes a batch off the ring and handles it while no other subscription of the partition does.
+         *
+         * @return The number of handled messages, 0 if the ring is empty or another subscription holds the partition.
+         */
+        private int handleExclusiveBatch() {
+            if (!activePartition.compareAndSet(false, true)) {
+                return 0;
+            }
+
+            try {
+                return handleBatch();
+            } finally {
+                activePartition.set(false);
+            }
+        }
+
+        /**
+         * Takes a batch off the ring and handles its messages one by one, as long as fewer messages than the prefetch
+         * are being processed.
+         *
+         * @return The number of handled messages.
+         */
+        private int handleBatch() {
+            int room = FlowControl.FLOW_CONTROL.getPrefetch() - processingCount.get();
+
+            if (room <= 0) {
+                return 0;
+            }
+
+            int count = ring.drainTo(batch, Math.min(batch.length, room));
+
+            for (int i = 0; i < count; i++) {
+                Delivery delivery = (Delivery) batch[i];
+                batch[i] = null;
+                handle(delivery);
+            }
+
+            return count;
+        }
+
+        private void handle(Delivery delivery) {
+            AtomicBoolean isProcessed = new AtomicBoolean();
+            Runnable onProcessed = () -> {
+                if (isProcessed.compareAndSet(false, true)) {
+                    processingCount.decrementAndGet();
+                    delivery.listener().handleConfirm(delivery.sequenceNumber(), false, true);
+                }
+            };
+
+            processingCount.incrementAndGet();
+
+            try {
+                handler.handle(delivery.message(), onProcessed);
+            } catch (RuntimeException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to handle an in-process message:", e);
+
+                // Confirmed anyway, so a failed message does not hold back the checkpoint forever
+                onProcessed.run();
+            }
+        }
+
+        /**
+         * Lets the thread handle what is left in the ring and wait for it to be processed for up to
+         * CLOSE_TIMEOUT_MILLIS, then waits for it to stop.
+         */
+        @Override
+        public void close() {
+            closeDeadline = System.currentTimeMillis() + RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS;
+            isClosing = true;
+
+            try {
+                thread.join(RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
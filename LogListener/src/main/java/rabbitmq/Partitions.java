@@ -0,0 +1,50 @@
+package rabbitmq;
+
+import watcher.LogEntry;
+
+/**
+ * Maps log entries to the PARTITION_COUNT partitions of the queue by the remote IP of the entry, so every entry of a
+ * client goes through the same partition. The hash only depends on the bytes of the address, producers in different
+ * processes route the same client to the same partition.
+ */
+final class Partitions {
+
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private Partitions() {
+    }
+
+    /**
+     * @param entry A parsed entry.
+     * @return The partition of the remote IP of the entry, 0 if the entry has none.
+     */
+    static int of(LogEntry entry) {
+        int start = entry.getFieldStart(LogEntry.REMOTE_IP);
+
+        if (RabbitMQConfigConstants.PARTITION_COUNT == 1 || start == -1) {
+            return 0;
+        }
+
+        byte[] line = entry.getLine();
+        int end = entry.getFieldEnd(LogEntry.REMOTE_IP);
+
+        // FNV-1a
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (line[i] & 0xFF)) * FNV_PRIME;
+        }
+
+        return Integer.remainderUnsigned(hash, RabbitMQConfigConstants.PARTITION_COUNT);
+    }
+
+    /**
+     * @param partition A partition.
+     * @return The name of the RabbitMQ queue of the partition. A single partition uses QUEUE_NAME itself.
+     */
+    static String queueName(int partition) {
+        return RabbitMQConfigConstants.PARTITION_COUNT == 1
+                ? RabbitMQConfigConstants.QUEUE_NAME
+                : RabbitMQConfigConstants.QUEUE_NAME + "." + partition;
+    }
+}
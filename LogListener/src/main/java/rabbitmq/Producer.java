@@ -1,53 +1,548 @@
 package rabbitmq;
 
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
 import utils.GlobalLogger;
+import watcher.LogEntry;
+import watcher.LogFormatParser;
+import watcher.LogFormats;
+import watcher.ParseStatus;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.TimeoutException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.logging.log4j.Level;
 
+/**
+ * Publishes log lines through the Transport with confirms. Messages are published without waiting, and the transport
+ * confirms them asynchronously: the RabbitMQ broker once it has taken them, the in-process transport once a Consumer
+ * has handled them. At most MAX_IN_FLIGHT_MESSAGES messages can be unconfirmed at a time, the publishing thread waits
+ * for confirms once the window is full. Nacked messages are published again.
+ * <p>
+ * The lines of a chunk are split by the partition of their remote IP, and each partition gets its own message, see
+ * Partitions. A chunk can be given a callback that runs once every message of the chunk and of every chunk sent before
+ * it has been confirmed, so the caller can advance its checkpoint only up to the last contiguously confirmed chunk.
+ * Callbacks run in the order the chunks were sent.
+ * <p>
+ * Messages the transport can not take, because it is not available or does not confirm in time, are appended to the
+ * Spool on the local disk and replayed from there later.
+ * <p>
+ * Each thread that publishes has one Producer, with its own publisher of the Transport. A Producer is not thread-safe
+ * apart from the confirm handling.
+ */
 public class Producer {
 
-    private Channel channel;
+    private static final ThreadLocal<Producer> PRODUCERS = ThreadLocal.withInitial(() -> new Producer(RabbitMQConfigConstants.SPOOL_ENABLED));
+
+    private final Transport.PublisherListener listener;
+
+    // Null while the transport is not available, opening it again is tried every RECONNECT_INTERVAL_MILLIS
+    private volatile Transport.Publisher publisher;
+    private long nextOpenAttempt;
+
+    // True if messages the transport can not take are appended to the Spool
+    private final boolean isSpooling;
+
+    // Guards the unconfirmed messages and chunks. Confirms arrive on other threads, and the publishing thread may hold
+    // the lock while it waits for the transport, so confirms are queued and handled by whichever thread gets the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<Confirm> confirms = new ConcurrentLinkedQueue<>();
+    private final Queue<PendingMessage> spooledMessages = new ConcurrentLinkedQueue<>();
+
+    // Unconfirmed messages by their publish sequence number, to find them when the transport confirms them
+    private final NavigableMap<Long, PendingMessage> unconfirmedMessages = new TreeMap<>();
+
+    // Messages that could not be published, published again when the transport recovers
+    private final List<PendingMessage> unpublishedMessages = new ArrayList<>();
+
+    // Chunks that have not run their callback yet, in the order they were sent
+    private final NavigableMap<Long, PendingChunk> pendingChunks = new TreeMap<>();
+
+    private final Semaphore inFlight = new Semaphore(RabbitMQConfigConstants.MAX_IN_FLIGHT_MESSAGES);
+
+    // Parses the lines before they are sent, when the BINARY wire format is used
+    private RecordBatchEncoder recordBatchEncoder;
+
+    // Parse the lines only to find their partition, when the TEXT wire format is used with more than one partition
+    private final Map<String, LogFormatParser> routingParsers = new HashMap<>();
+    private final LogEntry routingEntry = new LogEntry();
+
+    private long nextChunkNumber;
+
+    /**
+     * Initializes a Producer instance for sending messages, and opens a publisher of the Transport for it. If the
+     * transport is not available, the publisher is opened later.
+     *
+     * @param isSpooling True to append the messages the transport can not take to the Spool, false to wait for the
+     *                   transport instead.
+     */
+    private Producer(boolean isSpooling) {
+        this.isSpooling = isSpooling;
+        this.listener = new Transport.PublisherListener() {
+            @Override
+            public void handleConfirm(long sequenceNumber, boolean multiple, boolean isAck) {
+                confirms.add(new Confirm(sequenceNumber, multiple, isAck));
+                handleConfirms();
+            }
+
+            @Override
+            public void handleRecovery() {
+                republishUnconfirmed();
+            }
+        };
+
+        openPublisher();
+    }
+
+    /**
+     * Creates a Producer that never appends to the Spool, for replaying the spooled messages.
+     *
+     * @return A new Producer, to be used by a single thread.
+     */
+    static Producer withoutSpool() {
+        return new Producer(false);
+    }
+
+    /**
+     * Returns the Producer of the calling thread, creating it the first time the thread publishes. Producers are
+     * shared by everything that runs on a thread, so the number of publishers grows with the number of threads and not
+     * with the number of watched files. The callbacks of a Producer are only ordered against the chunks sent from its
+     * own thread, a caller that sends from several threads has to order its confirmed chunks itself.
+     *
+     * @return The Producer of the calling thread.
+     */
+    public static Producer forCurrentThread() {
+        return PRODUCERS.get();
+    }
+
+    /**
+     * Sends a single message to the consumers.
+     * @param message The UTF-8 encoded bytes of the message to be sent.
+     */
+    public void send(byte[] message) {
+        send(new PendingChunk(List.of(new TransportMessage(partitionOf(message, null), null, null, message)), null));
+    }
 
     /**
-     * Initializes a Producer instance for sending messages to a RabbitMQ queue. It creates a connection to the RabbitMQ
-     * server and a channel for message publishing.
+     * This method allows you to send multiple messages to the consumers in a single operation.
+     * @param messages A List of UTF-8 encoded messages to be sent.
      */
-    public Producer() {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(RabbitMQConfigConstants.HOST_NAME);
+    public void sendChunk(List<byte[]> messages) {
+        sendChunk(messages, null, null);
+    }
+
+    /**
+     * Sends multiple log lines of the same format to the consumers as one message per partition, without their source.
+     * Elasticsearch generates the ids of the entries, see the overload with a source.
+     * @param messages    A List of UTF-8 encoded log lines to be sent, may be empty to only wait for earlier chunks.
+     * @param format      The name of the log format of the lines, or null to let consumers use the default format.
+     * @param onConfirmed Runs once this chunk and every chunk sent before it have been confirmed, may be null.
+     */
+    public void sendChunk(List<byte[]> messages, String format, Runnable onConfirmed) {
+        sendChunk(messages, format, null, null, onConfirmed);
+    }
+
+    /**
+     * Sends multiple log lines of the same format to the consumers as one message per partition, so the transport
+     * handles a few messages per chunk instead of one per line. With the BINARY wire format the lines are parsed here
+     * and the entries are sent in RecordBatches. With the TEXT wire format the lines are packed into BatchEnvelopes, and
+     * the name of the format is sent in the LOG_FORMAT_HEADER of the messages, so consumers know which parser to use.
+     * <p>
+     * If the source of the lines is given, it is sent along with the position of each line, and the consumers derive
+     * the document ids of the entries from them. A line that is sent again, after a restart or a replay, then replaces
+     * its document in Elasticsearch instead of being indexed twice.
+     * @param messages    A List of UTF-8 encoded log lines to be sent, may be empty to only wait for earlier chunks.
+     * @param format      The name of the log format of the lines, or null to let consumers use the default format.
+     * @param source      Where the lines were read, see watcher.FileIdentity.sourceOf, or null if it is not known.
+     * @param positions   The byte offset of each line in the source, ignored if the source is null.
+     * @param onConfirmed Runs once this chunk and every chunk sent before it have been confirmed, may be null.
+     */
+    public void sendChunk(List<byte[]> messages, String format, String source, long[] positions, Runnable onConfirmed) {
+        List<TransportMessage> partitionMessages = new ArrayList<>();
+        byte[] sourceBytes = source != null ? source.getBytes(StandardCharsets.UTF_8) : null;
+
+        if (messages.isEmpty()) {
+            // Nothing to send, the chunk only waits for the chunks before it
+        } else if (RabbitMQConfigConstants.WIRE_FORMAT == WireFormat.BINARY) {
+            if (recordBatchEncoder == null) {
+                recordBatchEncoder = new RecordBatchEncoder();
+            }
 
+            // A chunk without any parsed line still has to wait for the chunks before it
+            byte[][] recordBatches = recordBatchEncoder.encode(messages, format, source, positions);
+
+            for (int partition = 0; partition < recordBatches.length; partition++) {
+                if (recordBatches[partition] != null) {
+                    partitionMessages.add(new TransportMessage(partition, RecordBatch.CONTENT_TYPE, null, recordBatches[partition]));
+                }
+            }
+        } else if (RabbitMQConfigConstants.PARTITION_COUNT == 1) {
+            partitionMessages.add(envelopeOf(0, messages, format, sourceBytes, positions));
+        } else {
+            List<List<byte[]>> partitionLines = new ArrayList<>();
+            long[][] partitionPositions = new long[RabbitMQConfigConstants.PARTITION_COUNT][];
+
+            for (int partition = 0; partition < RabbitMQConfigConstants.PARTITION_COUNT; partition++) {
+                partitionLines.add(new ArrayList<>());
+            }
+
+            for (int i = 0; i < messages.size(); i++) {
+                byte[] line = messages.get(i);
+                int partition = partitionOf(line, format);
+
+                if (sourceBytes != null) {
+                    if (partitionPositions[partition] == null) {
+                        partitionPositions[partition] = new long[messages.size()];
+                    }
+
+                    partitionPositions[partition][partitionLines.get(partition).size()] = positions[i];
+                }
+
+                partitionLines.get(partition).add(line);
+            }
+
+            for (int partition = 0; partition < partitionLines.size(); partition++) {
+                if (!partitionLines.get(partition).isEmpty()) {
+                    partitionMessages.add(envelopeOf(partition, partitionLines.get(partition), format, sourceBytes, partitionPositions[partition]));
+                }
+            }
+        }
+
+        FlowControl.FLOW_CONTROL.takeCredits(partitionMessages.size());
+        send(new PendingChunk(partitionMessages, onConfirmed));
+    }
+
+    /**
+     * Packs lines into the BatchEnvelope message of a partition.
+     *
+     * @param partition The partition of the lines.
+     * @param lines     The raw bytes of the lines.
+     * @param format    The name of the log format of the lines, or null for the default format.
+     * @param source    The UTF-8 bytes of where the lines were read, or null if it is not known.
+     * @param positions The byte offset of each line in the source, ignored if the source is null.
+     * @return The message.
+     */
+    private static TransportMessage envelopeOf(int partition, List<byte[]> lines, String format, byte[] source, long[] positions) {
+        return source != null
+                ? new TransportMessage(partition, BatchEnvelope.SOURCED_CONTENT_TYPE, format, BatchEnvelope.encode(lines, source, positions))
+                : new TransportMessage(partition, BatchEnvelope.CONTENT_TYPE, format, BatchEnvelope.encode(lines));
+    }
+
+    /**
+     * Sends a message that has already been encoded, such as a message replayed from the Spool.
+     *
+     * @param message     The message to send.
+     * @param onConfirmed Runs once this message and every message sent before it have been confirmed, may be null.
+     */
+    void sendMessage(TransportMessage message, Runnable onConfirmed) {
+        send(new PendingChunk(List.of(message), onConfirmed));
+    }
+
+    /**
+     * Parses a line only to find the partition of its remote IP. Lines that can not be parsed go to partition 0, the
+     * consumer quarantines them.
+     *
+     * @param line   The raw bytes of the line.
+     * @param format The name of the log format of the line, or null for the default format.
+     * @return The partition of the line.
+     */
+    private int partitionOf(byte[] line, String format) {
+        if (RabbitMQConfigConstants.PARTITION_COUNT == 1) {
+            return 0;
+        }
+
+        LogFormatParser parser = routingParsers.computeIfAbsent(String.valueOf(format), name -> LogFormats.LOG_FORMATS.newParser(format));
+
+        return parser.parse(line, 0, line.length, routingEntry) == ParseStatus.PARSED ? Partitions.of(routingEntry) : 0;
+    }
+
+    /**
+     * Registers a chunk in the send order, then publishes its messages. A chunk without messages only waits for the
+     * chunks sent before it.
+     *
+     * @param chunk The chunk to send.
+     */
+    private void send(PendingChunk chunk) {
+        lock.lock();
         try {
-            Connection connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.queueDeclare(RabbitMQConfigConstants.QUEUE_NAME, true, false, false, null);
-        } catch (IOException | TimeoutException e) {
-            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to open RabbitMQ channels:", e);
+            pendingChunks.put(nextChunkNumber++, chunk);
+
+            if (chunk.unconfirmedCount == 0) {
+                chunk.isConfirmed = true;
+                runConfirmedCallbacks();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        handleConfirms();
+
+        for (TransportMessage message : chunk.messages) {
+            if (!send(new PendingMessage(chunk, message))) {
+                // The rest of the chunk is never confirmed, so the checkpoint stays before it and it is sent again
+                // after a restart
+                return;
+            }
         }
     }
 
     /**
-     * Sends a single message to the RabbitMQ queue.
-     * @param message A String representing the message to be sent.
+     * Publishes a message once there is room in the in-flight window.
+     * <p>
+     * A spooling Producer appends the message to the Spool instead if the transport is not available, or if the window
+     * stays full for CONFIRM_TIMEOUT_MILLIS. While the spool has a backlog it does not wait for a full window at all.
+     * The message then counts as confirmed once the spool has forced it to the disk.
+     *
+     * @param message The message to send.
+     * @return True if the message has been published or spooled, false if the thread has been interrupted.
      */
-    public void send(String message) {
+    private boolean send(PendingMessage message) {
         try {
-            channel.basicPublish("", RabbitMQConfigConstants.QUEUE_NAME, null, message.getBytes());
+            if (!hasPublisher() && spool(message)) {
+                return true;
+            }
+
+            if (!inFlight.tryAcquire()) {
+                if (isSpooling && Spool.SPOOL.hasBacklog() && spool(message)) {
+                    return true;
+                }
+
+                while (!inFlight.tryAcquire(RabbitMQConfigConstants.CONFIRM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (spool(message)) {
+                        return true;
+                    }
+
+                    GlobalLogger.getLoggerInstance().log(Level.WARN, "Waiting for the transport to confirm " + RabbitMQConfigConstants.MAX_IN_FLIGHT_MESSAGES + " messages before publishing more.");
+                }
+            }
+
+            while (!hasPublisher()) {
+                Thread.sleep(RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "Interrupted while waiting for the transport to confirm messages, a chunk has not been sent.");
+            return false;
+        }
+
+        lock.lock();
+        try {
+            publish(message);
+        } finally {
+            lock.unlock();
+        }
+
+        handleConfirms();
+        return true;
+    }
+
+    /**
+     * Publishes a message and registers it under its publish sequence number. Must be called while holding the lock,
+     * so the confirm of the message can not be handled before it is registered. A message that can not be published
+     * is spooled, or kept until the transport recovers.
+     *
+     * @param message The message to publish.
+     */
+    private void publish(PendingMessage message) {
+        try {
+            unconfirmedMessages.put(publisher.publish(message.message), message);
+        } catch (IOException | RuntimeException e) {
+            if (isSpooling && Spool.SPOOL.append(message.message, () -> handleSpooled(message))) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "An error occurred trying to publish a message, it has been spooled:", e);
+                inFlight.release();
+            } else {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to publish a message:", e);
+                unpublishedMessages.add(message);
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the Spool instead of publishing it, if this Producer spools.
+     *
+     * @param message The message to spool.
+     * @return True if the message has been spooled, false if it must be published.
+     */
+    private boolean spool(PendingMessage message) {
+        return isSpooling && Spool.SPOOL.append(message.message, () -> handleSpooled(message));
+    }
+
+    /**
+     * Marks a spooled message as confirmed once the Spool has forced it to the disk.
+     *
+     * @param message The spooled message.
+     */
+    private void handleSpooled(PendingMessage message) {
+        spooledMessages.add(message);
+        handleConfirms();
+    }
+
+    /**
+     * @return True if the publisher is open, opening it again if the last attempt is RECONNECT_INTERVAL_MILLIS ago.
+     */
+    private boolean hasPublisher() {
+        if (publisher == null && System.currentTimeMillis() >= nextOpenAttempt) {
+            openPublisher();
+        }
+
+        return publisher != null;
+    }
+
+    private void openPublisher() {
+        nextOpenAttempt = System.currentTimeMillis() + RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS;
+
+        try {
+            publisher = Transport.TRANSPORT.openPublisher(listener);
         } catch (IOException e) {
-            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to send message to RabbitMQ queue:", e);
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "The transport is not available, trying again in " + RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS + " milliseconds:", e);
+        }
+    }
+
+    /**
+     * Handles the queued confirms and spooled messages if no other thread holds the lock. A thread that holds the lock
+     * checks the queue again after releasing it, so a confirm queued meanwhile is never left behind.
+     */
+    private void handleConfirms() {
+        while ((!confirms.isEmpty() || !spooledMessages.isEmpty()) && lock.tryLock()) {
+            try {
+                Confirm confirm;
+                while ((confirm = confirms.poll()) != null) {
+                    handleConfirm(confirm.sequenceNumber, confirm.multiple, confirm.isAck);
+                }
+
+                PendingMessage message;
+                while ((message = spooledMessages.poll()) != null) {
+                    message.chunk.confirmMessage();
+                }
+
+                runConfirmedCallbacks();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Handles an ack or a nack of the transport. Acked messages are marked as confirmed and leave the in-flight
+     * window, nacked messages are published again. Must be called while holding the lock.
+     *
+     * @param sequenceNumber The publish sequence number of the confirmed message.
+     * @param multiple       True if every message up to and including the sequence number is confirmed.
+     * @param isAck          True for an ack, false for a nack.
+     */
+    private void handleConfirm(long sequenceNumber, boolean multiple, boolean isAck) {
+        NavigableMap<Long, PendingMessage> confirmed = multiple
+                ? unconfirmedMessages.headMap(sequenceNumber, true)
+                : unconfirmedMessages.subMap(sequenceNumber, true, sequenceNumber, true);
+
+        PendingMessage[] messages = confirmed.values().toArray(new PendingMessage[0]);
+        confirmed.clear();
+
+        if (isAck) {
+            FlowControl.FLOW_CONTROL.recordConfirmed(messages.length);
         }
+
+        for (PendingMessage message : messages) {
+            if (isAck) {
+                message.chunk.confirmMessage();
+                inFlight.release();
+            } else {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "The transport has nacked a message, publishing it again.");
+                publish(message);
+            }
+        }
+    }
+
+    /**
+     * Publishes every unconfirmed message again after the publisher has recovered from a connection failure. The
+     * transport will never confirm the messages published before the failure, and the sequence numbers start over on
+     * the recovered publisher.
+     */
+    private void republishUnconfirmed() {
+        lock.lock();
+        try {
+            // Confirms queued before the failure refer to the old sequence numbers
+            confirms.clear();
+
+            List<PendingMessage> messages = new ArrayList<>(unconfirmedMessages.values());
+            messages.addAll(unpublishedMessages);
+            unconfirmedMessages.clear();
+            unpublishedMessages.clear();
+
+            if (!messages.isEmpty()) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "The publisher has recovered, publishing " + messages.size() + " unconfirmed messages again.");
+            }
+
+            messages.forEach(this::publish);
+        } finally {
+            lock.unlock();
+        }
+
+        handleConfirms();
+    }
+
+    /**
+     * Runs the callbacks of the chunks at the head of the send order that have been confirmed, up to the first chunk
+     * that has not been. Must be called while holding the lock.
+     */
+    private void runConfirmedCallbacks() {
+        while (!pendingChunks.isEmpty() && pendingChunks.firstEntry().getValue().isConfirmed) {
+            PendingChunk chunk = pendingChunks.pollFirstEntry().getValue();
+
+            if (chunk.onConfirmed != null) {
+                try {
+                    chunk.onConfirmed.run();
+                } catch (RuntimeException e) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to run the callback of a confirmed chunk:", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A sent chunk, kept until every message of it has been confirmed.
+     */
+    private static class PendingChunk {
+
+        private final List<TransportMessage> messages;
+        private final Runnable onConfirmed;
+
+        private int unconfirmedCount;
+        private boolean isConfirmed;
+
+        private PendingChunk(List<TransportMessage> messages, Runnable onConfirmed) {
+            this.messages = messages;
+            this.onConfirmed = onConfirmed;
+            this.unconfirmedCount = messages.size();
+        }
+
+        /**
+         * Counts a confirmed message of the chunk. Must be called while holding the lock.
+         */
+        private void confirmMessage() {
+            if (--unconfirmedCount == 0) {
+                isConfirmed = true;
+            }
+        }
+    }
+
+    /**
+     * A message of a chunk, kept until the transport confirms it so it can be published again if it is nacked.
+     */
+    private record PendingMessage(PendingChunk chunk, TransportMessage message) {
     }
 
     /**
-     * This method allows you to send multiple messages to RabbitMQ queue in a single operation.
-     * @param messages An ArrayList of String objects representing the messages to be sent.
+     * An ack or a nack waiting for the lock.
      */
-    public void sendChunk(ArrayList<String> messages) {
-        messages.forEach(this::send);
+    private record Confirm(long sequenceNumber, boolean multiple, boolean isAck) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package rabbitmq;
+
+import utils.ConfigManager;
+import utils.GlobalLogger;
+import watcher.ParseStatus;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Counts the outcome of parsing every consumed line, and keeps the rejected lines, the ones that should have been
+ * parsed but could not be, in a quarantine file so they can be looked at and replayed later. Each quarantined line is
+ * written as "status format line". Blank and ignored lines, such as the header blocks of log files, are only counted.
+ */
+public class Quarantine {
+
+    public static final Quarantine QUARANTINE = new Quarantine();
+
+    private static final byte[] SEPARATOR = {' '};
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final Map<ParseStatus, LongAdder> counters;
+
+    private OutputStream out;
+
+    private Quarantine() {
+        this.counters = new EnumMap<>(ParseStatus.class);
+
+        for (ParseStatus status : ParseStatus.values()) {
+            counters.put(status, new LongAdder());
+        }
+    }
+
+    /**
+     * Counts the outcome of parsing a line, and writes the line into the quarantine file if it has been rejected.
+     *
+     * @param status The outcome of parsing the line.
+     * @param format The name of the log format the line has been parsed as.
+     * @param buffer A buffer holding the raw bytes of the line.
+     * @param offset Index of the first byte of the line in the buffer.
+     * @param length Number of bytes in the line.
+     */
+    public void record(ParseStatus status, String format, byte[] buffer, int offset, int length) {
+        counters.get(status).increment();
+
+        if (status.isRejected()) {
+            write(status, format, buffer, offset, length);
+        }
+    }
+
+    /**
+     * @param status An outcome of parsing.
+     * @return Number of lines that had the outcome since the program started.
+     */
+    public long getCount(ParseStatus status) {
+        return counters.get(status).sum();
+    }
+
+    /**
+     * Closes the quarantine file. It is opened again if another line is rejected.
+     */
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close the quarantine file:", e);
+        }
+
+        out = null;
+    }
+
+    private synchronized void write(ParseStatus status, String format, byte[] buffer, int offset, int length) {
+        try {
+            if (out == null) {
+                String filePath = ConfigManager.CONFIG_MANAGER.getResourcesPath() + RabbitMQConfigConstants.QUARANTINE_FILE_NAME;
+                out = new BufferedOutputStream(new FileOutputStream(filePath, true));
+            }
+
+            out.write(status.name().getBytes(StandardCharsets.UTF_8));
+            out.write(SEPARATOR);
+            out.write(format.getBytes(StandardCharsets.UTF_8));
+            out.write(SEPARATOR);
+            out.write(buffer, offset, length);
+            out.write(NEW_LINE);
+
+            // Rejected lines are rare, losing them when the program is killed would make them hard to track down
+            out.flush();
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to write to the quarantine file:", e);
+        }
+    }
+}
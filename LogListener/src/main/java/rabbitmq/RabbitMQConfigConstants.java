@@ -5,4 +5,36 @@ public interface RabbitMQConfigConstants {
     String HOST_NAME = "localhost";
     int CHUNK_SIZE = 10000;
     boolean AUTO_ACKNOWLEDGE_MESSAGES = false;
+    int PREFETCH_COUNT = 4;
+    int ACK_BATCH_SIZE = 2;
+    long ACK_INTERVAL_MILLIS = 1000;
+    String LOG_FORMAT_HEADER = "log-format";
+    WireFormat WIRE_FORMAT = WireFormat.BINARY;
+    boolean LZ4_COMPRESSION = true;
+    int RECORD_DICTIONARY_CAPACITY = 4096;
+    String QUARANTINE_FILE_NAME = "quarantine.log";
+    int MAX_IN_FLIGHT_MESSAGES = 64;
+    long CONFIRM_TIMEOUT_MILLIS = 30000;
+    int PUBLISHER_CONNECTION_COUNT = 2;
+    int CONSUMER_CONNECTION_COUNT = 2;
+    long NETWORK_RECOVERY_INTERVAL_MILLIS = 5000;
+    long CLOSE_TIMEOUT_MILLIS = 10000;
+    TransportType TRANSPORT_TYPE = TransportType.RABBITMQ;
+    int IN_PROCESS_QUEUE_CAPACITY = 256;
+    int IN_PROCESS_BATCH_SIZE = 4;
+    long IN_PROCESS_MAX_IDLE_PARK_MICROS = 2000;
+    long RECONNECT_INTERVAL_MILLIS = 5000;
+    boolean SPOOL_ENABLED = true;
+    String SPOOL_DIRECTORY_NAME = "spool";
+    int SPOOL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    int SPOOL_MAX_SEGMENTS = 64;
+    long SPOOL_FSYNC_INTERVAL_MILLIS = 200;
+    long SPOOL_FSYNC_BATCH_BYTES = 4 * 1024 * 1024;
+    boolean FLOW_CONTROL_ENABLED = true;
+    long FLOW_CONTROL_INTERVAL_MILLIS = 200;
+    int MAX_QUEUE_DEPTH = 128;
+    long INDEX_LATENCY_TARGET_MILLIS = 500;
+    int PARTITION_COUNT = 16;
+    boolean SINGLE_ACTIVE_CONSUMER = true;
+    int CONSUMER_COUNT = 16;
 }
@@ -0,0 +1,347 @@
+package rabbitmq;
+
+import com.rabbitmq.client.*;
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Carries messages through a queue of a RabbitMQ broker per partition. Publishers use publisher confirms, so a message
+ * is confirmed once the broker has taken it. Each publisher and subscription has its own channel on the shared
+ * connections of the ConnectionManager.
+ */
+class RabbitMQTransport implements Transport {
+
+    // Acknowledges the messages of idle consumers, so the broker does not wait for a full batch of acks forever
+    private static final ScheduledExecutorService ACK_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "consumer-acks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Channel for reading the depth of the queue, opened again at most every RECONNECT_INTERVAL_MILLIS while it fails
+    private Channel depthChannel;
+    private long nextDepthChannelAttempt;
+
+    @Override
+    public Publisher openPublisher(PublisherListener listener) throws IOException {
+        Channel channel = ConnectionManager.CONNECTION_MANAGER.createPublisherChannel();
+        channel.confirmSelect();
+        channel.addConfirmListener(
+                (sequenceNumber, multiple) -> listener.handleConfirm(sequenceNumber, multiple, true),
+                (sequenceNumber, multiple) -> listener.handleConfirm(sequenceNumber, multiple, false));
+
+        if (channel instanceof Recoverable recoverable) {
+            recoverable.addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recovered) {
+                    listener.handleRecovery();
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recovering) {
+                }
+            });
+        }
+
+        return message -> {
+            AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
+                    .contentType(message.getContentType());
+
+            if (message.getFormat() != null) {
+                properties.headers(Map.of(RabbitMQConfigConstants.LOG_FORMAT_HEADER, message.getFormat()));
+            }
+
+            long sequenceNumber = channel.getNextPublishSeqNo();
+            channel.basicPublish("", Partitions.queueName(message.getPartition()), properties.build(), message.getBody());
+
+            return sequenceNumber;
+        };
+    }
+
+    @Override
+    public Subscription subscribe(MessageHandler handler, int partition) throws IOException {
+        RabbitMQSubscription subscription = new RabbitMQSubscription(ConnectionManager.CONNECTION_MANAGER.createConsumerChannel(), partition);
+        subscription.start(handler);
+
+        return subscription;
+    }
+
+    /**
+     * Reads the number of messages ready in the queues of every partition from the broker, which does not include the
+     * messages prefetched by the consumers.
+     */
+    @Override
+    public synchronized long getQueueDepth() {
+        try {
+            if (depthChannel == null || !depthChannel.isOpen()) {
+                if (System.currentTimeMillis() < nextDepthChannelAttempt) {
+                    return -1;
+                }
+
+                nextDepthChannelAttempt = System.currentTimeMillis() + RabbitMQConfigConstants.RECONNECT_INTERVAL_MILLIS;
+                depthChannel = ConnectionManager.CONNECTION_MANAGER.createConsumerChannel();
+            }
+
+            long depth = 0;
+
+            for (int partition = 0; partition < RabbitMQConfigConstants.PARTITION_COUNT; partition++) {
+                depth += depthChannel.queueDeclarePassive(Partitions.queueName(partition)).getMessageCount();
+            }
+
+            return depth;
+        } catch (IOException | AlreadyClosedException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        ConnectionManager.CONNECTION_MANAGER.close();
+    }
+
+    /**
+     * Consumes the queue of a partition on its own channel. Processed messages are acknowledged together, every
+     * ACK_BATCH_SIZE messages or every ACK_INTERVAL_MILLIS milliseconds, whichever comes first. Messages may finish
+     * processing out of order, a multiple ack only covers the messages up to the first one that is still being
+     * processed.
+     * <p>
+     * The broker only applies a new prefetch to consumers started after it is set, and starting the consumer again
+     * would hand a single-active-consumer queue over to another instance. The channel therefore keeps the largest
+     * prefetch, PREFETCH_COUNT, and the prefetch of the FlowControl is enforced by holding back acks: the last
+     * PREFETCH_COUNT minus prefetch delivered messages are left unacknowledged, so the broker only has room to deliver
+     * as many messages as the prefetch allows. They are acknowledged once the prefetch grows again or the
+     * subscription closes. With AUTO_ACKNOWLEDGE_MESSAGES the broker does not wait for acks, and the prefetch does not
+     * apply.
+     */
+    private static class RabbitMQSubscription implements Subscription {
+
+        private final Channel channel;
+        private final int partition;
+        private ScheduledFuture<?> ackTask;
+        private String consumerTag;
+
+        // Delivery tags of the messages that are being processed, in delivery order
+        private final NavigableSet<Long> processingTags = new TreeSet<>();
+
+        // Delivery tags start over when the channel recovers, processed messages of an earlier generation are ignored
+        private long generation;
+
+        // Highest delivered tag, last acknowledged tag and processed messages that are not acknowledged yet
+        private long lastDeliveryTag;
+        private long lastAckedTag;
+        private int unackedCount;
+
+        private RabbitMQSubscription(Channel channel, int partition) {
+            this.channel = channel;
+            this.partition = partition;
+        }
+
+        private void start(MessageHandler handler) throws IOException {
+            // Bound the unacknowledged messages the broker pushes to this consumer, a smaller prefetch is enforced by
+            // holding back acks
+            channel.basicQos(RabbitMQConfigConstants.PREFETCH_COUNT);
+
+            if (channel instanceof Recoverable recoverable) {
+                recoverable.addRecoveryListener(new RecoveryListener() {
+                    @Override
+                    public void handleRecovery(Recoverable recovered) {
+                    }
+
+                    @Override
+                    public void handleRecoveryStarted(Recoverable recovering) {
+                        forgetUnacked();
+                    }
+                });
+            }
+
+            DeliverCallback deliverCallback = (s, delivery) -> {
+                Object header = delivery.getProperties().getHeaders() != null
+                        ? delivery.getProperties().getHeaders().get(RabbitMQConfigConstants.LOG_FORMAT_HEADER)
+                        : null;
+
+                TransportMessage message = new TransportMessage(
+                        partition,
+                        delivery.getProperties().getContentType(),
+                        // Header values arrive as LongString
+                        header != null ? header.toString() : null,
+                        delivery.getBody());
+
+                if (RabbitMQConfigConstants.AUTO_ACKNOWLEDGE_MESSAGES) {
+                    handler.handle(message, () -> {
+                    });
+                } else {
+                    long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+                    long deliveryGeneration = markDelivered(deliveryTag);
+
+                    // Acknowledge the message after processing, rejected lines too so they are not redelivered forever
+                    handler.handle(message, () -> markProcessed(deliveryTag, deliveryGeneration));
+                }
+            };
+
+            if (!RabbitMQConfigConstants.AUTO_ACKNOWLEDGE_MESSAGES) {
+                ackTask = ACK_SCHEDULER.scheduleWithFixedDelay(this::ackProcessed,
+                        RabbitMQConfigConstants.ACK_INTERVAL_MILLIS,
+                        RabbitMQConfigConstants.ACK_INTERVAL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+
+            consumerTag = channel.basicConsume(
+                    Partitions.queueName(partition),
+                    RabbitMQConfigConstants.AUTO_ACKNOWLEDGE_MESSAGES,
+                    deliverCallback,
+                    tag -> {
+                    });
+        }
+
+        /**
+         * Registers a delivered message as being processed.
+         *
+         * @param deliveryTag The delivery tag of the message.
+         * @return The generation of the delivery tag.
+         */
+        private synchronized long markDelivered(long deliveryTag) {
+            processingTags.add(deliveryTag);
+            lastDeliveryTag = deliveryTag;
+
+            return generation;
+        }
+
+        /**
+         * Counts a processed message, and acknowledges it along with the messages processed before it once there are
+         * ACK_BATCH_SIZE of them on top of the held back ones. The batch never exceeds the prefetch window, otherwise
+         * the broker would stop delivering before the batch is full.
+         *
+         * @param deliveryTag        The delivery tag of the processed message.
+         * @param deliveryGeneration The generation of the delivery tag.
+         */
+        private synchronized void markProcessed(long deliveryTag, long deliveryGeneration) {
+            if (deliveryGeneration != generation || !processingTags.remove(deliveryTag)) {
+                return;
+            }
+
+            unackedCount++;
+
+            int prefetch = FlowControl.FLOW_CONTROL.getPrefetch();
+
+            if (unackedCount >= heldBackCount(prefetch) + Math.min(RabbitMQConfigConstants.ACK_BATCH_SIZE, prefetch)) {
+                ackProcessed();
+            }
+
+            if (processingTags.isEmpty()) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * @param prefetch The prefetch of the FlowControl.
+         * @return The number of delivered messages to leave unacknowledged, so the broker can only deliver as many
+         * messages as the prefetch allows.
+         */
+        private static int heldBackCount(int prefetch) {
+            return Math.max(0, RabbitMQConfigConstants.PREFETCH_COUNT - prefetch);
+        }
+
+        /**
+         * Acknowledges the processed messages, holding back the last delivered ones as long as the prefetch of the
+         * FlowControl is below PREFETCH_COUNT.
+         */
+        private synchronized void ackProcessed() {
+            ackProcessed(heldBackCount(FlowControl.FLOW_CONTROL.getPrefetch()));
+        }
+
+        /**
+         * Acknowledges every processed message up to the first message that is still being processed with a single
+         * multiple ack. Delivery tags of a channel are consecutive, and this channel has a single consumer, so the
+         * acked messages are counted by their tags.
+         *
+         * @param heldBackCount The number of last delivered messages to leave unacknowledged.
+         */
+        private synchronized void ackProcessed(int heldBackCount) {
+            long ackableTag = processingTags.isEmpty() ? lastDeliveryTag : processingTags.first() - 1;
+            ackableTag = Math.min(ackableTag, lastDeliveryTag - heldBackCount);
+
+            if (unackedCount == 0 || ackableTag <= lastAckedTag) {
+                return;
+            }
+
+            try {
+                channel.basicAck(ackableTag, true);
+            } catch (AlreadyClosedException | IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "An error occurred trying to acknowledge messages on a RabbitMQ channel that has been closed, they will be delivered again:", e);
+            }
+
+            lastAckedTag = ackableTag;
+
+            // The messages after the acked tag that are not being processed anymore are the held back ones
+            unackedCount = (int) (lastDeliveryTag - lastAckedTag) - processingTags.size();
+        }
+
+        /**
+         * Forgets the messages that have not been acknowledged yet. Delivery tags start over when a channel recovers,
+         * and the broker delivers the unacknowledged messages again.
+         */
+        private synchronized void forgetUnacked() {
+            generation++;
+            processingTags.clear();
+            lastDeliveryTag = 0;
+            lastAckedTag = 0;
+            unackedCount = 0;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (consumerTag != null && channel.isOpen()) {
+                    channel.basicCancel(consumerTag);
+                }
+            } catch (AlreadyClosedException | IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "An error occurred trying to cancel a RabbitMQ consumer:", e);
+            }
+
+            // Acknowledge what has been processed so far, so it is not delivered again
+            if (ackTask != null) {
+                ackTask.cancel(false);
+                awaitProcessing();
+                ackProcessed(0);
+            }
+
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close a RabbitMQ channel:", e);
+            }
+        }
+
+        /**
+         * Waits up to CLOSE_TIMEOUT_MILLIS for the delivered messages to be processed.
+         */
+        private synchronized void awaitProcessing() {
+            long deadline = System.currentTimeMillis() + RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS;
+
+            try {
+                while (!processingTags.isEmpty() && System.currentTimeMillis() < deadline) {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (!processingTags.isEmpty()) {
+                GlobalLogger.getLoggerInstance().log(Level.WARN, processingTags.size() + " RabbitMQ messages have not been processed before closing, they will be delivered again.");
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package rabbitmq;
+
+import watcher.LogEntry;
+
+/**
+ * Layout of a batch of parsed log entries sent as a single RabbitMQ message. Lines are parsed by the producer, and
+ * the fields of the entries are written in a compact binary form, so consumers read the entries without parsing:
+ * <pre>
+ * header:  [version: byte] [flags: byte] [record count: varint] [payload length: varint]
+ *          ([source length: varint] [source]) [payload]
+ * record:  ([position delta: zigzag varint]) [timestamp delta: zigzag varint]
+ *          [protocol, direction, message kind, rcode, record type: byte each] [remote ip] [text fields]
+ * </pre>
+ * <ul>
+ *     <li>The parts in parentheses are only written if the source flag is set. The source is the UTF-8 name of where
+ *     the lines were read, see watcher.FileIdentity.sourceOf, and the position of a record is the byte offset of its
+ *     line in the source, written as the difference to the position of the previous record. Consumers derive the
+ *     document ids of the entries from them.</li>
+ *     <li>The timestamp is the difference to the timestamp of the previous record, which is 0 for the first one.</li>
+ *     <li>Enums are written as their ordinal plus one, 0 stands for null. Producers and consumers must run the same
+ *     version of the enums.</li>
+ *     <li>An IPv4 remote address is written as a REMOTE_IP_V4 tag and its 4 bytes, any other address as a
+ *     REMOTE_IP_TEXT tag and a text field.</li>
+ *     <li>Text fields are written in the order of their LogEntry index. A field an enum already holds is left out.
+ *     Each text field is a varint code: NULL_TEXT, LITERAL_TEXT followed by the length and the bytes of the text, or
+ *     the index of an earlier literal of the batch plus FIRST_REFERENCE. Repeated values such as dates, contexts and
+ *     names are therefore written only once per batch.</li>
+ * </ul>
+ * If the LZ4 flag is set, the payload is LZ4 compressed and the payload length is its length before compression.
+ */
+final class RecordBatch {
+
+    // Content type of messages holding a record batch
+    static final String CONTENT_TYPE = "application/x-dns-log-records";
+
+    // Version 2 added the source flag, consumers still read version 1 batches
+    static final byte VERSION = 2;
+    static final byte FLAG_LZ4 = 1;
+    static final byte FLAG_SOURCE = 2;
+
+    static final byte REMOTE_IP_NULL = 0;
+    static final byte REMOTE_IP_TEXT = 1;
+    static final byte REMOTE_IP_V4 = 4;
+
+    static final int NULL_TEXT = 0;
+    static final int LITERAL_TEXT = 1;
+    static final int FIRST_REFERENCE = 2;
+
+    private RecordBatch() {
+    }
+
+    /**
+     * @param entry An entry.
+     * @param field Index of a text field of the entry.
+     * @return True if the field is held by an enum of the entry, so it is not written as text.
+     */
+    static boolean isHeldByEnum(LogEntry entry, int field) {
+        return switch (field) {
+            case LogEntry.UDP_TCP_INDICATOR -> entry.getProtocol() != null;
+            case LogEntry.SEND_RECEIVE_INDICATOR -> entry.getDirection() != null;
+            case LogEntry.QUERY_RESPONSE -> entry.getMessageKind() != null;
+            case LogEntry.FLAGS_CHAR -> entry.getRcode() != null;
+            case LogEntry.RESPONSE_CODE -> entry.getRecordType() != null;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,302 @@
+package rabbitmq;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import watcher.Direction;
+import watcher.LogEntry;
+import watcher.MessageKind;
+import watcher.Protocol;
+import watcher.RecordType;
+import watcher.ResponseCode;
+
+/**
+ * Reads the entries of RecordBatch messages one by one. Text fields are not copied, the fields of an entry point
+ * into the message, or into the buffer it has been decompressed into. The buffers are reused for every message, so
+ * one instance must only be used by one thread, and an entry must be used before the next message is read.
+ */
+class RecordBatchDecoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private static final Protocol[] PROTOCOLS = Protocol.values();
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final MessageKind[] MESSAGE_KINDS = MessageKind.values();
+    private static final ResponseCode[] RESPONSE_CODES = ResponseCode.values();
+    private static final RecordType[] RECORD_TYPES = RecordType.values();
+
+    private final LZ4SafeDecompressor decompressor;
+    private final int[] literalStarts;
+    private final int[] literalEnds;
+
+    private byte[] buffer;
+    private byte[] payload;
+    private int position;
+    private int end;
+    private int remainingRecords;
+    private int literalCount;
+    private long previousTimestamp;
+    private long linePosition;
+    private boolean isCorrupt;
+
+    // The source of the batch lies in the header of the message, which is never compressed
+    private byte[] message;
+    private int sourceStart;
+    private int sourceLength;
+
+    RecordBatchDecoder() {
+        this.decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+        this.literalStarts = new int[RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY];
+        this.literalEnds = new int[RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY];
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    /**
+     * Starts reading the entries of a record batch.
+     *
+     * @param message The record batch.
+     */
+    void reset(byte[] message) {
+        this.message = message;
+        payload = message;
+        position = 0;
+        end = message.length;
+        literalCount = 0;
+        previousTimestamp = 0;
+        linePosition = 0;
+        sourceStart = 0;
+        sourceLength = -1;
+        isCorrupt = false;
+
+        byte version = readByte();
+        byte flags = readByte();
+        remainingRecords = (int) readVarint();
+        int payloadLength = (int) readVarint();
+
+        if (isCorrupt || version < 1 || version > RecordBatch.VERSION || remainingRecords < 0 || payloadLength < 0) {
+            isCorrupt = true;
+            remainingRecords = 0;
+            return;
+        }
+
+        if ((flags & RecordBatch.FLAG_SOURCE) != 0) {
+            long length = readVarint();
+
+            if (isCorrupt || length < 0 || length > end - position) {
+                isCorrupt = true;
+                remainingRecords = 0;
+                return;
+            }
+
+            sourceStart = position;
+            sourceLength = (int) length;
+            position += sourceLength;
+        }
+
+        if ((flags & RecordBatch.FLAG_LZ4) != 0) {
+            if (buffer.length < payloadLength) {
+                buffer = new byte[Math.max(buffer.length * 2, payloadLength)];
+            }
+
+            // Bounded by the length of the message, a cut off payload fails instead of being read past its end
+            try {
+                if (decompressor.decompress(message, position, end - position, buffer, 0, payloadLength) != payloadLength) {
+                    isCorrupt = true;
+                    remainingRecords = 0;
+                    return;
+                }
+            } catch (LZ4Exception e) {
+                isCorrupt = true;
+                remainingRecords = 0;
+                return;
+            }
+
+            payload = buffer;
+            position = 0;
+            end = payloadLength;
+        } else if (end - position != payloadLength) {
+            isCorrupt = true;
+            remainingRecords = 0;
+        }
+    }
+
+    /**
+     * Reads the next entry of the batch.
+     *
+     * @param entry The entry to fill, its previous content is cleared.
+     * @return True if an entry has been read, false if all entries have been read or the batch is corrupt.
+     */
+    boolean next(LogEntry entry) {
+        if (remainingRecords <= 0 || isCorrupt) {
+            return false;
+        }
+
+        entry.reset(payload);
+
+        if (hasSource()) {
+            long positionZigzag = readVarint();
+            linePosition += (positionZigzag >>> 1) ^ -(positionZigzag & 1);
+        }
+
+        long zigzag = readVarint();
+        previousTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+        entry.setTimestamp(previousTimestamp);
+
+        entry.setProtocol(valueOf(PROTOCOLS, readByte()));
+        entry.setDirection(valueOf(DIRECTIONS, readByte()));
+        entry.setMessageKind(valueOf(MESSAGE_KINDS, readByte()));
+        entry.setRcode(valueOf(RESPONSE_CODES, readByte()));
+        entry.setRecordType(valueOf(RECORD_TYPES, readByte()));
+
+        readRemoteIp(entry);
+
+        for (int field = 0; field < LogEntry.FIELD_COUNT && !isCorrupt; field++) {
+            if (field != LogEntry.REMOTE_IP && !RecordBatch.isHeldByEnum(entry, field)) {
+                readText(entry, field);
+            }
+        }
+
+        remainingRecords--;
+
+        return !isCorrupt;
+    }
+
+    /**
+     * @return True if the batch ended before all of its entries could be read, or could not be read at all.
+     */
+    boolean isCorrupt() {
+        return isCorrupt;
+    }
+
+    /**
+     * @return True if the batch carries the source and the positions of its lines.
+     */
+    boolean hasSource() {
+        return sourceLength >= 0;
+    }
+
+    /**
+     * @return The buffer holding the UTF-8 bytes of the source of the batch, see getSourceStart and getSourceLength.
+     */
+    byte[] getSource() {
+        return message;
+    }
+
+    /**
+     * @return Index of the first byte of the source in the buffer returned by getSource.
+     */
+    int getSourceStart() {
+        return sourceStart;
+    }
+
+    /**
+     * @return Number of bytes in the source, -1 if the batch does not carry one.
+     */
+    int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * @return The byte offset in the source of the line of the last entry read, if the batch carries a source.
+     */
+    long getLinePosition() {
+        return linePosition;
+    }
+
+    private void readRemoteIp(LogEntry entry) {
+        byte tag = readByte();
+
+        if (tag == RecordBatch.REMOTE_IP_TEXT) {
+            readText(entry, LogEntry.REMOTE_IP);
+        } else if (tag == RecordBatch.REMOTE_IP_V4) {
+            if (end - position < 4) {
+                isCorrupt = true;
+                return;
+            }
+
+            String ip = (payload[position] & 0xFF) + "." + (payload[position + 1] & 0xFF) + "."
+                    + (payload[position + 2] & 0xFF) + "." + (payload[position + 3] & 0xFF);
+            entry.setField(LogEntry.REMOTE_IP, ip);
+            position += 4;
+        } else if (tag != RecordBatch.REMOTE_IP_NULL) {
+            isCorrupt = true;
+        }
+    }
+
+    private void readText(LogEntry entry, int field) {
+        long code = readVarint();
+
+        if (code == RecordBatch.NULL_TEXT) {
+            return;
+        }
+
+        if (code == RecordBatch.LITERAL_TEXT) {
+            long length = readVarint();
+
+            if (length < 0 || length > end - position) {
+                isCorrupt = true;
+                return;
+            }
+
+            int start = position;
+            position += (int) length;
+            entry.setField(field, start, position);
+
+            // Mirrors the encoder, which only keeps the first literals
+            if (literalCount < literalStarts.length) {
+                literalStarts[literalCount] = start;
+                literalEnds[literalCount] = position;
+            }
+
+            literalCount++;
+            return;
+        }
+
+        long literal = code - RecordBatch.FIRST_REFERENCE;
+
+        if (literal >= Math.min(literalCount, literalStarts.length)) {
+            isCorrupt = true;
+            return;
+        }
+
+        entry.setField(field, literalStarts[(int) literal], literalEnds[(int) literal]);
+    }
+
+    private <E> E valueOf(E[] values, byte code) {
+        if (code == 0) {
+            return null;
+        }
+
+        if (code < 0 || code > values.length) {
+            isCorrupt = true;
+            return null;
+        }
+
+        return values[code - 1];
+    }
+
+    private byte readByte() {
+        if (position >= end) {
+            isCorrupt = true;
+            return 0;
+        }
+
+        return payload[position++];
+    }
+
+    private long readVarint() {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        isCorrupt = true;
+        return 0;
+    }
+}
@@ -0,0 +1,315 @@
+package rabbitmq;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import watcher.LogEntry;
+import watcher.LogFormatParser;
+import watcher.LogFormats;
+import watcher.ParseStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses chunks of log lines and writes the parsed entries into RecordBatch messages, one per partition of the
+ * queue. Lines that can not be parsed are recorded in the Quarantine here, only parsed entries are sent. The buffers
+ * and parsers are reused for every chunk, so one instance must only be used by one thread.
+ */
+class RecordBatchEncoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 2 + 5 + 5;
+
+    // Open addressing table of the literals, at least twice the size of the dictionary so probe sequences stay short
+    private static final int TABLE_SIZE = Integer.highestOneBit(RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY) * 4;
+
+    private final Map<String, LogFormatParser> parsers;
+    private final LogEntry entry;
+    private final LZ4Compressor compressor;
+
+    // The batch of each partition, created the first time an entry is routed to it
+    private final Batch[] batches;
+
+    RecordBatchEncoder() {
+        this.parsers = new HashMap<>();
+        this.entry = new LogEntry();
+        this.compressor = LZ4Factory.fastestInstance().fastCompressor();
+        this.batches = new Batch[RabbitMQConfigConstants.PARTITION_COUNT];
+    }
+
+    /**
+     * Parses lines and writes the parsed entries into the record batch of the partition of their remote IP.
+     *
+     * @param lines     The raw bytes of the lines.
+     * @param format    The name of the log format of the lines, or null for the default format.
+     * @param source    Where the lines were read, or null if the positions of the lines are not known.
+     * @param positions The byte offset of each line in the source, ignored if the source is null.
+     * @return The record batch of each partition, null for the partitions none of the lines went to.
+     */
+    byte[][] encode(List<byte[]> lines, String format, String source, long[] positions) {
+        LogFormatParser parser = parsers.computeIfAbsent(String.valueOf(format), name -> LogFormats.LOG_FORMATS.newParser(format));
+        byte[] sourceBytes = source != null ? source.getBytes(StandardCharsets.UTF_8) : null;
+
+        for (Batch batch : batches) {
+            if (batch != null) {
+                batch.reset(sourceBytes);
+            }
+        }
+
+        for (int i = 0; i < lines.size(); i++) {
+            byte[] line = lines.get(i);
+            ParseStatus status = parser.parse(line, 0, line.length, entry);
+            Quarantine.QUARANTINE.record(status, parser.getFormatName(), line, 0, line.length);
+
+            if (status == ParseStatus.PARSED) {
+                int partition = Partitions.of(entry);
+
+                if (batches[partition] == null) {
+                    batches[partition] = new Batch();
+                    batches[partition].reset(sourceBytes);
+                }
+
+                batches[partition].writeRecord(entry, sourceBytes != null ? positions[i] : 0);
+            }
+        }
+
+        byte[][] recordBatches = new byte[batches.length][];
+
+        for (int partition = 0; partition < batches.length; partition++) {
+            if (batches[partition] != null && batches[partition].recordCount > 0) {
+                recordBatches[partition] = batches[partition].toBytes(compressor);
+            }
+        }
+
+        return recordBatches;
+    }
+
+    /**
+     * The record batch of one partition while it is being written.
+     */
+    private static class Batch {
+
+        private final int[] table;
+        private final int[] literalStarts;
+        private final int[] literalLengths;
+        private final int[] literalHashes;
+        private int literalCount;
+
+        private byte[] payload;
+        private int position;
+        private int recordCount;
+        private long previousTimestamp;
+        private long previousPosition;
+        private byte[] source;
+
+        private Batch() {
+            this.table = new int[TABLE_SIZE];
+            this.literalStarts = new int[RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY];
+            this.literalLengths = new int[RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY];
+            this.literalHashes = new int[RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY];
+            this.payload = new byte[INITIAL_BUFFER_SIZE];
+        }
+
+        private void reset(byte[] source) {
+            Arrays.fill(table, 0);
+            literalCount = 0;
+            position = 0;
+            recordCount = 0;
+            previousTimestamp = 0;
+            previousPosition = 0;
+            this.source = source;
+        }
+
+        /**
+         * Writes the header and the payload, compressed with LZ4 if it is enabled and makes the payload smaller.
+         */
+        private byte[] toBytes(LZ4Compressor compressor) {
+            byte[] body = payload;
+            int bodyLength = position;
+            byte flags = 0;
+
+            if (RabbitMQConfigConstants.LZ4_COMPRESSION) {
+                byte[] compressed = new byte[compressor.maxCompressedLength(position)];
+                int compressedLength = compressor.compress(payload, 0, position, compressed, 0, compressed.length);
+
+                if (compressedLength < position) {
+                    body = compressed;
+                    bodyLength = compressedLength;
+                    flags |= RecordBatch.FLAG_LZ4;
+                }
+            }
+
+            if (source != null) {
+                flags |= RecordBatch.FLAG_SOURCE;
+            }
+
+            byte[] header = new byte[MAX_HEADER_SIZE + (source != null ? 5 + source.length : 0)];
+            header[0] = RecordBatch.VERSION;
+            header[1] = flags;
+            int headerLength = writeVarint(header, 2, recordCount);
+            headerLength = writeVarint(header, headerLength, position);
+
+            if (source != null) {
+                headerLength = writeVarint(header, headerLength, source.length);
+                System.arraycopy(source, 0, header, headerLength, source.length);
+                headerLength += source.length;
+            }
+
+            byte[] batch = new byte[headerLength + bodyLength];
+            System.arraycopy(header, 0, batch, 0, headerLength);
+            System.arraycopy(body, 0, batch, headerLength, bodyLength);
+
+            return batch;
+        }
+
+        private void writeRecord(LogEntry entry, long linePosition) {
+            ensureCapacity(10 + 10 + 5);
+
+            if (source != null) {
+                long positionDelta = linePosition - previousPosition;
+                previousPosition = linePosition;
+                position = writeVarint(payload, position, (positionDelta << 1) ^ (positionDelta >> 63));
+            }
+
+            long timestamp = entry.getTimestamp();
+            long delta = timestamp - previousTimestamp;
+            previousTimestamp = timestamp;
+
+            position = writeVarint(payload, position, (delta << 1) ^ (delta >> 63));
+            payload[position++] = ordinalOf(entry.getProtocol());
+            payload[position++] = ordinalOf(entry.getDirection());
+            payload[position++] = ordinalOf(entry.getMessageKind());
+            payload[position++] = ordinalOf(entry.getRcode());
+            payload[position++] = ordinalOf(entry.getRecordType());
+
+            writeRemoteIp(entry);
+
+            for (int field = 0; field < LogEntry.FIELD_COUNT; field++) {
+                if (field != LogEntry.REMOTE_IP && !RecordBatch.isHeldByEnum(entry, field)) {
+                    writeText(entry.getLine(), entry.getFieldStart(field), entry.getFieldEnd(field));
+                }
+            }
+
+            recordCount++;
+        }
+
+        private void writeRemoteIp(LogEntry entry) {
+            byte[] line = entry.getLine();
+            int start = entry.getFieldStart(LogEntry.REMOTE_IP);
+            int end = entry.getFieldEnd(LogEntry.REMOTE_IP);
+
+            ensureCapacity(5);
+
+            if (start == -1) {
+                payload[position++] = RecordBatch.REMOTE_IP_NULL;
+                return;
+            }
+
+            int octetCount = 0;
+            int octet = 0;
+            int digits = 0;
+
+            for (int i = start; i <= end; i++) {
+                byte b = i < end ? line[i] : (byte) '.';
+
+                if (b >= '0' && b <= '9' && digits < 3 && !(digits == 1 && octet == 0)) {
+                    octet = octet * 10 + (b - '0');
+                    digits++;
+                } else if (b == '.' && digits > 0 && octet <= 255 && octetCount < 4) {
+                    payload[position + 1 + octetCount++] = (byte) octet;
+                    octet = 0;
+                    digits = 0;
+                } else {
+                    octetCount = -1;
+                    break;
+                }
+            }
+
+            if (octetCount == 4) {
+                payload[position] = RecordBatch.REMOTE_IP_V4;
+                position += 5;
+            } else {
+                // IPv6 and anything that does not round-trip as a dotted quad is kept as it is written
+                payload[position++] = RecordBatch.REMOTE_IP_TEXT;
+                writeText(line, start, end);
+            }
+        }
+
+        /**
+         * Writes a text field, as a reference if the same text has already been written into the batch.
+         */
+        private void writeText(byte[] src, int start, int end) {
+            ensureCapacity(5);
+
+            if (start == -1) {
+                position = writeVarint(payload, position, RecordBatch.NULL_TEXT);
+                return;
+            }
+
+            int length = end - start;
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + src[i];
+            }
+
+            int slot = mix(hash) & (TABLE_SIZE - 1);
+            while (table[slot] != 0) {
+                int literal = table[slot] - 1;
+
+                if (literalHashes[literal] == hash
+                        && literalLengths[literal] == length
+                        && Arrays.equals(payload, literalStarts[literal], literalStarts[literal] + length, src, start, end)) {
+                    position = writeVarint(payload, position, literal + RecordBatch.FIRST_REFERENCE);
+                    return;
+                }
+
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+
+            ensureCapacity(5 + 5 + length);
+            position = writeVarint(payload, position, RecordBatch.LITERAL_TEXT);
+            position = writeVarint(payload, position, length);
+
+            // Only the first literals are kept, the consumer stops adding literals to its dictionary at the same point
+            if (literalCount < literalStarts.length) {
+                literalStarts[literalCount] = position;
+                literalLengths[literalCount] = length;
+                literalHashes[literalCount] = hash;
+                table[slot] = literalCount + 1;
+            }
+
+            literalCount++;
+
+            System.arraycopy(src, start, payload, position, length);
+            position += length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (payload.length - position < length) {
+                payload = Arrays.copyOf(payload, Math.max(payload.length * 2, position + length));
+            }
+        }
+    }
+
+    private static byte ordinalOf(Enum<?> value) {
+        return (byte) (value != null ? value.ordinal() + 1 : 0);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[position++] = (byte) value;
+
+        return position;
+    }
+}
@@ -0,0 +1,175 @@
+package rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue for any number of producer and consumer threads that never takes a lock. Each slot of the ring
+ * carries a sequence number telling whose turn it is: the slot at position p can be written when its sequence is p,
+ * and read when its sequence is p + 1. Producers and consumers claim positions by advancing the tail and the head with
+ * a compare-and-set, and hand the slot over by advancing its sequence.
+ * <p>
+ * A full ring makes producers wait, an empty one makes consumers wait. Waiting threads spin briefly, then yield, then
+ * park for growing periods of up to maxParkNanos, so idle threads cost little and busy ones never sleep.
+ *
+ * @param <E> The type of the elements.
+ */
+class RingBuffer<E> {
+
+    private static final int SPIN_ATTEMPTS = 64;
+    private static final int YIELD_ATTEMPTS = 128;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final long maxParkNanos;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity     The minimum number of elements the ring holds, rounded up to a power of two.
+     * @param maxParkNanos The longest a waiting thread parks before checking the ring again.
+     */
+    RingBuffer(int capacity, long maxParkNanos) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.maxParkNanos = maxParkNanos;
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element if the ring is not full.
+     *
+     * @param element The element to add.
+     * @return True if the element has been added, false if the ring is full.
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds the element of the previous lap
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Adds an element, waiting for room while the ring is full.
+     *
+     * @param element The element to add.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    void put(E element) throws InterruptedException {
+        for (int attempt = 0; !offer(element); attempt++) {
+            idle(attempt);
+        }
+    }
+
+    /**
+     * Removes the element at the head of the ring.
+     *
+     * @return The element, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head.get();
+
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) slots[index];
+                    slots[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+
+                position = head.get();
+            } else if (difference < 0) {
+                // The slot has not been written yet
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Removes up to a batch of elements from the head of the ring, without waiting.
+     *
+     * @param batch    The array to put the elements into, from index 0.
+     * @param maxCount The maximum number of elements to remove, at most the length of the array.
+     * @return The number of elements removed, 0 if the ring is empty.
+     */
+    int drainTo(Object[] batch, int maxCount) {
+        int count = 0;
+        E element;
+
+        while (count < maxCount && (element = poll()) != null) {
+            batch[count++] = element;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return True if the ring holds no element, as seen at some point during the call.
+     */
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * @return The number of elements in the ring, as seen at some point during the call.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Waits a little before trying again, longer the more attempts have failed.
+     *
+     * @param attempt The number of attempts that have failed in a row.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    void idle(int attempt) throws InterruptedException {
+        if (attempt < SPIN_ATTEMPTS) {
+            Thread.onSpinWait();
+        } else if (attempt < YIELD_ATTEMPTS) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(attempt - YIELD_ATTEMPTS, 20);
+            LockSupport.parkNanos(Math.min(maxParkNanos, MIN_PARK_NANOS << shift));
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
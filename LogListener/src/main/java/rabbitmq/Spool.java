@@ -0,0 +1,638 @@
+package rabbitmq;
+
+import utils.ConfigManager;
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * A write-ahead queue on the local disk, for messages the transport can not take right now. Producers append the
+ * messages they can not publish, and a replay thread publishes them in the order they were appended once the transport
+ * takes messages again.
+ * <p>
+ * The spool is a directory of memory-mapped segment files of SPOOL_SEGMENT_SIZE bytes. Messages are appended to the
+ * last segment, a new segment is started when it is full. Appended messages are forced to the disk in batches by a
+ * flusher thread, every SPOOL_FSYNC_INTERVAL_MILLIS milliseconds or once SPOOL_FSYNC_BATCH_BYTES bytes are waiting,
+ * and the producer is told the message is durable only after that, so it can advance its checkpoint past it. A segment
+ * is deleted once every message in it has been confirmed by the transport. Windows does not delete a file while a
+ * mapping of it is alive, and a mapping only goes away once its buffer is garbage collected, so a segment that can not
+ * be deleted right away is deleted by the flusher later, or on the next start before it is mapped again.
+ * <pre>
+ * segment: [confirmed position: long] [record]... [0: int]
+ * record:  [length: int] [crc32: int] [partition: short] [content type length: short] [content type]
+ *          [format length: short, -1 for null] [format] [body]
+ * </pre>
+ * The length and the CRC cover everything after the CRC. A record that is cut short or does not match its CRC ends the
+ * segment, it was being written when the process stopped and has never been reported as durable.
+ */
+public class Spool {
+
+    public static final Spool SPOOL = new Spool();
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    // Guards the segments and the waiting callbacks, the flusher and the replay thread wait on it
+    private final Object lock = new Object();
+
+    // Oldest first, new messages are appended to the last one
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    // Confirmed segments whose files could not be deleted yet
+    private final List<Path> undeletedSegments = new ArrayList<>();
+
+    // Callbacks of the appended messages that have not been forced to the disk yet
+    private List<Runnable> unsyncedCallbacks = new ArrayList<>();
+    private long unsyncedBytes;
+
+    private long nextSegmentNumber;
+    private Thread flusher;
+    private Thread replayer;
+    private boolean isOpen;
+    private boolean isClosed;
+
+    private Spool() {
+        this(Paths.get(ConfigManager.CONFIG_MANAGER.getResourcesPath(), RabbitMQConfigConstants.SPOOL_DIRECTORY_NAME));
+    }
+
+    /**
+     * @param directory The directory of the segment files.
+     */
+    Spool(Path directory) {
+        this(directory, RabbitMQConfigConstants.SPOOL_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   The directory of the segment files.
+     * @param segmentSize The size of a new segment file in bytes.
+     */
+    Spool(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the segments left by the previous run, and starts the flusher and the replay thread. The messages that
+     * were not confirmed before the program closed are published again.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (isOpen || isClosed) {
+                return;
+            }
+
+            try {
+                open();
+            } catch (IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to open the spool, messages that can not be published will wait in memory:", e);
+            }
+
+            flusher = new Thread(this::flush, "spool-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+
+            replayer = new Thread(this::replay, "spool-replay");
+            replayer.setDaemon(true);
+            replayer.start();
+        }
+    }
+
+    /**
+     * Opens the segments left by the previous run, without starting the flusher and the replay thread. Messages can be
+     * appended afterwards. Must be called while holding the lock.
+     *
+     * @throws IOException If the directory or a segment can not be opened.
+     */
+    void open() throws IOException {
+        isOpen = true;
+        Files.createDirectories(directory);
+        openSegments();
+    }
+
+    /**
+     * Appends a message to the spool.
+     *
+     * @param message   The message to append.
+     * @param onDurable Runs on the flusher thread once the message has been forced to the disk.
+     * @return True if the message has been appended, false if the spool is not open or has reached SPOOL_MAX_SEGMENTS.
+     */
+    public boolean append(TransportMessage message, Runnable onDurable) {
+        byte[] contentType = message.getContentType() != null ? message.getContentType().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] format = message.getFormat() != null ? message.getFormat().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] body = message.getBody();
+
+        int length = Short.BYTES + Short.BYTES + contentType.length + Short.BYTES + (format != null ? format.length : 0) + body.length;
+        int recordSize = RECORD_HEADER_SIZE + length;
+
+        synchronized (lock) {
+            if (!isOpen || isClosed) {
+                return false;
+            }
+
+            Segment segment = segments.peekLast();
+
+            // Leave room for the 0 that ends the segment
+            if (segment == null || segment.isSealed || segment.capacity() - segment.writePosition < recordSize + Integer.BYTES) {
+                if (segment != null && !segment.isSealed) {
+                    segment.isSealed = true;
+
+                    // Every message of the segment may have been confirmed already, no confirm would delete it then
+                    if (segment.confirmedPosition >= segment.writePosition) {
+                        segments.remove(segment);
+                        deleteSegment(segment);
+                    }
+                }
+
+                if (segments.size() >= RabbitMQConfigConstants.SPOOL_MAX_SEGMENTS) {
+                    return false;
+                }
+
+                try {
+                    segment = createSegment(recordSize + Integer.BYTES);
+                } catch (IOException e) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to create a spool segment:", e);
+                    return false;
+                }
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.writePosition;
+            int start = position + RECORD_HEADER_SIZE;
+
+            int at = start;
+            buffer.putShort(at, (short) message.getPartition());
+            at += Short.BYTES;
+            buffer.putShort(at, (short) contentType.length);
+            buffer.put(at + Short.BYTES, contentType);
+            at += Short.BYTES + contentType.length;
+            buffer.putShort(at, (short) (format != null ? format.length : -1));
+            at += Short.BYTES;
+
+            if (format != null) {
+                buffer.put(at, format);
+                at += format.length;
+            }
+
+            buffer.put(at, body);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(start, length));
+
+            // The length is written last, so a record is never seen before it is complete
+            buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+            buffer.putInt(position, length);
+
+            segment.writePosition = start + length;
+            segment.isDirty = true;
+
+            if (onDurable != null) {
+                unsyncedCallbacks.add(onDurable);
+            }
+
+            unsyncedBytes += recordSize;
+            lock.notifyAll();
+
+            return true;
+        }
+    }
+
+    /**
+     * @return True if the spool holds messages that have not been confirmed by the transport yet. Producers whose
+     * in-flight window is full append to the spool right away while it has a backlog, instead of waiting for the
+     * transport first.
+     */
+    public boolean hasBacklog() {
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                if (segment.confirmedPosition < segment.writePosition) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Stops the replay thread and forces everything appended so far to the disk, running the waiting callbacks.
+     * Messages that have been replayed but not confirmed yet are replayed again on the next start.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (!isOpen || isClosed) {
+                isClosed = true;
+                return;
+            }
+
+            isClosed = true;
+            lock.notifyAll();
+        }
+
+        // The replay thread may be waiting for the transport
+        replayer.interrupt();
+
+        try {
+            replayer.join(RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS);
+            flusher.join(RabbitMQConfigConstants.CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close a spool segment:", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the appended messages to the disk in batches, then runs their callbacks. Runs on the flusher thread until
+     * the spool is closed.
+     */
+    private void flush() {
+        while (true) {
+            List<Runnable> callbacks;
+            List<MappedByteBuffer> dirtyBuffers = new ArrayList<>();
+            List<Path> undeleted;
+            boolean isLast;
+
+            synchronized (lock) {
+                long deadline = System.currentTimeMillis() + RabbitMQConfigConstants.SPOOL_FSYNC_INTERVAL_MILLIS;
+                long remaining;
+
+                while (!isClosed && unsyncedBytes < RabbitMQConfigConstants.SPOOL_FSYNC_BATCH_BYTES
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                isLast = isClosed;
+                callbacks = unsyncedCallbacks;
+                unsyncedCallbacks = new ArrayList<>();
+                unsyncedBytes = 0;
+
+                for (Segment segment : segments) {
+                    if (segment.isDirty) {
+                        segment.isDirty = false;
+                        dirtyBuffers.add(segment.buffer);
+                    }
+                }
+
+                undeleted = new ArrayList<>(undeletedSegments);
+            }
+
+            // A single force covers every message appended to a segment so far, the appends are not held up meanwhile
+            for (MappedByteBuffer buffer : dirtyBuffers) {
+                buffer.force();
+            }
+
+            retryDeletes(undeleted);
+
+            for (Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to run the callback of a spooled message:", e);
+                }
+            }
+
+            if (isLast) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes the spooled messages in the order they were appended, with a Producer that never spools, so it waits
+     * while the transport does not take messages. Runs on the replay thread until the spool is closed.
+     */
+    private void replay() {
+        Producer producer = Producer.withoutSpool();
+
+        while (true) {
+            Segment segment;
+            int end;
+            TransportMessage message;
+
+            synchronized (lock) {
+                segment = nextToReplay();
+
+                while (segment == null && !isClosed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    segment = nextToReplay();
+                }
+
+                if (isClosed) {
+                    return;
+                }
+
+                message = readRecord(segment);
+                end = segment.replayPosition;
+            }
+
+            Segment replayed = segment;
+            producer.sendMessage(message, () -> confirm(replayed, end));
+        }
+    }
+
+    /**
+     * @return The oldest segment with a message that has not been replayed, or null if there is none. Must be called
+     * while holding the lock.
+     */
+    Segment nextToReplay() {
+        for (Segment segment : segments) {
+            if (segment.replayPosition < segment.writePosition) {
+                return segment;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the record at the replay position of a segment and moves the replay position past it. Must be called
+     * while holding the lock.
+     */
+    TransportMessage readRecord(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int at = segment.replayPosition;
+        int length = buffer.getInt(at);
+        int end = at + RECORD_HEADER_SIZE + length;
+        at += RECORD_HEADER_SIZE;
+
+        // The partition count may have been lowered since the message was spooled
+        int partition = buffer.getShort(at) % RabbitMQConfigConstants.PARTITION_COUNT;
+        at += Short.BYTES;
+
+        byte[] contentType = new byte[buffer.getShort(at)];
+        buffer.get(at + Short.BYTES, contentType);
+        at += Short.BYTES + contentType.length;
+
+        short formatLength = buffer.getShort(at);
+        at += Short.BYTES;
+        byte[] format = null;
+
+        if (formatLength >= 0) {
+            format = new byte[formatLength];
+            buffer.get(at, format);
+            at += formatLength;
+        }
+
+        byte[] body = new byte[end - at];
+        buffer.get(at, body);
+
+        segment.replayPosition = end;
+
+        return new TransportMessage(
+                partition,
+                contentType.length > 0 ? new String(contentType, StandardCharsets.UTF_8) : null,
+                format != null ? new String(format, StandardCharsets.UTF_8) : null,
+                body);
+    }
+
+    /**
+     * Records that the transport has confirmed the messages of a segment up to a position. Confirms arrive in replay
+     * order. A sealed segment is deleted once all of its messages are confirmed.
+     *
+     * @param segment  The segment of the confirmed message.
+     * @param position The position right after the confirmed message.
+     */
+    void confirm(Segment segment, int position) {
+        synchronized (lock) {
+            segment.confirmedPosition = Math.max(segment.confirmedPosition, position);
+
+            if (isClosed) {
+                return;
+            }
+
+            segment.buffer.putLong(0, segment.confirmedPosition);
+            segment.isDirty = true;
+
+            if (segment.isSealed && segment.confirmedPosition >= segment.writePosition) {
+                segments.remove(segment);
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes a confirmed segment. If the file can not be deleted yet, because its mapping is still alive
+     * on Windows, the confirmed position is forced to the disk and the file is left for the flusher to delete later.
+     * Must be called while holding the lock.
+     *
+     * @param segment The segment to delete, it has already been removed from the segments.
+     */
+    private void deleteSegment(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+
+        // Nothing may hold on to the mapping, so it can be unmapped once it is garbage collected
+        segment.buffer = null;
+
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // Even if the file is never deleted, the next start sees that every message in it is confirmed
+            buffer.force();
+            undeletedSegments.add(segment.path);
+            GlobalLogger.getLoggerInstance().log(Level.DEBUG, "A spool segment can not be deleted yet, trying again later. " + segment.path + " " + e);
+        }
+    }
+
+    /**
+     * Tries again to delete the confirmed segments that could not be deleted before. Runs on the flusher thread.
+     *
+     * @param paths The paths of the segments to delete.
+     */
+    private void retryDeletes(List<Path> paths) {
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                continue;
+            }
+
+            synchronized (lock) {
+                undeletedSegments.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Opens the segments of the previous run in the order they were created. They are sealed, new messages go to a
+     * new segment. Must be called while holding the lock.
+     */
+    private void openSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+
+        paths.sort(null);
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            nextSegmentNumber = Math.max(nextSegmentNumber, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // A confirmed segment left by the previous run is deleted before it is mapped, Windows would not delete it
+            // while the mapping is alive
+            if (isConfirmed(channel)) {
+                channel.close();
+                Files.deleteIfExists(path);
+                continue;
+            }
+
+            Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segment.writePosition = findEnd(segment.buffer);
+            segment.confirmedPosition = (int) Math.min(Math.max(segment.buffer.getLong(0), HEADER_SIZE), segment.writePosition);
+            segment.replayPosition = segment.confirmedPosition;
+            segment.isSealed = true;
+
+            if (segment.confirmedPosition >= segment.writePosition) {
+                deleteSegment(segment);
+                continue;
+            }
+
+            segments.add(segment);
+        }
+
+        if (!segments.isEmpty()) {
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "Replaying " + segments.size() + " spool segments left by the previous run.");
+        }
+    }
+
+    /**
+     * Tells with positioned reads, without mapping the segment, whether every message in it has been confirmed, that
+     * is whether no record starts at its confirmed position.
+     *
+     * @param channel An open FileChannel of the segment.
+     * @return True if the segment has no message left to replay.
+     * @throws IOException If an I/O error occurs while reading the segment.
+     */
+    private boolean isConfirmed(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        if (channel.read(header, 0) < HEADER_SIZE) {
+            return true;
+        }
+
+        long confirmedPosition = Math.max(header.getLong(0), HEADER_SIZE);
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+
+        return confirmedPosition > channel.size() - RECORD_HEADER_SIZE
+                || channel.read(length, confirmedPosition) < Integer.BYTES
+                || length.getInt(0) <= 0;
+    }
+
+    /**
+     * @return The position right after the last complete record of a segment.
+     */
+    private int findEnd(MappedByteBuffer buffer) {
+        int position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+
+        while (buffer.limit() - position >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(position);
+
+            if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(buffer.slice(position + RECORD_HEADER_SIZE, length));
+
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+                break;
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    /**
+     * Creates and maps a new segment. Must be called while holding the lock.
+     *
+     * @param minimumRecordSize The size of the record that is about to be appended, a segment is made larger than
+     *                          the segment size if the record does not fit otherwise.
+     */
+    private Segment createSegment(int minimumRecordSize) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", nextSegmentNumber++, SEGMENT_SUFFIX));
+        long size = Math.max(segmentSize, HEADER_SIZE + minimumRecordSize);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        segment.buffer.putLong(0, HEADER_SIZE);
+        segment.writePosition = HEADER_SIZE;
+        segment.confirmedPosition = HEADER_SIZE;
+        segment.replayPosition = HEADER_SIZE;
+        segments.add(segment);
+
+        return segment;
+    }
+
+    /**
+     * A segment file and its positions. Records before the confirmed position have been confirmed by the transport,
+     * records before the replay position have been handed to the transport.
+     */
+    static class Segment {
+
+        private final Path path;
+        private final FileChannel channel;
+
+        // Null once the segment is deleted
+        private MappedByteBuffer buffer;
+
+        private int writePosition;
+        private int replayPosition;
+        private int confirmedPosition;
+        private boolean isSealed;
+        private boolean isDirty;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package rabbitmq;
+
+import java.io.IOException;
+
+/**
+ * Carries messages from the Producers to the Consumers. The transport is chosen with the TRANSPORT_TYPE config, the
+ * Producers and Consumers work the same on every transport. Messages are split over PARTITION_COUNT partitions by
+ * the remote IP of their entries, and the order of the messages is kept within a partition:
+ * <ul>
+ *     <li>A Publisher publishes the messages of one Producer, and reports when the transport has taken responsibility
+ *     for them, so the Producer can advance its checkpoints.</li>
+ *     <li>A Subscription delivers messages to the handler of one Consumer, one message at a time, and acknowledges
+ *     each message once the handler reports it as processed, which may be long after the handler has returned.</li>
+ * </ul>
+ */
+public interface Transport {
+
+    Transport TRANSPORT = RabbitMQConfigConstants.TRANSPORT_TYPE.create();
+
+    /**
+     * Opens a publisher for a single Producer.
+     *
+     * @param listener Notified of the confirms of the published messages and of the recovery of the publisher.
+     * @return A new publisher.
+     * @throws IOException If the publisher can not be opened.
+     */
+    Publisher openPublisher(PublisherListener listener) throws IOException;
+
+    /**
+     * Starts delivering the messages of a partition to a single Consumer. With SINGLE_ACTIVE_CONSUMER only one of the
+     * subscriptions of a partition handles messages at a time, so they are handled in the order they were published.
+     *
+     * @param handler   Handles the delivered messages.
+     * @param partition The partition to consume, between 0 and PARTITION_COUNT - 1.
+     * @return The subscription, to stop the deliveries.
+     * @throws IOException If the deliveries can not be started.
+     */
+    Subscription subscribe(MessageHandler handler, int partition) throws IOException;
+
+    /**
+     * @return The number of messages waiting to be delivered to the consumers over every partition, or -1 if it is not
+     * known.
+     */
+    long getQueueDepth();
+
+    /**
+     * Closes the transport, after waiting up to CLOSE_TIMEOUT_MILLIS for the messages published right before to be
+     * confirmed.
+     */
+    void close();
+
+    /**
+     * Publishes the messages of one Producer. A publisher is used by one thread at a time.
+     */
+    interface Publisher {
+
+        /**
+         * Publishes a message. The message is confirmed later through the PublisherListener, the listener may be
+         * called before this method returns.
+         *
+         * @param message The message to publish.
+         * @return The sequence number the confirm of the message refers to.
+         * @throws IOException If the message can not be published.
+         */
+        long publish(TransportMessage message) throws IOException;
+    }
+
+    /**
+     * Notified of the confirms of the messages of a publisher. The methods may be called from any thread, and must not
+     * block on the thread that publishes.
+     */
+    interface PublisherListener {
+
+        /**
+         * @param sequenceNumber The sequence number of the confirmed message.
+         * @param multiple       True if every message up to and including the sequence number is confirmed.
+         * @param isAck          True if the transport has taken the messages, false if they must be published again.
+         */
+        void handleConfirm(long sequenceNumber, boolean multiple, boolean isAck);
+
+        /**
+         * Called when the publisher has recovered from a failure. The messages that have not been confirmed before
+         * the failure will never be, and the sequence numbers start over.
+         */
+        void handleRecovery();
+    }
+
+    /**
+     * Handles the messages delivered to a Consumer.
+     */
+    interface MessageHandler {
+
+        /**
+         * @param message     The delivered message.
+         * @param onProcessed Acknowledges the message, to be run exactly once when the message has been processed. May
+         *                    be run from any thread, before or after this method returns.
+         */
+        void handle(TransportMessage message, Runnable onProcessed);
+    }
+
+    /**
+     * Deliveries of messages to a Consumer. The number of messages delivered ahead of the handler follows the
+     * prefetch of the FlowControl.
+     */
+    interface Subscription {
+
+        /**
+         * Stops the deliveries, then waits up to CLOSE_TIMEOUT_MILLIS for the delivered messages to be processed and
+         * acknowledges them. Messages that are still being processed are delivered again later.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,42 @@
+package rabbitmq;
+
+/**
+ * A message sent from a Producer to a Consumer, independent of the transport that carries it.
+ */
+public class TransportMessage {
+
+    private final int partition;
+    private final String contentType;
+    private final String format;
+    private final byte[] body;
+
+    /**
+     * @param partition   The partition of the queue the message goes through, see Partitions.
+     * @param contentType The content type of the body, one of RecordBatch.CONTENT_TYPE or BatchEnvelope.CONTENT_TYPE,
+     *                    or null for a single line.
+     * @param format      The name of the log format of the lines in the body, or null for the default format.
+     * @param body        The body of the message.
+     */
+    public TransportMessage(int partition, String contentType, String format, byte[] body) {
+        this.partition = partition;
+        this.contentType = contentType;
+        this.format = format;
+        this.body = body;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,23 @@
+package rabbitmq;
+
+/**
+ * How messages get from the producers to the consumers.
+ */
+public enum TransportType {
+
+    // Through a queue of a RabbitMQ broker, so producers and consumers can run in different processes
+    RABBITMQ,
+
+    // Through a ring buffer in memory, for producers and consumers running in the same process without a broker
+    IN_PROCESS;
+
+    /**
+     * @return A new transport of this type.
+     */
+    Transport create() {
+        return switch (this) {
+            case RABBITMQ -> new RabbitMQTransport();
+            case IN_PROCESS -> new InProcessTransport();
+        };
+    }
+}
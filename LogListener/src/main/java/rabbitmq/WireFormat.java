@@ -0,0 +1,13 @@
+package rabbitmq;
+
+/**
+ * How chunks of log lines are sent from the producers to the consumers.
+ */
+public enum WireFormat {
+
+    // The raw lines are sent in a BatchEnvelope and parsed by the consumers
+    TEXT,
+
+    // The lines are parsed by the producers and the entries are sent in a compact RecordBatch
+    BINARY
+}
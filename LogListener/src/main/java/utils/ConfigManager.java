@@ -2,7 +2,12 @@ package utils;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,9 +17,29 @@ public class ConfigManager {
 
     public static final ConfigManager CONFIG_MANAGER = new ConfigManager();
 
+    // Written in place of the file identity of a Watcher whose file does not exist, so every status line has 3 parts
+    private static final String NO_IDENTITY = "-";
+
+    // Watcher statuses and backfill ranges are written to the config file at most this often
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
     private final Lock lock = new ReentrantLock();
 
+    // Guards the changes that have not been written to the config file yet, it is never held while the file is written
+    private final Lock pendingLock = new ReentrantLock();
+
+    // path:the latest status line of the Watcher of that file
+    private final LinkedHashMap<String, String> pendingStatusLines = new LinkedHashMap<>();
+    private final ArrayList<String> pendingBackfillRanges = new ArrayList<>();
+
     private ConfigManager() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -124,37 +149,40 @@ public class ConfigManager {
      * The program saves every Watcher's status to the config file every time they change. When program restarts, each
      * Watcher's status read from the file and generated accordingly so no data is loss.
      *
-     * @return LinkedList of String[] that each represent status of a Watcher.
+     * @return LinkedList of the status of each Watcher.
      */
-    public LinkedList<String[]> getWatchersStatus() {
-        LinkedList<String[]> watcherStatus = new LinkedList<>();
+    public LinkedList<WatcherStatus> getWatchersStatus() {
+        LinkedList<WatcherStatus> watcherStatus = new LinkedList<>();
         String dir = getResourcesPath() + File.separator + "config.txt";
 
+        // The statuses saved since the last flush are read too
+        flush();
+
         // Lock the file so only one thread accesses the file at a time
         lock.lock();
 
         try {
             try (BufferedReader reader = new BufferedReader(new FileReader(dir))) {
                 String line;
+                boolean isPathsStarted = false;
+
                 while ((line = reader.readLine()) != null) {
                     if (line.startsWith("#") || line.startsWith("\n")) {
                         continue;
                     }
 
                     if (line.equals("<start_thread_status>")) {
-                        line = reader.readLine();
-                        if (!line.equals("<end_thread_status>")) {
-
-                            String firstPart = line.substring(0, line.lastIndexOf(' '));
-                            String secondPart = line.substring(line.lastIndexOf(' ') + 1);
-
-                            watcherStatus.add(new String[]{firstPart, secondPart});
-                        }
+                        isPathsStarted = true;
+                        continue;
                     }
 
                     if (line.equals("<end_thread_status>")) {
                         break;
                     }
+
+                    if (isPathsStarted) {
+                        watcherStatus.add(parseWatcherStatus(line));
+                    }
                 }
             } catch (IOException e) {
                 GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to read file:", e);
@@ -167,77 +195,128 @@ public class ConfigManager {
     }
 
     /**
-     * Save a Watcher's status (last read line) to the config file.
+     * Splits a Watcher's status line into its parts. The line is "path offset identity", where the identity is
+     * missing in the lines saved before file identities were tracked. The path may contain spaces, so the line is
+     * split from its end. An offset that is negative or not a number, like the -1 saved for a Watcher that has not read
+     * anything yet, means there is no checkpoint and the file is read from the beginning.
+     * <p>
+     * Lines without the identity were saved by versions that counted the read lines instead of bytes, so their offset
+     * is a line count. Every line saved now has an identity, or NO_IDENTITY in its place.
      *
-     * @param path File path that belongs to a Watcher.
+     * @param line A line between the thread status tags of the config file.
+     * @return The status of the Watcher.
      */
-    public void updateWatcherStatus(String path, long status) {
-        boolean isExist = false;
+    private WatcherStatus parseWatcherStatus(String line) {
+        int lastSpace = line.lastIndexOf(' ');
+
+        if (lastSpace == -1) {
+            return new WatcherStatus(line, 0, null, false);
+        }
+
+        String lastPart = line.substring(lastSpace + 1);
+        String rest = line.substring(0, lastSpace);
+
+        if (isOffset(lastPart)) {
+            // Old format without the file identity, which saved a line count
+            return new WatcherStatus(rest, parseOffset(lastPart), null, true);
+        }
+
+        int offsetSpace = rest.lastIndexOf(' ');
+        String offset = rest.substring(offsetSpace + 1);
+
+        if (offsetSpace == -1 || !isOffset(offset)) {
+            // A path with spaces and no status at all
+            return new WatcherStatus(line, 0, null, false);
+        }
+
+        String identity = lastPart.equals(NO_IDENTITY) ? null : lastPart;
+
+        return new WatcherStatus(rest.substring(0, offsetSpace), parseOffset(offset), identity, false);
+    }
+
+    /**
+     * @param part A part of a Watcher's status line.
+     * @return True if the part is written like an offset, an optionally negative integer.
+     */
+    private static boolean isOffset(String part) {
+        return part.matches("-?[0-9]+");
+    }
+
+    /**
+     * @param part A part of a Watcher's status line that is written like an offset.
+     * @return The offset, 0 if it is negative or too large to be an offset.
+     */
+    private static long parseOffset(String part) {
+        try {
+            return Math.max(0, Long.parseLong(part));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Save a Watcher's status (byte offset right after the last read line) to the config file. The status is kept in
+     * memory and written along with the others on the next flush, a newer status of the same Watcher replaces it.
+     *
+     * @param path     File path that belongs to a Watcher.
+     * @param status   Byte offset the Watcher resumes reading from.
+     * @param identity FileIdentity of the file the offset belongs to, or null if the file does not exist.
+     */
+    public void updateWatcherStatus(String path, long status, String identity) {
+        String statusLine = path + " " + status + " " + (identity != null ? identity : NO_IDENTITY);
+
+        pendingLock.lock();
+
+        try {
+            pendingStatusLines.put(path, statusLine);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the Watcher statuses and the backfill ranges saved since the last flush to the config file, with a single
+     * rewrite of the file. Runs every FLUSH_INTERVAL_MILLIS, before the saved statuses are read, and should be called
+     * once more when the program exits.
+     */
+    public void flush() {
         String filePath = getResourcesPath() + File.separator + "config.txt";
         ArrayList<String> lines = new ArrayList<>();
 
-        // Lock the file so only one thread accesses the file at a time
+        // Lock the file so only one thread accesses the file at a time. It is locked before the pending changes are
+        // taken, so the changes of two flushes are written in the order they were saved
         lock.lock();
 
         try {
-            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-                String line;
-                boolean isPathsStarted = false;
+            LinkedHashMap<String, String> statusLines;
+            ArrayList<String> ranges;
 
-                while ((line = reader.readLine()) != null) {
-                    lines.add(line);
+            pendingLock.lock();
 
-                    if (line.equals("<start_thread_status>")) {
-                        isPathsStarted = true;
-                        continue;
-                    }
+            try {
+                if (pendingStatusLines.isEmpty() && pendingBackfillRanges.isEmpty()) {
+                    return;
+                }
 
-                    if (line.equals("<end_thread_status>")) {
-                        isPathsStarted = false;
-                        continue;
-                    }
+                statusLines = new LinkedHashMap<>(pendingStatusLines);
+                ranges = new ArrayList<>(pendingBackfillRanges);
+                pendingStatusLines.clear();
+                pendingBackfillRanges.clear();
+            } finally {
+                pendingLock.unlock();
+            }
 
-                    if (isPathsStarted) {
-                        String firstPart = line.substring(0, line.lastIndexOf(' '));
-                        if (firstPart.equals(path)) {
-                            isExist = true;
-                        }
-                    }
+            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
                 }
             } catch (IOException e) {
                 GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to read/write file:", e);
             }
 
-            // Add the status to ArrayList if not exist and update its status.
-            if (isExist) {
-                boolean isPathsStarted = false;
-                for (int i = 0; i < lines.size(); i++) {
-                    if (lines.get(i).equals("<start_thread_status>")) {
-                        isPathsStarted = true;
-                        continue;
-                    }
-
-                    if (lines.get(i).equals("<end_thread_status>")) {
-                        isPathsStarted = false;
-                        continue;
-                    }
-
-                    if (isPathsStarted) {
-                        if (lines.get(i).startsWith(path)) {
-                            String firstPart = lines.get(i).substring(0, lines.get(i).lastIndexOf(' '));
-                            lines.set(i, firstPart + " " + status);
-                            break;
-                        }
-                    }
-                }
-            } else {
-                int size = lines.size();
-                for (int i = 0; i < size; i++) {
-                    if (lines.get(i).equals("<start_thread_status>")) {
-                        lines.add(i + 1, path + " " + status);
-                    }
-                }
-            }
+            statusLines.forEach((path, statusLine) -> setWatcherStatus(lines, path, statusLine));
+            ranges.forEach(range -> addBackfillRange(lines, range));
 
             // Write ArrayList to the file
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
@@ -248,10 +327,140 @@ public class ConfigManager {
             } catch (IOException e) {
                 GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to read/write file:", e);
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the status line of a Watcher in the lines of the config file, or adds it if the Watcher has none yet.
+     *
+     * @param lines      The lines of the config file.
+     * @param path       File path that belongs to the Watcher.
+     * @param statusLine The new status line of the Watcher.
+     */
+    private void setWatcherStatus(ArrayList<String> lines, String path, String statusLine) {
+        boolean isPathsStarted = false;
+
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).equals("<start_thread_status>")) {
+                isPathsStarted = true;
+                continue;
+            }
+
+            if (lines.get(i).equals("<end_thread_status>")) {
+                isPathsStarted = false;
+                continue;
+            }
+
+            if (isPathsStarted) {
+                if (parseWatcherStatus(lines.get(i)).path().equals(path)) {
+                    lines.set(i, statusLine);
+                    return;
+                }
+            }
+        }
+
+        // Add the status if not exist
+        int size = lines.size();
+        for (int i = 0; i < size; i++) {
+            if (lines.get(i).equals("<start_thread_status>")) {
+                lines.add(i + 1, statusLine);
+            }
+        }
+    }
+
+    /**
+     * Reads the byte ranges of archived log files that a backfill has already sent, so an interrupted backfill can
+     * skip them.
+     *
+     * @return HashSet of ranges, each formatted as "path start end".
+     */
+    public HashSet<String> getCompletedBackfillRanges() {
+        HashSet<String> ranges = new HashSet<>();
+        String dir = getResourcesPath() + File.separator + "config.txt";
+
+        // The ranges saved since the last flush are read too
+        flush();
+
+        // Lock the file so only one thread accesses the file at a time
+        lock.lock();
+
+        try {
+            try (BufferedReader reader = new BufferedReader(new FileReader(dir))) {
+                String line;
+                boolean isRangesStarted = false;
+
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals("<start_backfill_status>")) {
+                        isRangesStarted = true;
+                        continue;
+                    }
 
+                    if (line.equals("<end_backfill_status>")) {
+                        break;
+                    }
+
+                    if (isRangesStarted) {
+                        ranges.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to read file:", e);
+            }
         } finally {
             lock.unlock();
         }
+
+        return ranges;
+    }
+
+    /**
+     * Save a byte range of an archived log file that a backfill has sent to the config file. The range is kept in
+     * memory and written along with the others on the next flush.
+     *
+     * @param range The range formatted as "path start end".
+     */
+    public void addCompletedBackfillRange(String range) {
+        pendingLock.lock();
+
+        try {
+            pendingBackfillRanges.add(range);
+        } finally {
+            pendingLock.unlock();
+        }
     }
 
+    /**
+     * Adds a completed backfill range to the lines of the config file.
+     *
+     * @param lines The lines of the config file.
+     * @param range The range formatted as "path start end".
+     */
+    private void addBackfillRange(ArrayList<String> lines, String range) {
+        int end = lines.indexOf("<end_backfill_status>");
+
+        if (end == -1) {
+            // Config files created before backfilling was supported do not have this part yet
+            lines.add("");
+            lines.add("# Byte ranges of archived log files that are already backfilled. DO NOT CHANGE THIS PART!");
+            lines.add("<start_backfill_status>");
+            lines.add(range);
+            lines.add("<end_backfill_status>");
+        } else {
+            lines.add(end, range);
+        }
+    }
+
+    /**
+     * The saved status of a Watcher.
+     *
+     * @param path     File path that belongs to the Watcher.
+     * @param offset      Byte offset the Watcher resumes reading from, 0 if there is no checkpoint. The number of lines
+     *                    to skip instead if isLineCount is set.
+     * @param identity    FileIdentity of the file the offset belongs to, or null if it is not known.
+     * @param isLineCount True if the status was saved in the old format, which counted lines instead of bytes.
+     */
+    public record WatcherStatus(String path, long offset, String identity, boolean isLineCount) {
+    }
 }
@@ -6,27 +6,73 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.logging.log4j.Level;
 
 public class NetworkInfo {
 
+    // Most recently used addresses that are kept, and how long their lookups are reused
+    private static final int MAX_CACHED_ADDRESSES = 10000;
+    private static final long CACHE_TTL_MILLIS = 10 * 60 * 1000;
+
+    // ip:the NetworkInfo looked up for that address, the least recently used one is dropped first
+    private static final Map<String, NetworkInfo> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NetworkInfo> eldest) {
+            return size() > MAX_CACHED_ADDRESSES;
+        }
+    };
+
     private String ip;
     private String hostname;
     private String localIp;
     private String macAddress;
 
+    private long lookedUpAt;
+
     public NetworkInfo(String ip) {
         this.ip = ip;
         this.hostname = findHostname();
         this.localIp = findLocalIp();
         this.macAddress = findMacAddress();
+        this.lookedUpAt = System.currentTimeMillis();
     }
 
     public NetworkInfo() {
         super();
     }
 
+    /**
+     * Returns the NetworkInfo of an address, reusing the lookup of the last CACHE_TTL_MILLIS. The hostname lookup is a
+     * reverse DNS query that blocks the calling thread, and the same clients show up in most log lines, so only the
+     * first line of a client in a while pays for it. At most MAX_CACHED_ADDRESSES addresses are kept.
+     *
+     * @param ip The address to look up.
+     * @return The NetworkInfo of the address.
+     */
+    public static NetworkInfo of(String ip) {
+        NetworkInfo networkInfo;
+
+        synchronized (CACHE) {
+            networkInfo = CACHE.get(ip);
+        }
+
+        if (networkInfo != null && System.currentTimeMillis() - networkInfo.lookedUpAt < CACHE_TTL_MILLIS) {
+            return networkInfo;
+        }
+
+        // Looked up without holding the cache, two threads may look up the same address at once
+        networkInfo = new NetworkInfo(ip);
+
+        synchronized (CACHE) {
+            CACHE.put(ip, networkInfo);
+        }
+
+        return networkInfo;
+    }
+
     /**
      * This method attempts to perform a hostname lookup for the provided IP address. If successful, it returns the
      * hostname as a String. If the lookup fails or the IP address is not resolvable, it logs a warning message and
@@ -0,0 +1,347 @@
+package watcher;
+
+import rabbitmq.FlowControl;
+import rabbitmq.Producer;
+import rabbitmq.RabbitMQConfigConstants;
+import utils.ConfigManager;
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Loads archived log files in parallel. Each file is split into byte ranges that start and end on line boundaries,
+ * and the ranges are read and sent to RabbitMQ on a ForkJoinPool. Every range RabbitMQ has confirmed is saved to the
+ * config file, so an interrupted backfill started again with the same files skips the ranges that are already sent.
+ * <p>
+ * Gzip and zstd compressed files can not be split, each of them is a single range that is decompressed as a stream.
+ */
+public class Backfill {
+
+    public static final Backfill BACKFILL = new Backfill();
+
+    private final ForkJoinPool pool;
+
+    private Backfill() {
+        this.pool = new ForkJoinPool(WatcherConfigConstants.BACKFILL_PARALLELISM);
+    }
+
+    /**
+     * Starts loading the log files matched by a directory or a glob. Returns immediately, the files are loaded in the
+     * background.
+     *
+     * @param filesStr A directory, whose every file is loaded, or a glob such as "/var/log/dns/*.log".
+     */
+    public void start(String filesStr) {
+        LinkedList<Path> files = findFiles(filesStr);
+
+        if (files.isEmpty()) {
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "No log files found to backfill. " + filesStr);
+            return;
+        }
+
+        pool.execute(() -> backfill(files));
+        GlobalLogger.getLoggerInstance().log(Level.INFO, "Started backfilling " + files.size() + " log files. " + filesStr);
+    }
+
+    /**
+     * Stops the backfill. Ranges that are being read are abandoned, they are read again on the next backfill.
+     */
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Finds the files matched by a directory or a glob.
+     *
+     * @param filesStr A directory or a glob whose last part is the pattern.
+     * @return LinkedList of the matched regular files.
+     */
+    private LinkedList<Path> findFiles(String filesStr) {
+        LinkedList<Path> files = new LinkedList<>();
+        Path path = Paths.get(filesStr).toAbsolutePath().normalize();
+
+        Path dir = Files.isDirectory(path) ? path : path.getParent();
+        String glob = Files.isDirectory(path) ? "*" : path.getFileName().toString();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        } catch (IOException | InvalidPathException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to list the files to backfill:", e);
+        }
+
+        return files;
+    }
+
+    /**
+     * Splits the files into ranges, leaves out the ranges finished by a previous backfill, and reads the rest in
+     * parallel.
+     *
+     * @param files The files to load.
+     */
+    private void backfill(List<Path> files) {
+        HashSet<String> completedRanges = ConfigManager.CONFIG_MANAGER.getCompletedBackfillRanges();
+        ArrayList<RangeTask> tasks = new ArrayList<>();
+
+        for (Path file : files) {
+            try {
+                Compression compression = Compression.detect(file);
+                String format = LogFormats.LOG_FORMATS.formatOf(file);
+                long[] boundaries = compression == Compression.NONE ? split(file) : new long[]{0, Files.size(file)};
+
+                for (int i = 0; i + 1 < boundaries.length; i++) {
+                    RangeTask task = new RangeTask(file, compression, format, boundaries[i], boundaries[i + 1]);
+
+                    if (!completedRanges.contains(task.toString())) {
+                        tasks.add(task);
+                    }
+                }
+            } catch (IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to split file " + file + ":", e);
+            }
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+
+        GlobalLogger.getLoggerInstance().log(Level.INFO, "Backfill has finished. " + tasks.size() + " ranges have been sent.");
+    }
+
+    /**
+     * Splits a file into ranges of about BACKFILL_RANGE_SIZE bytes. Each boundary is moved forward to the start of the
+     * next line, so every range holds complete lines. The boundaries only depend on the content of the file, so the
+     * same file is always split the same way.
+     *
+     * @param file The file to split.
+     * @return The boundaries of the ranges, starting with 0 and ending with the size of the file.
+     * @throws IOException If the file can not be read.
+     */
+    private long[] split(Path file) throws IOException {
+        ArrayList<Long> boundaries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(WatcherConfigConstants.READ_BUFFER_SIZE);
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long boundary = 0;
+
+            boundaries.add(boundary);
+
+            while (boundary + WatcherConfigConstants.BACKFILL_RANGE_SIZE < size) {
+                boundary = nextLineStart(fileChannel, buffer, boundary + WatcherConfigConstants.BACKFILL_RANGE_SIZE);
+
+                if (boundary >= size) {
+                    break;
+                }
+
+                boundaries.add(boundary);
+            }
+
+            boundaries.add(size);
+        }
+
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Finds the start of the first line that begins at or after a position.
+     *
+     * @param fileChannel An open FileChannel of the file.
+     * @param buffer      A buffer to read the file with.
+     * @param position    The position to search from.
+     * @return The position right after the first newline at or after position - 1, or the size of the file.
+     * @throws IOException If the file can not be read.
+     */
+    private long nextLineStart(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long bufferStart = position - 1;
+
+        while (true) {
+            buffer.clear();
+
+            if (fileChannel.read(buffer, bufferStart) <= 0) {
+                return fileChannel.size();
+            }
+
+            buffer.flip();
+
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return bufferStart + i + 1;
+                }
+            }
+
+            bufferStart += buffer.limit();
+        }
+    }
+
+    /**
+     * Reads the lines of a byte range and sends them to RabbitMQ in chunks. A plain range is mapped into memory and
+     * scanned for newlines in place, the same way Watcher reads large backlogs. A compressed file is decompressed as a
+     * stream into a large buffer and scanned the same way.
+     */
+    @SuppressWarnings("serial") // ForkJoinTasks are Serializable, but a RangeTask is never serialized
+    private class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final Compression compression;
+        private final String format;
+        private final long start;
+        private final long end;
+
+        private Producer producer;
+        private ArrayList<byte[]> logEntries;
+
+        // Where the lines are read and the position of each line of the current chunk, the consumers derive the
+        // document ids from them. Positions in a compressed file are offsets in the decompressed stream
+        private String source;
+        private long[] linePositions;
+
+        private RangeTask(Path file, Compression compression, String format, long start, long end) {
+            this.file = file;
+            this.compression = compression;
+            this.format = format;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            // Producers are not thread safe, each worker thread uses its own
+            producer = Producer.forCurrentThread();
+            logEntries = new ArrayList<>(RabbitMQConfigConstants.CHUNK_SIZE);
+            source = FileIdentity.sourceOf(FileIdentity.of(file));
+            linePositions = new long[RabbitMQConfigConstants.CHUNK_SIZE];
+
+            try {
+                if (compression == Compression.NONE) {
+                    readMapped();
+                } else {
+                    readCompressed();
+                }
+
+            } catch (IOException e) {
+                GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to backfill " + this + ":", e);
+                return;
+            }
+
+            // The range is only completed once RabbitMQ has confirmed all of its chunks
+            String range = toString();
+            producer.sendChunk(logEntries, format, source, linePositions, () -> ConfigManager.CONFIG_MANAGER.addCompletedBackfillRange(range));
+        }
+
+        /**
+         * Maps the range into memory and scans it for newlines in place. Archived files are no longer written, but a
+         * file that is truncated or replaced anyway while it is mapped fails the range instead of the worker thread.
+         *
+         * @throws IOException If the file can not be read or is truncated while it is mapped.
+         */
+        private void readMapped() throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer range = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+                // The last line of a file may not be terminated
+                addLines(range, range.limit(), start, true);
+            } catch (InternalError e) {
+                // Accessing a mapped page past the end of a truncated file raises SIGBUS, reported as an InternalError
+                throw new IOException("The file was truncated while it was mapped.", e);
+            }
+        }
+
+        /**
+         * Decompresses the file as a stream and scans the decompressed bytes for newlines.
+         *
+         * @throws IOException If the file can not be read or decompressed.
+         */
+        private void readCompressed() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(WatcherConfigConstants.DECOMPRESSION_BUFFER_SIZE);
+
+            try (InputStream in = compression.open(file)) {
+                // Position in the decompressed stream of the first byte in the buffer
+                long bufferStart = 0;
+                int bytesRead;
+
+                while ((bytesRead = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+                    buffer.position(buffer.position() + bytesRead);
+                    buffer.flip();
+
+                    // Move the partially read line to the beginning of the buffer
+                    int consumed = addLines(buffer, buffer.limit(), bufferStart, false);
+                    bufferStart += consumed;
+                    buffer.position(consumed);
+                    buffer.compact();
+
+                    if (!buffer.hasRemaining()) {
+                        // The line is longer than the buffer, grow it
+                        buffer.flip();
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+                    }
+                }
+
+                buffer.flip();
+                addLines(buffer, buffer.limit(), bufferStart, true);
+            }
+        }
+
+        /**
+         * Copies the lines of a buffer into the current chunk, leaving out the carriage return of Windows line endings
+         * and empty lines. The chunk is sent once it is full.
+         *
+         * @param buffer      The buffer holding the lines, starting at index 0.
+         * @param limit       Number of bytes in the buffer.
+         * @param bufferStart Position in the file, or in the decompressed stream, of the first byte in the buffer.
+         * @param isLastOne   True if the bytes after the last newline are a complete line.
+         * @return Index of the first byte that has not been consumed.
+         */
+        private int addLines(ByteBuffer buffer, int limit, long bufferStart, boolean isLastOne) {
+            int lineStart = 0;
+
+            for (int i = 0; i <= limit; i++) {
+                if (i < limit ? buffer.get(i) != '\n' : !isLastOne) {
+                    continue;
+                }
+
+                int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+
+                if (lineEnd > lineStart) {
+                    byte[] line = new byte[lineEnd - lineStart];
+                    buffer.get(lineStart, line);
+                    linePositions[logEntries.size()] = bufferStart + lineStart;
+                    logEntries.add(line);
+                }
+
+                lineStart = Math.min(i + 1, limit);
+
+                if (logEntries.size() >= RabbitMQConfigConstants.CHUNK_SIZE) {
+                    // Wait for the consumers to catch up before sending more
+                    FlowControl.FLOW_CONTROL.awaitCredit();
+                    producer.sendChunk(logEntries, format, source, linePositions, null);
+                    logEntries.clear();
+                }
+            }
+
+            return lineStart;
+        }
+
+        @Override
+        public String toString() {
+            return file + " " + start + " " + end;
+        }
+    }
+}
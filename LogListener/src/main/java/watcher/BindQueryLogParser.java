@@ -0,0 +1,167 @@
+package watcher;
+
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Parses the lines of a BIND query log into a LogEntry. The category and severity are only written when print-category
+ * and print-severity are set, and BIND 9.11 and later write the address of the client object before its address:
+ * <pre>
+ * 20-Sep-2023 14:25:53.123 queries: info: client @0x7f8b2c0 192.168.1.10#53421 (www.google.com): query: www.google.com IN A +E(0)K (192.168.1.1)
+ * 20-Sep-2023 14:25:53.123 client 192.168.1.10#53421 (www.google.com): query: www.google.com IN A + (192.168.1.1)
+ * </pre>
+ * The query log only holds the queries received by the server, so every entry is a received query. Its flags are
+ * stored as they are, a "T" among them marks a query over TCP.
+ */
+public class BindQueryLogParser implements LogFormatParser {
+
+    public static final String FORMAT_NAME = "bind-query";
+
+    private static final int MAX_TOKENS = 32;
+
+    // Fewest tokens a line can have: date, time, "client", address, "(name):", "query:", name, class, type and flags
+    private static final int MIN_TOKENS = 10;
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("d-MMM-yyyy HH:mm:ss", Locale.ENGLISH);
+
+    private static final int DICTIONARY_CAPACITY = 64;
+
+    private final LineTokenizer tokenizer;
+    private final int[] tokenStarts;
+    private final int[] tokenEnds;
+    private final TimestampCache timestampCache;
+    private final StringDictionary flags;
+
+    public BindQueryLogParser() {
+        this.tokenizer = new LineTokenizer(MAX_TOKENS);
+        this.tokenStarts = tokenizer.getStarts();
+        this.tokenEnds = tokenizer.getEnds();
+        this.timestampCache = new TimestampCache(WatcherConfigConstants.SOURCE_TIME_ZONE, FORMATTER);
+        this.flags = new StringDictionary(DICTIONARY_CAPACITY);
+    }
+
+    @Override
+    public String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+    @Override
+    public ParseStatus parse(byte[] line, int offset, int length, LogEntry entry) {
+        int tokenCount = tokenizer.tokenize(line, offset, offset + length);
+
+        if (tokenCount == 0) {
+            return ParseStatus.BLANK;
+        }
+
+        // Other categories, such as lame servers or zone transfers, may be logged into the same file
+        int client = find(line, tokenCount, 2, "client");
+        int query = client != -1 ? find(line, tokenCount, client + 1, "query:") : -1;
+        if (query == -1) {
+            return ParseStatus.IGNORED;
+        }
+
+        // "query:" must be followed by the name, class, type and flags
+        if (tokenCount < MIN_TOKENS || query + 4 >= tokenCount) {
+            return ParseStatus.TRUNCATED;
+        }
+
+        // The address of the client object is written before the address of the client since BIND 9.11
+        int address = client + 1;
+        if (line[tokenStarts[address]] == '@') {
+            address++;
+        }
+
+        int addressEnd = indexOf(line, tokenStarts[address], tokenEnds[address], (byte) '#');
+        if (addressEnd == -1) {
+            return ParseStatus.MALFORMED;
+        }
+
+        // Milliseconds are left out of the cached text, so the date and time are only parsed once per second
+        int timeEnd = indexOf(line, tokenStarts[1], tokenEnds[1], (byte) '.');
+        long timestamp = timestampCache.toEpochMillis(line, tokenStarts[0], tokenEnds[0], tokenStarts[1],
+                timeEnd != -1 ? timeEnd : tokenEnds[1]);
+
+        if (timestamp == TimestampCache.INVALID) {
+            return ParseStatus.MALFORMED;
+        }
+
+        entry.reset(line);
+        setToken(entry, LogEntry.DATE, 0);
+        setToken(entry, LogEntry.TIME, 1);
+        entry.setTimestamp(timeEnd != -1 ? timestamp + parseMillis(line, timeEnd + 1, tokenEnds[1]) : timestamp);
+
+        int flagsToken = query + 4;
+        boolean isTcp = indexOf(line, tokenStarts[flagsToken], tokenEnds[flagsToken], (byte) 'T') != -1;
+
+        entry.setProtocol(isTcp ? Protocol.TCP : Protocol.UDP);
+        entry.setDirection(Direction.RECEIVE);
+        entry.setField(LogEntry.REMOTE_IP, tokenStarts[address], addressEnd);
+        entry.setMessageKind(MessageKind.QUERY);
+
+        setToken(entry, LogEntry.FLAGS_HEX, flagsToken);
+        entry.setField(LogEntry.FLAGS_HEX, flags.lookup(line, tokenStarts[flagsToken], tokenEnds[flagsToken]));
+
+        setToken(entry, LogEntry.RESPONSE_CODE, query + 3);
+        entry.setRecordType(RecordType.of(line, tokenStarts[query + 3], tokenEnds[query + 3]));
+
+        setToken(entry, LogEntry.QUESTION_TYPE, query + 1);
+
+        return ParseStatus.PARSED;
+    }
+
+    /**
+     * Finds the first token equal to a keyword.
+     *
+     * @return Index of the token, or -1 if no token from the given one on is equal to the keyword.
+     */
+    private int find(byte[] line, int tokenCount, int fromToken, String keyword) {
+        for (int t = fromToken; t < tokenCount; t++) {
+            int start = tokenStarts[t];
+
+            if (tokenEnds[t] - start != keyword.length()) {
+                continue;
+            }
+
+            int i = 0;
+            while (i < keyword.length() && line[start + i] == keyword.charAt(i)) {
+                i++;
+            }
+
+            if (i == keyword.length()) {
+                return t;
+            }
+        }
+
+        return -1;
+    }
+
+    private int indexOf(byte[] line, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int parseMillis(byte[] line, int start, int end) {
+        int millis = 0;
+
+        for (int i = start; i < start + 3; i++) {
+            int digit = i < end ? line[i] - '0' : 0;
+
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+
+            millis = millis * 10 + digit;
+        }
+
+        return millis;
+    }
+
+    private void setToken(LogEntry entry, int field, int token) {
+        entry.setField(field, tokenStarts[token], tokenEnds[token]);
+    }
+}
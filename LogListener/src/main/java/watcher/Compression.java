@@ -0,0 +1,85 @@
+package watcher;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression formats of archived log files. The format is detected from the magic bytes at the start of a file, not
+ * from its extension.
+ */
+public enum Compression {
+
+    NONE(new byte[0]),
+    GZIP(new byte[]{(byte) 0x1F, (byte) 0x8B}),
+    ZSTD(new byte[]{(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD});
+
+    private final byte[] magic;
+
+    Compression(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * Detects the compression format of a file.
+     *
+     * @param file The file to inspect.
+     * @return The Compression of the file, NONE if it is plain text.
+     * @throws IOException If the file can not be read.
+     */
+    public static Compression detect(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileChannel.read(header, 0);
+        }
+
+        for (Compression compression : values()) {
+            if (compression != NONE && compression.matches(header)) {
+                return compression;
+            }
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Opens a stream that decompresses the file as it is read, so no decompressed copy is written to disk.
+     *
+     * @param file The file to read.
+     * @return An InputStream of the decompressed content of the file.
+     * @throws IOException If the file can not be opened.
+     */
+    public InputStream open(Path file) throws IOException {
+        int bufferSize = WatcherConfigConstants.DECOMPRESSION_BUFFER_SIZE;
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), bufferSize);
+
+        return switch (this) {
+            case NONE -> in;
+            case GZIP -> new GZIPInputStream(in, bufferSize);
+            case ZSTD -> new ZstdInputStream(in);
+        };
+    }
+
+    private boolean matches(ByteBuffer header) {
+        if (header.position() < magic.length) {
+            return false;
+        }
+
+        for (int i = 0; i < magic.length; i++) {
+            if (header.get(i) != magic[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package watcher;
+
+/**
+ * Whether a DNS packet was sent or received by the DNS server.
+ */
+public enum Direction {
+
+    SEND("Snd"),
+    RECEIVE("Rcv");
+
+    private static final EnumDictionary<Direction> DICTIONARY = new EnumDictionary<>(values(), Direction::getLabel);
+
+    private final String label;
+
+    Direction(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Looks up the constant written in a log line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant, or null if the label is not known.
+     */
+    public static Direction of(byte[] line, int start, int end) {
+        return DICTIONARY.lookup(line, start, end);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
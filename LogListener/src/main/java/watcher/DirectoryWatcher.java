@@ -2,116 +2,170 @@ package watcher;
 
 import utils.GlobalLogger;
 
+import java.io.IOException;
 import java.nio.file.*;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Level;
 
-public class DirectoryWatcher implements Runnable {
+public class DirectoryWatcher {
 
     public static final LinkedList<DirectoryWatcher> DIRECTORY_WATCHERS = new LinkedList<>();
 
     // String:fileName, Watcher:watcher (each watcher watches one log file)
-    public static final HashMap<String, Watcher> WATCHERS = new HashMap<>();
+    public static final ConcurrentHashMap<String, Watcher> WATCHERS = new ConcurrentHashMap<>();
+
+    // String:FileIdentity of a log file, Watcher:watcher that reads or has read that file. Rotated files stay in the
+    // map, so they are not read again under their new names. The least recently used identities are dropped.
+    public static final Map<String, Watcher> FILE_IDENTITIES = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Watcher> eldest) {
+                    return size() > WatcherConfigConstants.MAX_TRACKED_FILE_IDENTITIES;
+                }
+            });
     private final Path dir;
-    private final Thread thread;
 
-    private boolean isRunning;
+    private WatchKey key;
 
     /**
-     * Initializes a DirectoryWatcher instance for monitoring a specified directory. It sets the directory path and
-     * initializes the internal data structures. The watcher is initially not running.
+     * Initializes a DirectoryWatcher instance for monitoring a specified directory. It sets the directory path. The
+     * directory is not monitored until the watcher is started.
      *
      * @param dir The Path object representing the directory to be monitored.
      */
     public DirectoryWatcher(Path dir) {
         this.dir = dir;
-        this.isRunning = false;
-        this.thread = new Thread(this);
+        this.key = null;
     }
 
     /**
-     * The run method is executed when the DirectoryWatcher is started as a separate thread. It continuously monitors
-     * the specified directory for changes in log files and creates or wakes up Watcher instances for individual log
-     * files.
+     * Handles a change event of the monitored directory, delivered by the WatcherScheduler. Creation, modification and
+     * deletion of a log file wake up the Watcher of that file name, so it can notice a rotation. A file without a
+     * Watcher gets one, unless it is a rotated file that is already being read under its old name.
+     *
+     * @param event A WatchEvent of the monitored directory.
      */
-    @Override
-    public void run() {
+    public void handleEvent(WatchEvent<?> event) {
+        // This file has been changed
+        Path changedFile = dir.resolve((Path) event.context()).toAbsolutePath();
 
-        try {
-            // Create a watch service to monitor changes on a directory
-            WatchService watchService = FileSystems.getDefault().newWatchService();
-
-            // Assign that watch service to a directory
-            dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+        handleChange(changedFile, event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+    }
 
-            GlobalLogger.getLoggerInstance().log(Level.INFO, "Started watching log files on " + dir);
+    /**
+     * Handles an overflow of the WatchService, delivered by the WatcherScheduler instead of the events that have been
+     * lost. Every Watcher of the directory is woken up, as any of them may have missed its wake up call, and the
+     * directory is listed again so the log files created meanwhile get a Watcher.
+     */
+    public void handleOverflow() {
+        Path absoluteDir = dir.toAbsolutePath();
 
-            while (isRunning) {
-                WatchKey key;
+        for (Map.Entry<String, Watcher> entry : WATCHERS.entrySet()) {
+            if (absoluteDir.equals(Paths.get(entry.getKey()).getParent())) {
+                entry.getValue().wakeUp();
+            }
+        }
 
-                try {
-                    key = watchService.take(); // Blocking
-                } catch (InterruptedException e) {
-                    GlobalLogger.getLoggerInstance().log(Level.INFO, "DirectoryWatcher has been interrupted. Cleaning up and exiting this thread. " + dir);
-                    watchService.close();
-                    break;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(absoluteDir)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && !WATCHERS.containsKey(file.toString())) {
+                    handleChange(file, false);
                 }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to list " + dir + " after an overflow of the watch service:", e);
+        }
 
-                if (key == null) {
-                    continue;
-                }
+        GlobalLogger.getLoggerInstance().log(Level.WARN, "Events of " + dir + " have been lost, woke up its watchers and listed it again.");
+    }
 
-                // Handle events
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    WatchEvent.Kind<?> kind = event.kind();
+    /**
+     * Wakes up the Watcher of a changed file, creating it if the file has none.
+     *
+     * @param changedFile The absolute path of the changed file.
+     * @param isDeleted   True if the file has been deleted.
+     */
+    private void handleChange(Path changedFile, boolean isDeleted) {
+        String absolutePath = changedFile.toString();
 
-                    if (kind == StandardWatchEventKinds.OVERFLOW) {
-                        continue;
-                    }
+        Watcher watcher = WATCHERS.get(absolutePath);
 
-                    // This file has been changed
-                    Path changedFile = (Path) event.context();
+        if (watcher != null) {
+            // There is a watcher for this log file, wake him up
+            watcher.wakeUp();
+            return;
+        }
 
-                    String absolutePath = ((Path) key.watchable()).resolve(changedFile).toAbsolutePath().toString();
+        if (isDeleted) {
+            return;
+        }
 
-                    if (WATCHERS.containsKey(absolutePath)) {
-                        // There is a watcher for this log file, wake him up
-                        WATCHERS.get(absolutePath).wakeUp();
-                        continue;
-                    }
+        String identity = FileIdentity.of(changedFile);
 
-                    // There is no watcher for this file, create one
-                    Watcher watcher = new Watcher(absolutePath);
-                    WATCHERS.put(absolutePath, watcher);
-                    watcher.start();
-                    watcher.wakeUp();
-                }
+        if (identity == null) {
+            // The file is already gone
+            return;
+        }
 
-                key.reset();
-            }
-        } catch (Exception e) {
-            GlobalLogger.getLoggerInstance().log(Level.INFO, "An error occurred trying to monitor a directory:", e);
+        if (isCompressed(changedFile)) {
+            // A compressed archive of a rotated log file does not grow, archives are loaded with a backfill
+            return;
+        }
+
+        Watcher owner = FILE_IDENTITIES.get(identity);
+
+        if (owner != null) {
+            // A rotated file, its watcher drains it under the old name
+            owner.wakeUp();
+            return;
         }
+
+        // There is no watcher for this file, create one
+        watcher = new Watcher(absolutePath);
+        WATCHERS.put(absolutePath, watcher);
+        watcher.wakeUp();
     }
 
     /**
-     * Starts the DirectoryWatcher. It sets the watcher to a running state and initiates the thread to begin monitoring
-     * the directory for log file changes.
+     * Checks whether a file is a compressed archive.
+     *
+     * @param file The file to check.
+     * @return True if the file is gzip or zstd compressed, false if it is plain text or can not be read.
+     */
+    private boolean isCompressed(Path file) {
+        try {
+            return Compression.detect(file) != Compression.NONE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the DirectoryWatcher. It registers the directory to the WatcherScheduler to begin monitoring the
+     * directory for log file changes.
      */
     public void start() {
-        isRunning = true;
-        thread.start();
+        try {
+            key = WatcherScheduler.WATCHER_SCHEDULER.register(this);
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "Started watching log files on " + dir);
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "An error occurred trying to monitor a directory:", e);
+        }
     }
 
     /**
-     * Stops the DirectoryWatcher. It sets the watcher to a non-running state and interrupts the thread, allowing it to
-     * gracefully exit. Any ongoing monitoring is terminated.
+     * Stops the DirectoryWatcher. It cancels the registration of the directory, any further change on the directory
+     * is ignored.
      */
     public void stop() {
-        isRunning = false;
-        thread.interrupt();
+        if (key != null) {
+            WatcherScheduler.WATCHER_SCHEDULER.unregister(key);
+        }
     }
 
     public Path getDir() {
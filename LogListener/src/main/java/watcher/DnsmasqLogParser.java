@@ -0,0 +1,212 @@
+package watcher;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * Parses the query lines of a dnsmasq log, written with log-queries, into a LogEntry. With log-queries=extra the
+ * serial number of the query and the address and port of the client are written before it:
+ * <pre>
+ * Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from 192.168.1.10
+ * Sep  2 14:25:53 dnsmasq[1234]: 27 192.168.1.10/53421 query[AAAA] www.google.com from 192.168.1.10
+ * </pre>
+ * Only queries are parsed, the lines dnsmasq writes about forwarding, caching and replying are not.
+ * <p>
+ * Syslog timestamps have no year. It is inferred from a reference date, today in the time zone of the DNS server
+ * unless SYSLOG_REFERENCE_DATE is set, e.g. to the date an archived log was rotated before it is backfilled. A line
+ * whose month is later than the month of the reference date was written the year before, so the December lines read
+ * in January and the lines of a log up to a year old get the right year.
+ */
+public class DnsmasqLogParser implements LogFormatParser {
+
+    public static final String FORMAT_NAME = "dnsmasq";
+
+    private static final int MAX_TOKENS = 16;
+
+    // Fewest tokens a line can have: month, day, time, process, "query[type]", name, "from" and address
+    private static final int MIN_TOKENS = 8;
+
+    private static final byte[] QUERY_PREFIX = {'q', 'u', 'e', 'r', 'y', '['};
+    private static final byte[] FROM = {'f', 'r', 'o', 'm'};
+    private static final byte[] MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes(StandardCharsets.US_ASCII);
+
+    private final LineTokenizer tokenizer;
+    private final int[] tokenStarts;
+    private final int[] tokenEnds;
+
+    // Timestamp caches of the year of the reference date and of the year before
+    private TimestampCache currentYearCache;
+    private TimestampCache previousYearCache;
+    private int referenceMonth;
+    private long nextDayMillis;
+
+    public DnsmasqLogParser() {
+        this.tokenizer = new LineTokenizer(MAX_TOKENS);
+        this.tokenStarts = tokenizer.getStarts();
+        this.tokenEnds = tokenizer.getEnds();
+    }
+
+    @Override
+    public String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+    @Override
+    public ParseStatus parse(byte[] line, int offset, int length, LogEntry entry) {
+        int tokenCount = tokenizer.tokenize(line, offset, offset + length);
+
+        if (tokenCount == 0) {
+            return ParseStatus.BLANK;
+        }
+
+        // The query comes right after the process, or after the serial number and client of log-queries=extra
+        int query = 4;
+        while (query < tokenCount && !startsWith(line, query, QUERY_PREFIX)) {
+            query++;
+        }
+
+        // Forwarding, caching and reply lines are logged along with the queries
+        if (query == tokenCount) {
+            return ParseStatus.IGNORED;
+        }
+
+        if (tokenCount < MIN_TOKENS || query + 3 >= tokenCount) {
+            return ParseStatus.TRUNCATED;
+        }
+
+        if (line[tokenEnds[query] - 1] != ']' || !startsWith(line, query + 2, FROM)) {
+            return ParseStatus.MALFORMED;
+        }
+
+        TimestampCache timestampCache = getTimestampCache(line, tokenStarts[0], tokenEnds[0]);
+
+        if (timestampCache == null) {
+            return ParseStatus.MALFORMED;
+        }
+
+        long timestamp = timestampCache.toEpochMillis(line, tokenStarts[0], tokenEnds[1], tokenStarts[2], tokenEnds[2]);
+
+        if (timestamp == TimestampCache.INVALID) {
+            return ParseStatus.MALFORMED;
+        }
+
+        entry.reset(line);
+        entry.setField(LogEntry.DATE, tokenStarts[0], tokenEnds[1]);
+        setToken(entry, LogEntry.TIME, 2);
+        entry.setTimestamp(timestamp);
+
+        // The process id between the brackets of "dnsmasq[1234]:"
+        int processIdStart = indexOf(line, tokenStarts[3], tokenEnds[3], (byte) '[');
+        int processIdEnd = indexOf(line, tokenStarts[3], tokenEnds[3], (byte) ']');
+        if (processIdStart != -1 && processIdEnd > processIdStart) {
+            entry.setField(LogEntry.THREAD_ID, processIdStart + 1, processIdEnd);
+        }
+
+        entry.setDirection(Direction.RECEIVE);
+        setToken(entry, LogEntry.REMOTE_IP, query + 3);
+        entry.setMessageKind(MessageKind.QUERY);
+
+        int typeStart = tokenStarts[query] + QUERY_PREFIX.length;
+        int typeEnd = tokenEnds[query] - 1;
+        entry.setField(LogEntry.RESPONSE_CODE, typeStart, typeEnd);
+        entry.setRecordType(RecordType.of(line, typeStart, typeEnd));
+
+        setToken(entry, LogEntry.QUESTION_TYPE, query + 1);
+
+        return ParseStatus.PARSED;
+    }
+
+    /**
+     * Returns the timestamp cache of the year a line was written in, the year of the reference date or the year
+     * before. The caches are created again every day when the reference date is today, since the year is not written
+     * in the log.
+     *
+     * @param line       A buffer holding the line.
+     * @param monthStart Index of the first byte of the month, e.g. "Sep".
+     * @param monthEnd   Index right after the last byte of the month.
+     * @return The timestamp cache, or null if the month is not an English month abbreviation.
+     */
+    private TimestampCache getTimestampCache(byte[] line, int monthStart, int monthEnd) {
+        if (currentYearCache == null || System.currentTimeMillis() >= nextDayMillis) {
+            LocalDate referenceDate = WatcherConfigConstants.SYSLOG_REFERENCE_DATE != null
+                    ? WatcherConfigConstants.SYSLOG_REFERENCE_DATE
+                    : LocalDate.now(WatcherConfigConstants.SOURCE_TIME_ZONE);
+
+            currentYearCache = new TimestampCache(WatcherConfigConstants.SOURCE_TIME_ZONE, formatterOf(referenceDate.getYear()));
+            previousYearCache = new TimestampCache(WatcherConfigConstants.SOURCE_TIME_ZONE, formatterOf(referenceDate.getYear() - 1));
+            referenceMonth = referenceDate.getMonthValue();
+            nextDayMillis = WatcherConfigConstants.SYSLOG_REFERENCE_DATE != null
+                    ? Long.MAX_VALUE
+                    : referenceDate.plusDays(1)
+                            .atStartOfDay(WatcherConfigConstants.SOURCE_TIME_ZONE)
+                            .toInstant()
+                            .toEpochMilli();
+        }
+
+        int month = monthOf(line, monthStart, monthEnd);
+
+        if (month == 0) {
+            return null;
+        }
+
+        return month > referenceMonth ? previousYearCache : currentYearCache;
+    }
+
+    private static DateTimeFormatter formatterOf(int year) {
+        return new DateTimeFormatterBuilder()
+                .appendPattern("MMM ppd HH:mm:ss")
+                .parseDefaulting(ChronoField.YEAR, year)
+                .toFormatter(Locale.ENGLISH);
+    }
+
+    /**
+     * @return The number of the month, 1 for "Jan", or 0 if the token is not an English month abbreviation.
+     */
+    private static int monthOf(byte[] line, int start, int end) {
+        if (end - start != 3) {
+            return 0;
+        }
+
+        for (int month = 0; month < 12; month++) {
+            if (line[start] == MONTHS[month * 3] && line[start + 1] == MONTHS[month * 3 + 1] && line[start + 2] == MONTHS[month * 3 + 2]) {
+                return month + 1;
+            }
+        }
+
+        return 0;
+    }
+
+    private boolean startsWith(byte[] line, int token, byte[] prefix) {
+        int start = tokenStarts[token];
+
+        if (tokenEnds[token] - start < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int indexOf(byte[] line, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void setToken(LogEntry entry, int field, int token) {
+        entry.setField(field, tokenStarts[token], tokenEnds[token]);
+    }
+}
@@ -0,0 +1,43 @@
+package watcher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Looks up the constant of an enum from its label in the raw bytes of a log line, without creating a String.
+ *
+ * @param <E> The enum whose labels are looked up.
+ */
+final class EnumDictionary<E extends Enum<E>> {
+
+    private final E[] values;
+    private final byte[][] labels;
+
+    EnumDictionary(E[] values, Function<E, String> label) {
+        this.values = values;
+        this.labels = new byte[values.length][];
+
+        for (int i = 0; i < values.length; i++) {
+            labels[i] = label.apply(values[i]).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param line  A buffer holding the label.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant with the label, or null if there is none.
+     */
+    E lookup(byte[] line, int start, int end) {
+        int length = end - start;
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].length == length && Arrays.equals(line, start, end, labels[i], 0, length)) {
+                return values[i];
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,157 @@
+package watcher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * Identifies a file independently of its name, so a log file can be followed when it is renamed by a log rotation and
+ * told apart from the new file that takes over its name.
+ */
+public final class FileIdentity {
+
+    // Name of the machine the files are read on, so equal identities of files on different machines are told apart
+    private static final String HOST_NAME = hostName();
+
+    // Separates the creation time from the fingerprint of the first line in the identities of files without a file key
+    private static final char FINGERPRINT_SEPARATOR = '#';
+
+    // The first line is fingerprinted up to this many bytes
+    private static final int FINGERPRINT_SIZE = 1024;
+
+    private FileIdentity() {
+    }
+
+    /**
+     * Returns the identity of a file. It is the file key (device and inode on Unix-like systems) when the file system
+     * provides one. Windows does not, so the creation time of the file is used instead, followed by a fingerprint of the
+     * first line of the file once it is complete. NTFS file system tunneling gives a file that is created under the
+     * name of a file renamed or deleted within about 15 seconds the creation time of the old file, which is exactly
+     * what the rollover of a Windows DNS server log does. The first line tells them apart, as the DNS server starts
+     * every log with the time it has been created.
+     * <p>
+     * Identities without a fingerprint are compared with isSameFile, not with equals.
+     *
+     * @param file The file to identify.
+     * @return A String identifying the file, or null if the file does not exist or can not be read.
+     */
+    public static String of(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+
+            if (fileKey != null) {
+                return fileKey.toString();
+            }
+
+            String creationTime = attributes.creationTime().toString();
+            String fingerprint = fingerprintFirstLine(file);
+
+            return fingerprint != null ? creationTime + FINGERPRINT_SEPARATOR + fingerprint : creationTime;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares two identities. An identity without a fingerprint has been taken before the first line of the file was
+     * complete, it is the same as an identity of the same creation time with a fingerprint.
+     *
+     * @param identity An identity, or null.
+     * @param other    Another identity, or null.
+     * @return True if the identities may belong to the same file.
+     */
+    public static boolean isSameFile(String identity, String other) {
+        if (Objects.equals(identity, other)) {
+            return true;
+        }
+
+        if (identity == null || other == null || (hasFingerprint(identity) && hasFingerprint(other))) {
+            return false;
+        }
+
+        return creationTimeOf(identity).equals(creationTimeOf(other));
+    }
+
+    /**
+     * Picks the more specific of two identities of the same file.
+     *
+     * @param identity An identity.
+     * @param other    Another identity for which isSameFile is true.
+     * @return The identity with the fingerprint, if one of them has one.
+     */
+    public static String moreSpecific(String identity, String other) {
+        return identity != null && hasFingerprint(identity) ? identity : other;
+    }
+
+    private static boolean hasFingerprint(String identity) {
+        return identity.indexOf(FINGERPRINT_SEPARATOR) != -1;
+    }
+
+    private static String creationTimeOf(String identity) {
+        int separator = identity.indexOf(FINGERPRINT_SEPARATOR);
+
+        return separator != -1 ? identity.substring(0, separator) : identity;
+    }
+
+    /**
+     * @param file The file to fingerprint.
+     * @return The CRC-32C of the first line of the file in hex, or null if the file has no complete line yet.
+     * @throws IOException If the file can not be read.
+     */
+    private static String fingerprintFirstLine(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SIZE);
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && fileChannel.read(buffer) > 0) {
+                // Read until the buffer is full or the file ends
+            }
+        }
+
+        buffer.flip();
+        int end = 0;
+
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+
+        if (end == buffer.limit() && buffer.limit() < FINGERPRINT_SIZE) {
+            return null;
+        }
+
+        // A line longer than FINGERPRINT_SIZE is fingerprinted by its beginning
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, end);
+
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Returns the source of the lines of a file, which names the file independently of its name and of the machine it
+     * is read on. It stays the same when the file is read again, so the lines keep their document ids, see
+     * elastic.DocumentIds.
+     *
+     * @param identity The identity of the file, as returned by of.
+     * @return The source of the lines of the file, or null if the identity is null.
+     */
+    public static String sourceOf(String identity) {
+        return identity != null ? HOST_NAME + ":" + identity : null;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            String hostName = System.getenv("COMPUTERNAME");
+            return hostName != null ? hostName : String.valueOf(System.getenv("HOSTNAME"));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package watcher;
+
+/**
+ * Finds the tokens of a log line, separated by spaces or tabs, without copying them. The bounds of the tokens are
+ * written into arrays that are reused for every line, so one instance must only be used by one thread.
+ */
+class LineTokenizer {
+
+    private final int[] starts;
+    private final int[] ends;
+
+    /**
+     * @param maxTokens Most tokens a line is split into, the rest of a longer line is ignored.
+     */
+    LineTokenizer(int maxTokens) {
+        this.starts = new int[maxTokens];
+        this.ends = new int[maxTokens];
+    }
+
+    /**
+     * Finds the tokens of a line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the line.
+     * @param end   Index right after the last byte of the line.
+     * @return Number of tokens found, at most the maximum given to the constructor.
+     */
+    int tokenize(byte[] line, int start, int end) {
+        int tokenCount = 0;
+        int i = start;
+
+        while (i < end && tokenCount < starts.length) {
+            while (i < end && isSeparator(line[i])) {
+                i++;
+            }
+
+            if (i == end) {
+                break;
+            }
+
+            starts[tokenCount] = i;
+
+            while (i < end && !isSeparator(line[i])) {
+                i++;
+            }
+
+            ends[tokenCount] = i;
+            tokenCount++;
+        }
+
+        return tokenCount;
+    }
+
+    /**
+     * @return Index of the first byte of each token found by the last call to tokenize.
+     */
+    int[] getStarts() {
+        return starts;
+    }
+
+    /**
+     * @return Index right after the last byte of each token found by the last call to tokenize.
+     */
+    int[] getEnds() {
+        return ends;
+    }
+
+    private boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
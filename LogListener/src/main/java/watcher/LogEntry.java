@@ -1,28 +1,54 @@
 package watcher;
 
-import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A DNS log entry. The entry does not copy the fields out of the log line, it only keeps the positions of the fields
+ * in the raw UTF-8 bytes of the line. A field is turned into a String the first time it is read, which in practice
+ * happens when the entry is serialized to Elasticsearch. The same entry is reused for every line a parser parses.
+ * <p>
+ * Fields that only take a handful of values are decoded into enums or interned Strings while the line is parsed, so
+ * they are never decoded per line and can be compared by reference or switched on.
+ */
 public class LogEntry {
 
-    private final UUID id;                        // UUID
-    private final String date;                    // 11/17/2021
-    private final String time;                    // 6:00:00 AM
-    private final String threadId;                // 0D0C
-    private final String context;                 // PACKET
-    private final String internalPacketId;        // 00000272D98DD0B0
-    private final String udpTcpIndicator;         // UDP
-    private final String sendReceiveIndicator;    // Rcv
-    private final String remoteIp;                // 192.168.13.130
-    private final String xidHex;                  // 0002
-    private final String queryResponse;           // Q
-    private final String opcode;                  // 0001
-    private final String flagsHex;                // D
-    private final String flagsChar;               // NOERROR
-    private final String responseCode;            // A
-    private final String questionType;            // (8)woshub(2)com(0)
-    private final String questionName;            // woshub.com
+    // Indexes of the fields that are taken from the log line
+    public static final int DATE = 0;                      // 11/17/2021
+    public static final int TIME = 1;                      // 6:00:00 AM
+    public static final int THREAD_ID = 2;                 // 0D0C
+    public static final int CONTEXT = 3;                   // PACKET
+    public static final int INTERNAL_PACKET_ID = 4;        // 00000272D98DD0B0
+    public static final int UDP_TCP_INDICATOR = 5;         // UDP
+    public static final int SEND_RECEIVE_INDICATOR = 6;    // Rcv
+    public static final int REMOTE_IP = 7;                 // 192.168.13.130
+    public static final int XID_HEX = 8;                   // 0002
+    public static final int QUERY_RESPONSE = 9;            // Q
+    public static final int OPCODE = 10;                   // 0001
+    public static final int FLAGS_HEX = 11;                // D
+    public static final int FLAGS_CHAR = 12;               // NOERROR
+    public static final int RESPONSE_CODE = 13;            // A
+    public static final int QUESTION_TYPE = 14;            // (8)woshub(2)com(0)
+    public static final int FIELD_COUNT = 15;
+
+    private final int[] fieldStarts;
+    private final int[] fieldEnds;
+    private final String[] fieldTexts;
+    private final QNameDecoder questionNameDecoder;
+
+    private byte[] line;
+    private String id;                      // Xq3v0TnD2k6bR1mC9yWf8A (null to let Elasticsearch choose it)
+    private long timestamp;                 // 1637128800000 (epoch milliseconds of date and time)
+    private Protocol protocol;              // UDP
+    private Direction direction;            // RECEIVE
+    private MessageKind messageKind;        // QUERY
+    private ResponseCode rcode;             // NOERROR
+    private RecordType recordType;          // A
+    private boolean isQuestionNameDecoded;
+    private String questionName;            // woshub.com
     private String localIp;
     private String hostAddress;
     private String macAddress;
@@ -30,51 +56,156 @@ public class LogEntry {
     // 11/17/2021 6:00:00 AM 0D0C PACKET 00000272D98DD0B0 UDP Rcv 192.168.13.130 0002 Q [0001 D NOERROR] A (8)woshub(2)com(0)
     // 08/24/2023 03:38:12 PM 000C21F0 PACKET 192.168.87.125 UDP Rcv 192.168.87.125 0002 Q [0001 D NOERROR] CNAME (15)ixutlvqgwnhzarq(0)
 
-    public LogEntry(String[] informations) {
-        this.id = UUID.randomUUID();
-        this.date = informations[0];
-        this.time = informations[1] + " " + informations[2];
-        this.threadId = informations[3];
-        this.context = informations[4];
-        this.internalPacketId = informations[5];
-        this.udpTcpIndicator = informations[6];
-        this.sendReceiveIndicator = informations[7];
-        this.remoteIp = informations[8];
-        this.xidHex = informations[9];
-        this.queryResponse = informations[10];
-        this.opcode = informations[11].substring(1);
-        this.flagsHex = informations[12];
-        this.flagsChar = informations[13].substring(0, informations[13].length() - 1);
-        this.responseCode = informations[14];
-        this.questionType = informations[15];
-        this.questionName = parseDNS(informations[15]);
+    public LogEntry() {
+        this.fieldStarts = new int[FIELD_COUNT];
+        this.fieldEnds = new int[FIELD_COUNT];
+        this.fieldTexts = new String[FIELD_COUNT];
+        this.questionNameDecoder = new QNameDecoder();
+
+        // The state reset leaves, without calling the overridable reset from the constructor
+        this.timestamp = TimestampCache.INVALID;
+        Arrays.fill(fieldStarts, -1);
+        Arrays.fill(fieldEnds, -1);
+    }
+
+    /**
+     * Clears the entry so it can hold the fields of a new log line. The id is cleared too, see setId.
+     *
+     * @param line The raw UTF-8 bytes the fields of the entry will point into.
+     */
+    public void reset(byte[] line) {
+        this.line = line;
+        this.id = null;
+        this.timestamp = TimestampCache.INVALID;
+        this.protocol = null;
+        this.direction = null;
+        this.messageKind = null;
+        this.rcode = null;
+        this.recordType = null;
+        Arrays.fill(fieldStarts, -1);
+        Arrays.fill(fieldEnds, -1);
+        Arrays.fill(fieldTexts, null);
+        this.isQuestionNameDecoded = false;
+        this.questionName = null;
         this.localIp = null;
         this.hostAddress = null;
         this.macAddress = null;
     }
 
     /**
-     * This method takes a DNS string in the format "(d1)d2(d3)d4...", where "(d1)", "(d2)", "(d3)", etc., represent
-     * numeric values enclosed in parentheses, followed by non-parenthesized domain components. It extracts and concatenates
-     * the non-parenthesized domain components, separated by dots ('.'), and returns the result as a single string.
+     * Points a field to a part of the log line.
+     *
+     * @param field Index of the field.
+     * @param start Index of the first byte of the field in the line.
+     * @param end   Index right after the last byte of the field in the line.
+     */
+    public void setField(int field, int start, int end) {
+        fieldStarts[field] = start;
+        fieldEnds[field] = end;
+    }
+
+    /**
+     * Sets a field to a constant, so it does not have to be decoded from the log line. If the constant is null, the
+     * field is decoded from the line as usual.
+     *
+     * @param field    Index of the field.
+     * @param constant An interned value of the field, or null.
+     */
+    public void setField(int field, String constant) {
+        fieldTexts[field] = constant;
+    }
+
+    /**
+     * @param field Index of the field.
+     * @return Index of the first byte of the field in the log line, or -1 if the field does not point into the line.
+     */
+    public int getFieldStart(int field) {
+        return fieldStarts[field];
+    }
+
+    /**
+     * @param field Index of the field.
+     * @return Index right after the last byte of the field in the log line, or -1 if the field does not point into the
+     * line.
+     */
+    public int getFieldEnd(int field) {
+        return fieldEnds[field];
+    }
+
+    /**
+     * @return The raw UTF-8 bytes the fields of the entry point into.
+     */
+    @JsonIgnore
+    public byte[] getLine() {
+        return line;
+    }
+
+    /**
+     * Returns a field as a String, decoding it from the log line the first time it is read.
      *
-     * @param dns The DNS string to be parsed.
-     * @return A concatenated string of non-parenthesized domain components, separated by dots ('.').
+     * @param field Index of the field.
+     * @return The field, or null if the line does not have it.
      */
-    public String parseDNS(String dns) {
-        Pattern pattern = Pattern.compile("\\((\\d+)\\)([^()]+)");
-        Matcher matcher = pattern.matcher(dns);
-        StringBuilder result = new StringBuilder();
+    private String getField(int field) {
+        if (fieldTexts[field] == null && fieldStarts[field] != -1) {
+            fieldTexts[field] = new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8);
+        }
 
-        while (matcher.find()) {
-            result.append(matcher.group(2));
+        return fieldTexts[field];
+    }
+
+    /**
+     * Decodes the length-prefixed question name of the line, e.g. "(8)woshub(2)com(0)", the first time the name or one
+     * of its parts is read. A name that is already dotted is taken as it is.
+     *
+     * @return The decoder holding the decoded name.
+     */
+    private QNameDecoder getQuestionNameDecoder() {
+        if (!isQuestionNameDecoded) {
+            int start = fieldStarts[QUESTION_TYPE];
 
-            if (matcher.find()) {
-                result.append(".");
+            if (start != -1 && start < fieldEnds[QUESTION_TYPE] && line[start] == '(') {
+                questionNameDecoder.decode(line, start, fieldEnds[QUESTION_TYPE]);
+            } else if (start != -1) {
+                // Logs other than the Windows DNS debug log write the name dotted
+                questionNameDecoder.decodeDotted(line, start, fieldEnds[QUESTION_TYPE]);
+            } else {
+                questionNameDecoder.clear();
             }
+
+            isQuestionNameDecoded = true;
         }
 
-        return result.toString();
+        return questionNameDecoder;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+        setField(UDP_TCP_INDICATOR, protocol != null ? protocol.getLabel() : null);
+    }
+
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+        setField(SEND_RECEIVE_INDICATOR, direction != null ? direction.getLabel() : null);
+    }
+
+    public void setMessageKind(MessageKind messageKind) {
+        this.messageKind = messageKind;
+        setField(QUERY_RESPONSE, messageKind != null ? messageKind.getLabel() : null);
+    }
+
+    public void setRcode(ResponseCode rcode) {
+        this.rcode = rcode;
+        setField(FLAGS_CHAR, rcode != null ? rcode.getLabel() : null);
+    }
+
+    public void setRecordType(RecordType recordType) {
+        this.recordType = recordType;
+        setField(RESPONSE_CODE, recordType != null ? recordType.getLabel() : null);
     }
 
     public void setLocalIp(String localIp) {
@@ -89,11 +220,140 @@ public class LogEntry {
         this.macAddress = macAddress;
     }
 
-    public UUID getId() {
+    /**
+     * Sets the id of the document of the entry in Elasticsearch. It is the _id of the document and is not repeated in
+     * its fields. Entries without an id get one generated by Elasticsearch, so sending them twice creates two documents.
+     *
+     * @param id The id, see elastic.DocumentIds, or null.
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @JsonIgnore
+    public String getId() {
         return id;
     }
 
+    @JsonProperty("@timestamp")
+    public Long getTimestamp() {
+        return timestamp != TimestampCache.INVALID ? timestamp : null;
+    }
+
+    @JsonIgnore
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    @JsonIgnore
+    public Direction getDirection() {
+        return direction;
+    }
+
+    @JsonIgnore
+    public MessageKind getMessageKind() {
+        return messageKind;
+    }
+
+    @JsonIgnore
+    public ResponseCode getRcode() {
+        return rcode;
+    }
+
+    @JsonIgnore
+    public RecordType getRecordType() {
+        return recordType;
+    }
+
+    public String getDate() {
+        return getField(DATE);
+    }
+
+    public String getTime() {
+        return getField(TIME);
+    }
+
+    public String getThreadId() {
+        return getField(THREAD_ID);
+    }
+
+    public String getContext() {
+        return getField(CONTEXT);
+    }
+
+    public String getInternalPacketId() {
+        return getField(INTERNAL_PACKET_ID);
+    }
+
+    public String getUdpTcpIndicator() {
+        return getField(UDP_TCP_INDICATOR);
+    }
+
+    public String getSendReceiveIndicator() {
+        return getField(SEND_RECEIVE_INDICATOR);
+    }
+
     public String getRemoteIp() {
-        return remoteIp;
+        return getField(REMOTE_IP);
+    }
+
+    public String getXidHex() {
+        return getField(XID_HEX);
+    }
+
+    public String getQueryResponse() {
+        return getField(QUERY_RESPONSE);
+    }
+
+    public String getOpcode() {
+        return getField(OPCODE);
+    }
+
+    public String getFlagsHex() {
+        return getField(FLAGS_HEX);
+    }
+
+    public String getFlagsChar() {
+        return getField(FLAGS_CHAR);
+    }
+
+    public String getResponseCode() {
+        return getField(RESPONSE_CODE);
+    }
+
+    public String getQuestionType() {
+        return getField(QUESTION_TYPE);
+    }
+
+    public String getQuestionName() {
+        if (questionName == null && fieldStarts[QUESTION_TYPE] != -1) {
+            questionName = getQuestionNameDecoder().getName();
+        }
+
+        return questionName;
+    }
+
+    public int getLabelCount() {
+        return getQuestionNameDecoder().getLabelCount();
+    }
+
+    public String getTopLevelDomain() {
+        return getQuestionNameDecoder().getTopLevelDomain();
+    }
+
+    public String getParentDomain() {
+        return getQuestionNameDecoder().getParentDomain();
+    }
+
+    public String getLocalIp() {
+        return localIp;
+    }
+
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    public String getMacAddress() {
+        return macAddress;
     }
 }
@@ -0,0 +1,30 @@
+package watcher;
+
+/**
+ * Parses the lines of one log format into a LogEntry. Implementations are found with the ServiceLoader, so a new DNS
+ * server can be supported by putting a jar with an implementation and its
+ * META-INF/services/watcher.LogFormatParser file on the classpath.
+ * <p>
+ * A parser may keep state between lines, such as caches and token arrays, so one instance must only be used by one
+ * thread. Implementations need a public no-argument constructor, a new instance is created for every thread that
+ * parses the format.
+ */
+public interface LogFormatParser {
+
+    /**
+     * @return The unique name of the format, e.g. "windows-dns". It is sent along with the lines of the format.
+     */
+    String getFormatName();
+
+    /**
+     * Parses a log line into an entry. Lines that are not DNS query or packet lines, such as headers, are not parsed.
+     * Parsers must not throw for any content of the line, they return why the line has not been parsed instead.
+     *
+     * @param line   A buffer holding the raw UTF-8 bytes of the line.
+     * @param offset Index of the first byte of the line in the buffer.
+     * @param length Number of bytes in the line.
+     * @param entry  The entry to fill, its previous content is cleared.
+     * @return PARSED if the line has been parsed into the entry, otherwise the reason it has not been.
+     */
+    ParseStatus parse(byte[] line, int offset, int length, LogEntry entry);
+}
@@ -0,0 +1,142 @@
+package watcher;
+
+import org.apache.logging.log4j.Level;
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the log formats found with the ServiceLoader. It creates parsers by format name and detects the format
+ * of a file by trying every parser on its first lines.
+ */
+public class LogFormats {
+
+    public static final LogFormats LOG_FORMATS = new LogFormats();
+
+    // Value of WatcherConfigConstants.LOG_FORMAT to detect the format of each file instead of using a fixed one
+    public static final String AUTO_DETECT = "auto";
+
+    private final Map<String, ServiceLoader.Provider<LogFormatParser>> providers;
+
+    private LogFormats() {
+        this.providers = new LinkedHashMap<>();
+
+        ServiceLoader.load(LogFormatParser.class)
+                .stream()
+                .forEach(provider -> providers.putIfAbsent(provider.get().getFormatName(), provider));
+    }
+
+    /**
+     * Creates a parser for a format. Parsers are not thread-safe, so each thread creates its own.
+     *
+     * @param formatName Name of the format, if null or unknown the Windows DNS debug log format is used.
+     * @return A new parser instance.
+     */
+    public LogFormatParser newParser(String formatName) {
+        ServiceLoader.Provider<LogFormatParser> provider = formatName != null ? providers.get(formatName) : null;
+
+        if (provider == null) {
+            return new WindowsDnsLogParser();
+        }
+
+        return provider.get();
+    }
+
+    /**
+     * Returns the format of a log file: the configured one, or the detected one if detection is configured.
+     *
+     * @param file The log file.
+     * @return Name of the format of the file, or null if it could not be detected.
+     */
+    public String formatOf(Path file) {
+        if (!AUTO_DETECT.equals(WatcherConfigConstants.LOG_FORMAT)) {
+            return WatcherConfigConstants.LOG_FORMAT;
+        }
+
+        return detect(file);
+    }
+
+    /**
+     * Detects the format of sample lines. Every known parser is tried on the lines, the one that parses the most lines
+     * wins.
+     *
+     * @param sample Lines of a log, without their line breaks.
+     * @return Name of the detected format, or null if no parser could parse any line.
+     */
+    public String detect(List<byte[]> sample) {
+        LogEntry entry = new LogEntry();
+        String bestFormat = null;
+        int bestCount = 0;
+
+        for (ServiceLoader.Provider<LogFormatParser> provider : providers.values()) {
+            LogFormatParser parser = provider.get();
+            int count = 0;
+
+            for (byte[] line : sample) {
+                if (parser.parse(line, 0, line.length, entry) == ParseStatus.PARSED) {
+                    count++;
+                }
+            }
+
+            if (count > bestCount) {
+                bestCount = count;
+                bestFormat = parser.getFormatName();
+            }
+        }
+
+        return bestFormat;
+    }
+
+    /**
+     * Detects the format of a log file from its first lines. Compressed archives are decompressed on the fly.
+     *
+     * @param file The log file.
+     * @return Name of the detected format, or null if the file has no line any parser could parse yet.
+     */
+    public String detect(Path file) {
+        byte[] buffer = new byte[WatcherConfigConstants.FORMAT_DETECTION_SAMPLE_SIZE];
+        int length = 0;
+
+        try (InputStream in = Compression.detect(file).open(file)) {
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.WARN, "Could not read " + file + " to detect its log format:", e);
+        }
+
+        return detect(splitLines(buffer, length));
+    }
+
+    /**
+     * Splits complete lines out of a buffer. The last line is left out if it has no line break, since it may be cut.
+     */
+    private List<byte[]> splitLines(byte[] buffer, int length) {
+        List<byte[]> lines = new ArrayList<>();
+        int lineStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+
+                if (lineEnd > lineStart) {
+                    byte[] line = new byte[lineEnd - lineStart];
+                    System.arraycopy(buffer, lineStart, line, 0, line.length);
+                    lines.add(line);
+                }
+
+                lineStart = i + 1;
+            }
+        }
+
+        return lines;
+    }
+}
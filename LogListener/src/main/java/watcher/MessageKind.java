@@ -0,0 +1,34 @@
+package watcher;
+
+/**
+ * Whether a DNS packet is a query or a response.
+ */
+public enum MessageKind {
+
+    QUERY("Q"),
+    RESPONSE("R");
+
+    private static final EnumDictionary<MessageKind> DICTIONARY = new EnumDictionary<>(values(), MessageKind::getLabel);
+
+    private final String label;
+
+    MessageKind(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Looks up the constant written in a log line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant, or null if the label is not known.
+     */
+    public static MessageKind of(byte[] line, int start, int end) {
+        return DICTIONARY.lookup(line, start, end);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,30 @@
+package watcher;
+
+/**
+ * Outcome of parsing a log line. Parsers return a status instead of throwing, so lines that can not be parsed cost no
+ * more than lines that can.
+ */
+public enum ParseStatus {
+
+    // The line has been parsed into the entry
+    PARSED,
+
+    // The line is empty or holds only whitespace
+    BLANK,
+
+    // The line belongs to the log but does not describe a DNS query or packet, e.g. a header line
+    IGNORED,
+
+    // The line ends before all the fields of a DNS query or packet, e.g. because it was cut off
+    TRUNCATED,
+
+    // The line has the fields of a DNS query or packet, but they are not in the expected layout or can not be decoded
+    MALFORMED;
+
+    /**
+     * @return True if the line should have been parsed but could not be, so it should be looked at.
+     */
+    public boolean isRejected() {
+        return this == TRUNCATED || this == MALFORMED;
+    }
+}
@@ -0,0 +1,34 @@
+package watcher;
+
+/**
+ * Transport protocol of a DNS packet.
+ */
+public enum Protocol {
+
+    UDP("UDP"),
+    TCP("TCP");
+
+    private static final EnumDictionary<Protocol> DICTIONARY = new EnumDictionary<>(values(), Protocol::getLabel);
+
+    private final String label;
+
+    Protocol(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Looks up the constant written in a log line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant, or null if the label is not known.
+     */
+    public static Protocol of(byte[] line, int start, int end) {
+        return DICTIONARY.lookup(line, start, end);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
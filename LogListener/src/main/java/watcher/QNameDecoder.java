@@ -0,0 +1,161 @@
+package watcher;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the length-prefixed question names of DNS debug logs, such as "(3)www(6)google(3)com(0)", into dotted names
+ * such as "www.google.com". The name is decoded in a single pass over the raw bytes into a buffer that is reused for
+ * every name, and the start of each label is recorded so the top-level domain and the parent domain can be taken
+ * without decoding the name again.
+ */
+public class QNameDecoder {
+
+    // A DNS name is at most 255 bytes long and has at most 127 labels
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABELS = 127;
+
+    private final byte[] name;
+    private final int[] labelStarts;
+
+    private int nameLength;
+    private int labelCount;
+
+    public QNameDecoder() {
+        this.name = new byte[MAX_NAME_LENGTH];
+        this.labelStarts = new int[MAX_LABELS];
+        this.nameLength = 0;
+        this.labelCount = 0;
+    }
+
+    /**
+     * Decodes a length-prefixed name. Decoding stops at the zero length root label, at the end of the input, or at a
+     * prefix that is not a "(n)" with n digits. A label whose length prefix is wrong, i.e. it is not followed by the
+     * next prefix, ends at the next "(" instead.
+     *
+     * @param src   A buffer holding the encoded name.
+     * @param start Index of the first byte of the encoded name.
+     * @param end   Index right after the last byte of the encoded name.
+     */
+    public void decode(byte[] src, int start, int end) {
+        nameLength = 0;
+        labelCount = 0;
+
+        int i = start;
+
+        while (i < end && src[i] == '(' && labelCount < MAX_LABELS) {
+            int length = 0;
+            i++;
+
+            while (i < end && src[i] >= '0' && src[i] <= '9') {
+                length = length * 10 + (src[i] - '0');
+                i++;
+            }
+
+            if (i == end || src[i] != ')' || length == 0) {
+                break;
+            }
+
+            i++;
+
+            if (i + length < end ? src[i + length] != '(' : i + length > end) {
+                length = 0;
+                while (i + length < end && src[i + length] != '(') {
+                    length++;
+                }
+            }
+
+            if (nameLength + length + 1 > MAX_NAME_LENGTH) {
+                break;
+            }
+
+            if (labelCount > 0) {
+                name[nameLength++] = '.';
+            }
+
+            labelStarts[labelCount++] = nameLength;
+            System.arraycopy(src, i, name, nameLength, length);
+            nameLength += length;
+            i += length;
+        }
+    }
+
+    /**
+     * Takes a name that is already dotted, such as "www.google.com" in BIND and dnsmasq logs, so its parts can be read
+     * the same way as the parts of a decoded name. A trailing dot of the root is left out.
+     *
+     * @param src   A buffer holding the dotted name.
+     * @param start Index of the first byte of the name.
+     * @param end   Index right after the last byte of the name.
+     */
+    public void decodeDotted(byte[] src, int start, int end) {
+        nameLength = 0;
+        labelCount = 0;
+
+        if (end > start && src[end - 1] == '.') {
+            end--;
+        }
+
+        int length = Math.min(end - start, MAX_NAME_LENGTH);
+
+        if (length == 0) {
+            return;
+        }
+
+        System.arraycopy(src, start, name, 0, length);
+        nameLength = length;
+        labelStarts[labelCount++] = 0;
+
+        for (int i = 0; i < nameLength && labelCount < MAX_LABELS; i++) {
+            if (name[i] == '.') {
+                labelStarts[labelCount++] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Clears the decoded name.
+     */
+    public void clear() {
+        nameLength = 0;
+        labelCount = 0;
+    }
+
+    /**
+     * @return The decoded name, e.g. "www.google.com". An empty String for the root.
+     */
+    public String getName() {
+        return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Number of labels in the decoded name, e.g. 3 for "www.google.com".
+     */
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * @return The last label of the decoded name, e.g. "com" for "www.google.com". Null for the root.
+     */
+    public String getTopLevelDomain() {
+        if (labelCount == 0) {
+            return null;
+        }
+
+        int start = labelStarts[labelCount - 1];
+        return new String(name, start, nameLength - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The decoded name without its first label, e.g. "google.com" for "www.google.com". Null if the name has
+     * less than two labels.
+     */
+    public String getParentDomain() {
+        if (labelCount < 2) {
+            return null;
+        }
+
+        int start = labelStarts[1];
+        return new String(name, start, nameLength - start, StandardCharsets.UTF_8);
+    }
+}
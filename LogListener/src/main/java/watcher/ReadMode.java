@@ -0,0 +1,17 @@
+package watcher;
+
+/**
+ * The ways a Watcher can read the unread region of a log file. On Windows a mapping keeps the file from being renamed
+ * or deleted, so the live log file is always read with CHANNEL there, whatever the configured mode.
+ */
+public enum ReadMode {
+
+    // Positioned reads into a heap buffer. Suits the small appends of a live log file.
+    CHANNEL,
+
+    // Maps the unread region into memory and scans it for newlines in place. Suits large backlogs.
+    MAPPED,
+
+    // Uses MAPPED when the unread region is larger than MAPPED_READ_THRESHOLD, CHANNEL otherwise.
+    AUTO
+}
@@ -0,0 +1,54 @@
+package watcher;
+
+/**
+ * Record types of DNS questions, as written in DNS debug logs.
+ */
+public enum RecordType {
+
+    A("A"),
+    NS("NS"),
+    CNAME("CNAME"),
+    SOA("SOA"),
+    PTR("PTR"),
+    MX("MX"),
+    TXT("TXT"),
+    AAAA("AAAA"),
+    SRV("SRV"),
+    NAPTR("NAPTR"),
+    DS("DS"),
+    RRSIG("RRSIG"),
+    NSEC("NSEC"),
+    DNSKEY("DNSKEY"),
+    NSEC3("NSEC3"),
+    SVCB("SVCB"),
+    HTTPS("HTTPS"),
+    SPF("SPF"),
+    AXFR("AXFR"),
+    IXFR("IXFR"),
+    ANY("ANY"),
+    CAA("CAA");
+
+    private static final EnumDictionary<RecordType> DICTIONARY = new EnumDictionary<>(values(), RecordType::getLabel);
+
+    private final String label;
+
+    RecordType(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Looks up the constant written in a log line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant, or null if the label is not known.
+     */
+    public static RecordType of(byte[] line, int start, int end) {
+        return DICTIONARY.lookup(line, start, end);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,43 @@
+package watcher;
+
+/**
+ * Response codes of DNS packets, as written in DNS debug logs.
+ */
+public enum ResponseCode {
+
+    NOERROR("NOERROR"),
+    FORMERR("FORMERR"),
+    SERVFAIL("SERVFAIL"),
+    NXDOMAIN("NXDOMAIN"),
+    NOTIMP("NOTIMP"),
+    REFUSED("REFUSED"),
+    YXDOMAIN("YXDOMAIN"),
+    YXRRSET("YXRRSET"),
+    NXRRSET("NXRRSET"),
+    NOTAUTH("NOTAUTH"),
+    NOTZONE("NOTZONE");
+
+    private static final EnumDictionary<ResponseCode> DICTIONARY = new EnumDictionary<>(values(), ResponseCode::getLabel);
+
+    private final String label;
+
+    ResponseCode(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Looks up the constant written in a log line.
+     *
+     * @param line  A buffer holding the line.
+     * @param start Index of the first byte of the label.
+     * @param end   Index right after the last byte of the label.
+     * @return The constant, or null if the label is not known.
+     */
+    public static ResponseCode of(byte[] line, int start, int end) {
+        return DICTIONARY.lookup(line, start, end);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
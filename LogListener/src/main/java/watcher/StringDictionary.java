@@ -0,0 +1,48 @@
+package watcher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns the values of a low-cardinality field taken from the raw bytes of log lines. The first time a value is seen
+ * it is decoded once, afterwards every line with the same value shares that String. The dictionary stops growing once
+ * it is full, values that are not in it are looked up as null. One instance must only be used by one thread.
+ */
+final class StringDictionary {
+
+    private final byte[][] keys;
+    private final String[] values;
+
+    private int size;
+
+    StringDictionary(int capacity) {
+        this.keys = new byte[capacity][];
+        this.values = new String[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * @param line  A buffer holding the value.
+     * @param start Index of the first byte of the value.
+     * @param end   Index right after the last byte of the value.
+     * @return The interned value, or null if the value is not in the dictionary and the dictionary is full.
+     */
+    String lookup(byte[] line, int start, int end) {
+        int length = end - start;
+
+        for (int i = 0; i < size; i++) {
+            if (keys[i].length == length && Arrays.equals(line, start, end, keys[i], 0, length)) {
+                return values[i];
+            }
+        }
+
+        if (size == keys.length) {
+            return null;
+        }
+
+        keys[size] = Arrays.copyOfRange(line, start, end);
+        values[size] = new String(keys[size], StandardCharsets.UTF_8);
+
+        return values[size++];
+    }
+}
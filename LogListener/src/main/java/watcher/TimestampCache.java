@@ -0,0 +1,167 @@
+package watcher;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Converts the date and time of log lines, e.g. "09/20/2023" and "02:25:53 PM", into epoch milliseconds in the time
+ * zone of the DNS server. Thousands of lines share the same second, so the text of the last converted second is kept
+ * and compared byte by byte with the next one. The date and time are only parsed and converted when the second
+ * changes. One instance must only be used by one thread.
+ * <p>
+ * The M/d/yyyy dates and 12- or 24-hour times of Windows DNS debug logs are parsed by hand. Other layouts are parsed
+ * with a DateTimeFormatter, which is cheap enough since it only runs once per second.
+ */
+public class TimestampCache {
+
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final int MAX_TEXT_LENGTH = 32;
+
+    private final ZoneId zone;
+    private final DateTimeFormatter formatter;
+    private final byte[] lastText;
+
+    private int lastTextLength;
+    private long lastEpochMillis;
+
+    public TimestampCache(ZoneId zone) {
+        this(zone, null);
+    }
+
+    /**
+     * @param zone      The time zone the dates and times of the log are written in.
+     * @param formatter Parses the date and the time joined with a space, or null for the Windows DNS debug layout.
+     */
+    public TimestampCache(ZoneId zone, DateTimeFormatter formatter) {
+        this.zone = zone;
+        this.formatter = formatter;
+        this.lastText = new byte[MAX_TEXT_LENGTH];
+        this.lastTextLength = -1;
+        this.lastEpochMillis = INVALID;
+    }
+
+    /**
+     * Converts a date and a time taken from a log line into epoch milliseconds.
+     *
+     * @param line      A buffer holding the line.
+     * @param dateStart Index of the first byte of the date, by default formatted as M/d/yyyy.
+     * @param dateEnd   Index right after the last byte of the date.
+     * @param timeStart Index of the first byte of the time, by default formatted as h:mm:ss followed by AM or PM, or
+     *                  as H:mm:ss.
+     * @param timeEnd   Index right after the last byte of the time.
+     * @return The epoch milliseconds, or INVALID if the date or the time can not be parsed.
+     */
+    public long toEpochMillis(byte[] line, int dateStart, int dateEnd, int timeStart, int timeEnd) {
+        int dateLength = dateEnd - dateStart;
+        int timeLength = timeEnd - timeStart;
+
+        if (dateLength + timeLength > MAX_TEXT_LENGTH) {
+            return INVALID;
+        }
+
+        if (dateLength + timeLength == lastTextLength
+                && Arrays.equals(line, dateStart, dateEnd, lastText, 0, dateLength)
+                && Arrays.equals(line, timeStart, timeEnd, lastText, dateLength, lastTextLength)) {
+            // The same second as the previous line
+            return lastEpochMillis;
+        }
+
+        System.arraycopy(line, dateStart, lastText, 0, dateLength);
+        System.arraycopy(line, timeStart, lastText, dateLength, timeLength);
+        lastTextLength = dateLength + timeLength;
+        lastEpochMillis = formatter == null
+                ? parse(line, dateStart, dateEnd, timeStart, timeEnd)
+                : parseWithFormatter(line, dateStart, dateEnd, timeStart, timeEnd);
+
+        return lastEpochMillis;
+    }
+
+    private long parseWithFormatter(byte[] line, int dateStart, int dateEnd, int timeStart, int timeEnd) {
+        String text = new String(line, dateStart, dateEnd - dateStart, StandardCharsets.UTF_8)
+                + " "
+                + new String(line, timeStart, timeEnd - timeStart, StandardCharsets.UTF_8);
+
+        try {
+            return LocalDateTime.parse(text, formatter)
+                    .atZone(zone)
+                    .toInstant()
+                    .toEpochMilli();
+        } catch (DateTimeException e) {
+            return INVALID;
+        }
+    }
+
+    private long parse(byte[] line, int dateStart, int dateEnd, int timeStart, int timeEnd) {
+        int[] date = new int[3];
+        int[] time = new int[3];
+
+        int dateParsed = parseNumbers(line, dateStart, dateEnd, (byte) '/', date);
+        int timeParsed = parseNumbers(line, timeStart, timeEnd, (byte) ':', time);
+
+        if (dateParsed != dateEnd - dateStart || timeParsed == -1) {
+            return INVALID;
+        }
+
+        int hour = time[0];
+
+        // The rest of the time, if any, is the AM/PM marker of the 12-hour clock
+        int i = timeStart + timeParsed;
+        while (i < timeEnd && line[i] == ' ') {
+            i++;
+        }
+
+        if (i < timeEnd) {
+            if (line[i] == 'P' && hour < 12) {
+                hour += 12;
+            } else if (line[i] == 'A' && hour == 12) {
+                hour = 0;
+            }
+        }
+
+        try {
+            return LocalDateTime.of(date[2], date[0], date[1], hour, time[1], time[2])
+                    .atZone(zone)
+                    .toInstant()
+                    .toEpochMilli();
+        } catch (DateTimeException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Parses three numbers separated by a separator, e.g. "09/20/2023".
+     *
+     * @return Number of bytes parsed, or -1 if there are not three numbers.
+     */
+    private int parseNumbers(byte[] line, int start, int end, byte separator, int[] numbers) {
+        int i = start;
+
+        for (int n = 0; n < numbers.length; n++) {
+            if (n > 0) {
+                if (i == end || line[i] != separator) {
+                    return -1;
+                }
+                i++;
+            }
+
+            int digitsStart = i;
+            numbers[n] = 0;
+
+            while (i < end && line[i] >= '0' && line[i] <= '9') {
+                numbers[n] = numbers[n] * 10 + (line[i] - '0');
+                i++;
+            }
+
+            if (i == digitsStart) {
+                return -1;
+            }
+        }
+
+        return i - start;
+    }
+}
@@ -1,205 +1,548 @@
 package watcher;
 
+import rabbitmq.FlowControl;
 import rabbitmq.Producer;
 import rabbitmq.RabbitMQConfigConstants;
 import utils.ConfigManager;
 import utils.GlobalLogger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.Level;
 
 public class Watcher implements Runnable {
 
-    private final long SLEEP_TIME_MILLIS = 100;
-    private final Thread thread;
+    private static final boolean IS_WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
     private final String path;
-    private final Producer producer;
+    private final ArrayList<byte[]> logEntries;
+
+    // File position of the first byte of each line of the current chunk, the consumers derive the document ids from it
+    private final long[] linePositions;
+
+    // Number of wake up calls that have not been handled yet
+    private final AtomicInteger pendingWakeUps;
+
+    private long offset;
+    private long chunkEnd;
+    private FileChannel fileChannel;
+    private String fileIdentity;
+    private String logFormat;
+    private volatile boolean isExit;
+
+    // True if the read stopped at a chunk boundary because the FlowControl had no credit left
+    private boolean isPaused;
 
-    private long lastReadLine;
-    private boolean isRunning;
-    private boolean isSleeping;
-    private boolean isExit;
+    // Sequence number of the next chunk sent. The chunks go through the Producers of different worker threads, which
+    // confirm them in any order, so the status only advances to the end of the chunks confirmed without a gap
+    private long nextChunkSequence;
+
+    // Guards the confirmed chunks, confirms arrive on the threads of the Producers
+    private final Object checkpointLock = new Object();
+    private final NavigableMap<Long, Checkpoint> confirmedChunks = new TreeMap<>();
+    private long nextCheckpointSequence;
 
     /**
-     * Initializes a Watcher instance for monitoring changes in a specified log file. It sets the file path, creates a
-     * thread for watching, and initializes other internal variables and a Producer for sending log data to RabbitMQ.
+     * Initializes a Watcher instance for monitoring changes in a specified log file. It sets the file path,
+     * initializes other internal variables. The Watcher has no thread of its own, it runs on the WatcherScheduler
+     * whenever it is woken up and sends the log data to RabbitMQ with the Producer of the thread it runs on.
      *
      * @param path A String representing the path to the log file to be monitored.
      */
     public Watcher(String path) {
-        this.path = path;
-        this.thread = new Thread(this);
-        this.isRunning = false;
-        this.lastReadLine = -1;
-        this.isSleeping = false;
-        this.isExit = false;
-        this.producer = new Producer();
+        this(path, 0, null);
     }
 
     /**
      * Initializes a previously open Watcher instance for monitoring changes in a specified log file. It sets the file
-     * path, creates a thread for watching, and initializes other internal variables and a Producer for sending log data
-     * to RabbitMQ.
+     * path and initializes other internal variables.
      *
-     * @param path A String representing the path to the log file to be monitored.
+     * @param path   A String representing the path to the log file to be monitored.
+     * @param status   The byte offset right after the last line that was read from the log file.
+     * @param identity The FileIdentity of the log file the offset belongs to, or null if it is not known.
      */
-    public Watcher(String path, long status) {
+    public Watcher(String path, long status, String identity) {
         this.path = path;
-        this.thread = new Thread(this);
-        this.isRunning = false;
-        this.lastReadLine = status;
-        this.isSleeping = false;
+        this.offset = status;
+        this.fileChannel = null;
+        this.fileIdentity = identity;
         this.isExit = false;
-        this.producer = new Producer();
+        this.pendingWakeUps = new AtomicInteger(0);
+        this.logEntries = new ArrayList<>(RabbitMQConfigConstants.CHUNK_SIZE);
+        this.linePositions = new long[RabbitMQConfigConstants.CHUNK_SIZE];
     }
 
     /**
-     * The run method is executed when the Watcher is started as a separate thread. It continuously monitors the
-     * specified log file for changes, reads and stores log entries, and sends them to RabbitMQ via the associated
-     * Producer. The thread can be controlled using flags like isRunning, isSleeping, and isExit.
+     * Creates a Watcher from a status saved by a version that counted the read lines instead of bytes. The file is
+     * scanned once for that many newlines to find the byte offset the Watcher resumes from, so the lines are neither
+     * skipped nor sent again. A file with fewer lines than the count has been replaced since, it is read from the
+     * beginning.
+     *
+     * @param path      A String representing the path to the log file to be monitored.
+     * @param lineCount The number of lines of the file that have already been read.
+     * @return A Watcher resuming after the read lines.
      */
-    @Override
-    public void run() {
+    public static Watcher fromLineCount(String path, long lineCount) {
+        long offset = 0;
+
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WatcherConfigConstants.READ_BUFFER_SIZE);
+            long bufferStart = 0;
+            long newlines = 0;
+            int bytesRead;
+
+            while (newlines < lineCount && (bytesRead = fileChannel.read(buffer, bufferStart)) > 0) {
+                for (int i = 0; i < bytesRead && newlines < lineCount; i++) {
+                    if (buffer.get(i) == '\n' && ++newlines == lineCount) {
+                        offset = bufferStart + i + 1;
+                    }
+                }
 
-        while (isRunning) {
+                buffer.clear();
+                bufferStart += bytesRead;
+            }
 
-            while (isSleeping) {
-                // There is no change on the file, sleep...
-                sleep();
+            if (newlines < lineCount) {
+                GlobalLogger.getLoggerInstance().log(Level.INFO, "Log file has fewer lines than the saved line count " + lineCount + ", reading it from the beginning. " + path);
+                offset = 0;
+            } else {
+                GlobalLogger.getLoggerInstance().log(Level.INFO, "Converted the saved line count " + lineCount + " to the byte offset " + offset + ". " + path);
             }
+        } catch (NoSuchFileException e) {
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "Log file of the saved line count " + lineCount + " does not exist, it will be read from the beginning. " + path);
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to convert the saved line count of " + path + ", reading it from the beginning:", e);
+        }
+
+        return new Watcher(path, offset, null);
+    }
+
+    /**
+     * The run method is executed on a WatcherScheduler worker thread after the Watcher is woken up. It reads the new
+     * log entries and sends them to RabbitMQ via the Producer of the worker thread. The status of the Watcher is saved as RabbitMQ
+     * confirms the sent chunks. Wake up calls that arrive while the file is being read are handled by reading again
+     * before returning, so only one worker reads the file at a time.
+     */
+    @Override
+    public void run() {
+        int wakeUps = pendingWakeUps.get();
 
-            // Check if the watcher thread should be terminated or not
+        do {
+            // Check if the watcher should be terminated or not
             if (isExit) {
-                break;
-            }
+                if (fileChannel != null) {
+                    closeFile();
+                }
 
-            // File has changed, make the "isSleeping" true again in case of another wakeUp call
-            isSleeping = true;
+                return;
+            }
 
             // Read the file chunk at a time and store it in RabbitMQ Queue
             readAndStore();
 
-            // Update the Watcher's status into the config file
-            updateStatusOnConfigFile();
+            wakeUps = pendingWakeUps.addAndGet(-wakeUps);
+        } while (wakeUps != 0);
+    }
+
+    /**
+     * Stops the Watcher. It sets the isExit flag to true, so the Watcher is no longer scheduled and an ongoing read
+     * terminates gracefully. The Watcher is then run once more to close the log file, after the ongoing read if there
+     * is one, so the file is never closed under a read.
+     */
+    public void stop() {
+        isExit = true;
+
+        if (pendingWakeUps.getAndIncrement() == 0) {
+            WatcherScheduler.WATCHER_SCHEDULER.dispatch(this);
         }
 
-        GlobalLogger.getLoggerInstance().log(Level.INFO, "Watcher has been interrupted. Cleaning up and exiting this thread. " + this.path);
+        GlobalLogger.getLoggerInstance().log(Level.INFO, "Watcher has been stopped. " + this.path);
     }
 
     /**
-     * Starts the Watcher thread for monitoring the log file. It sets the isRunning flag to true and initiates the
-     * thread to begin monitoring and processing log entries.
+     * Tells the Watcher that the log file has new data. The Watcher is dispatched to the WatcherScheduler unless it is
+     * already queued or running, in which case it reads the file once more after the current read.
      */
-    public void start() {
-        isRunning = true;
-        thread.start();
+    public void wakeUp() {
+        if (isExit) {
+            return;
+        }
+
+        if (pendingWakeUps.getAndIncrement() == 0) {
+            WatcherScheduler.WATCHER_SCHEDULER.dispatch(this);
+        }
     }
 
     /**
-     * Stops the Watcher. It sets the isSleeping flag to false and the isExit flag to true, indicating that the thread
-     * should terminate gracefully.
+     * Reads the log entries appended to the monitored log file since the last read, and sends them to RabbitMQ in
+     * chunks. Reading resumes from the saved byte offset, so the cost of each call depends on the amount of new data
+     * and not on the size of the file.
+     * <p>
+     * The file stays open between reads. If the file has been rotated (renamed or deleted, and possibly replaced by a
+     * new file with the same name) the open file is drained to its end first, then the new file is read from offset 0.
+     * <p>
+     * If the consumers fall behind, the read pauses at a chunk boundary and the Watcher is woken up again once the
+     * FlowControl has credits for it.
      */
-    public void stop() {
-        isSleeping = false;
-        isExit = true;
+    private void readAndStore() {
+        isPaused = false;
+
+        try {
+            if (fileChannel == null && !openFile()) {
+                // The log file does not exist (yet)
+                return;
+            }
+
+            // Take the identity before draining, so lines written to the old file before the rotation are not lost
+            String currentIdentity = FileIdentity.of(Paths.get(path));
+
+            readOpenFile();
+
+            if (isPaused) {
+                // The old file has not been drained yet, the rotation is handled when the read resumes
+                FlowControl.FLOW_CONTROL.whenCreditAvailable(this::wakeUp);
+                return;
+            }
+
+            if (FileIdentity.isSameFile(fileIdentity, currentIdentity)) {
+                // The first line of the file may have been completed since it has been opened
+                registerIdentity(FileIdentity.moreSpecific(currentIdentity, fileIdentity));
+            } else {
+                GlobalLogger.getLoggerInstance().log(Level.INFO, "Log file has been rotated, finished reading the old file. " + path);
+
+                closeFile();
+                offset = 0;
+
+                if (currentIdentity != null && openFile()) {
+                    readOpenFile();
+
+                    if (isPaused) {
+                        FlowControl.FLOW_CONTROL.whenCreditAvailable(this::wakeUp);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to read file:", e);
+        }
     }
 
     /**
-     * Wakes up the Watcher from a sleeping state, allowing it to continue monitoring the log file for changes. It sets
-     * the isSleeping flag to false.
+     * Opens the log file and registers its identity. If the identity differs from the one saved with the offset, the
+     * file has been rotated while it was not watched, and it is read from the beginning.
+     *
+     * @return True if the file has been opened, false if it does not exist.
+     * @throws IOException If the file exists but can not be opened.
      */
-    public void wakeUp() {
-        isSleeping = false;
+    private boolean openFile() throws IOException {
+        Path file = Paths.get(path);
+
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        String identity = FileIdentity.of(file);
+
+        if (fileIdentity != null && !FileIdentity.isSameFile(fileIdentity, identity)) {
+            GlobalLogger.getLoggerInstance().log(Level.INFO, "Log file has been replaced, reading it from the beginning. " + path);
+            offset = 0;
+            fileIdentity = null;
+        }
+
+        registerIdentity(FileIdentity.moreSpecific(fileIdentity, identity));
+
+        // A new file may be written by another DNS server, detect its format again once it has lines
+        logFormat = null;
+
+        return true;
     }
 
     /**
-     * Puts the Watcher thread to sleep for a defined duration (SLEEP_TIME_MILLIS) when there are no changes in the log
-     * file. It is used to reduce CPU usage during idle periods.
+     * Sets the identity of the open file and registers it, so the file is not picked up again by another Watcher
+     * when it is renamed.
+     *
+     * @param identity The identity of the open file, or null if it is not known.
      */
-    private void sleep() {
-        try {
-            Thread.sleep(SLEEP_TIME_MILLIS);
-        } catch (InterruptedException e) {
-            GlobalLogger.getLoggerInstance().log(Level.INFO, "An error occurred trying to sleep the thread:", e);
+    private void registerIdentity(String identity) {
+        fileIdentity = identity;
+
+        if (fileIdentity != null) {
+            DirectoryWatcher.FILE_IDENTITIES.put(fileIdentity, this);
         }
     }
 
     /**
-     * Reads log entries from the monitored log file, stores them in a collection, and sends them to RabbitMQ in chunks.
-     * It uses file locking to ensure exclusive access to the log file while reading. This method manages the reading,
-     * processing, and sending of log entries.
+     * Reads the open file from the saved offset to its end. It uses file locking to ensure exclusive access to the log
+     * file while reading. A file that is smaller than the offset has been truncated, it is read from the beginning.
+     *
+     * @throws IOException If an I/O error occurs while reading the file.
      */
-    private void readAndStore() {
-        FileLock lock = null;
+    private void readOpenFile() throws IOException {
+        FileLock lock = fileChannel.lock(0, Long.MAX_VALUE, true);
 
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(path, "r");
-
-            FileChannel fileChannel = randomAccessFile.getChannel();
+            if (fileChannel.size() < offset) {
+                GlobalLogger.getLoggerInstance().log(Level.INFO, "Log file has been truncated, reading it from the beginning. " + path);
+                offset = 0;
+            }
 
-            lock = fileChannel.lock(0, Long.MAX_VALUE, true);
+            if (logFormat == null) {
+                logFormat = LogFormats.LOG_FORMATS.formatOf(Paths.get(path));
+            }
 
             // Read from the file while its locked
-            BufferedReader reader = new BufferedReader(new FileReader(path));
-            String line;
-            int linesRead = 0;
-            ArrayList<String> logEntries = new ArrayList<>(RabbitMQConfigConstants.CHUNK_SIZE);
+            readFromOffset(fileChannel);
+        } finally {
+            lock.release();
+        }
+    }
 
-            while ((line = reader.readLine()) != null) {
+    /**
+     * Closes the open file. Its identity stays registered, so the rotated file is not picked up again by another
+     * Watcher under its new name.
+     */
+    private void closeFile() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close file:", e);
+        }
 
-                // Go to the last read line
-                if (lastReadLine != -1 && linesRead != lastReadLine) {
-                    linesRead++;
-                    continue;
-                }
+        fileChannel = null;
+        fileIdentity = null;
+    }
+
+    /**
+     * Reads the complete lines between the saved offset and the end of the file and sends them to RabbitMQ in chunks,
+     * using the configured ReadMode. The offset is advanced after each sent chunk. A trailing line that has not been
+     * terminated with a newline yet is left in the file, it will be read on the next call once the writer completes it.
+     *
+     * @param fileChannel An open FileChannel of the monitored log file.
+     * @throws IOException If an I/O error occurs while reading the file.
+     */
+    private void readFromOffset(FileChannel fileChannel) throws IOException {
+        chunkEnd = offset;
+
+        // A mapping of the live log file on Windows prevents the DNS server from renaming or deleting it until the
+        // mapping is garbage collected, the live file is always read with positioned reads there
+        boolean isMapped = !IS_WINDOWS && switch (WatcherConfigConstants.READ_MODE) {
+            case CHANNEL -> false;
+            case MAPPED -> true;
+            case AUTO -> fileChannel.size() - offset >= WatcherConfigConstants.MAPPED_READ_THRESHOLD;
+        };
+
+        if (isMapped) {
+            try {
+                readMapped(fileChannel);
+            } catch (InternalError e) {
+                // Accessing a mapped page past the end of a file truncated under the mapping raises SIGBUS, which the
+                // JVM reports as an InternalError. The lines scanned until then are sent, the positioned reads find
+                // nothing past the new end and the next read handles the truncation
+                GlobalLogger.getLoggerInstance().log(Level.WARN, "The log file was truncated while it was mapped. " + path + " " + e);
+            }
+        }
+
+        // The mapped read stops early if a line does not fit into a region, positioned reads handle the rest
+        if (!isPaused) {
+            readBuffered(fileChannel);
+        }
+
+        sendChunk();
+    }
+
+    /**
+     * Reads the unread region of the file with positioned reads into a heap buffer.
+     *
+     * @param fileChannel An open FileChannel of the monitored log file.
+     * @throws IOException If an I/O error occurs while reading the file.
+     */
+    private void readBuffered(FileChannel fileChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WatcherConfigConstants.READ_BUFFER_SIZE);
 
-                linesRead++;
-                lastReadLine++;
-                logEntries.add(line);
+        // File position of the first byte in the buffer
+        long bufferStart = chunkEnd;
 
-                if (linesRead >= RabbitMQConfigConstants.CHUNK_SIZE) {
-                    // We read a chunk of string, time to use it
-                    linesRead = 0;
+        while (fileChannel.read(buffer, bufferStart + buffer.position()) > 0) {
+            buffer.flip();
 
-                    producer.sendChunk(logEntries);
+            int lineStart = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    addLine(buffer, lineStart, i, bufferStart);
 
-                    logEntries.clear();
+                    if (isPaused) {
+                        return;
+                    }
+
+                    lineStart = i + 1;
                 }
             }
 
-            reader.close();
+            // Move the partially read line to the beginning of the buffer
+            buffer.position(lineStart);
+            buffer.compact();
+            bufferStart += lineStart;
 
-            if (!logEntries.isEmpty()) {
-                producer.sendChunk(logEntries);
-                logEntries.clear();
+            if (!buffer.hasRemaining()) {
+                // The line is longer than the buffer, grow it
+                buffer.flip();
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
             }
+        }
+    }
 
-            lock.release();
-        } catch (Exception e) {
-            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to read file:", e);
-        } finally {
-            if (lock != null) {
-                try {
-                    lock.release();
-                } catch (IOException e) {
-                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to release file lock:", e);
+    /**
+     * Maps the unread region of the file into memory, region by region, and scans the mapped bytes for newlines in
+     * place. Lines are copied once, straight from the mapping into the message that is sent to RabbitMQ, without
+     * being decoded into Strings.
+     * <p>
+     * Never used on Windows, where a mapping pins the live log file and blocks its rollover.
+     *
+     * @param fileChannel An open FileChannel of the monitored log file.
+     * @throws IOException If an I/O error occurs while mapping the file.
+     * @throws InternalError If the file is truncated while it is mapped.
+     */
+    private void readMapped(FileChannel fileChannel) throws IOException {
+        long fileSize = fileChannel.size();
+        long regionStart = chunkEnd;
+
+        while (regionStart < fileSize) {
+            long regionSize = Math.min(WatcherConfigConstants.MAPPED_REGION_SIZE, fileSize - regionStart);
+            MappedByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+
+            int lineStart = 0;
+            for (int i = 0; i < region.limit(); i++) {
+                if (region.get(i) == '\n') {
+                    addLine(region, lineStart, i, regionStart);
+
+                    if (isPaused) {
+                        return;
+                    }
+
+                    lineStart = i + 1;
                 }
             }
+
+            if (lineStart == 0) {
+                // Either the last line is not terminated yet or it is longer than a region
+                break;
+            }
+
+            // The next region starts with the partially scanned line
+            regionStart += lineStart;
+        }
+    }
+
+    /**
+     * Copies a line out of the buffer, leaving out the carriage return of Windows line endings, and adds it to the
+     * current chunk. The chunk is sent once it is full. A new chunk is only started while the FlowControl has credits
+     * left, without them the line is left in the file and the read pauses.
+     *
+     * @param buffer      The buffer holding the line.
+     * @param start       Index of the first byte of the line.
+     * @param end         Index of the newline character that terminates the line.
+     * @param bufferStart File position of the first byte in the buffer.
+     */
+    private void addLine(ByteBuffer buffer, int start, int end, long bufferStart) {
+        if (logEntries.isEmpty() && !FlowControl.FLOW_CONTROL.hasCredit()) {
+            isPaused = true;
+            return;
+        }
+
+        chunkEnd = bufferStart + end + 1;
+
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+
+        byte[] line = new byte[end - start];
+        buffer.get(start, line);
+        linePositions[logEntries.size()] = bufferStart + start;
+        logEntries.add(line);
+
+        if (logEntries.size() >= RabbitMQConfigConstants.CHUNK_SIZE) {
+            // We read a chunk of lines, time to use it
+            sendChunk();
+        }
+    }
+
+    /**
+     * Sends the current chunk to RabbitMQ and advances the read offset past its last line. The saved status only
+     * advances once RabbitMQ has confirmed the chunk and every chunk this Watcher sent before it, so lines that were
+     * not confirmed are read again after a restart. The lines are sent with their source and file positions, so the
+     * lines that are read again keep their document ids.
+     */
+    private void sendChunk() {
+        if (!logEntries.isEmpty()) {
+            long sequence = nextChunkSequence++;
+            Checkpoint checkpoint = new Checkpoint(chunkEnd, fileIdentity);
+
+            Producer.forCurrentThread().sendChunk(logEntries, logFormat, FileIdentity.sourceOf(fileIdentity), linePositions,
+                    () -> handleConfirmedChunk(sequence, checkpoint));
+            logEntries.clear();
+        }
+
+        offset = chunkEnd;
+    }
+
+    /**
+     * Records a confirmed chunk and saves the status after the last chunk that has been confirmed along with every
+     * chunk sent before it. A Producer only orders the confirms of the chunks sent from its own thread, a chunk sent
+     * later from another worker thread may be confirmed first. Its status is then held back until the gap is filled,
+     * so the saved status never skips an unconfirmed chunk nor moves backwards.
+     *
+     * @param sequence   The sequence number of the confirmed chunk.
+     * @param checkpoint The status right after the last line of the chunk.
+     */
+    private void handleConfirmedChunk(long sequence, Checkpoint checkpoint) {
+        synchronized (checkpointLock) {
+            confirmedChunks.put(sequence, checkpoint);
+
+            Checkpoint contiguous = null;
+            while (!confirmedChunks.isEmpty() && confirmedChunks.firstKey() == nextCheckpointSequence) {
+                contiguous = confirmedChunks.pollFirstEntry().getValue();
+                nextCheckpointSequence++;
+            }
+
+            if (contiguous != null) {
+                updateStatusOnConfigFile(contiguous.offset(), contiguous.identity());
+            }
         }
     }
 
     /**
      * Updates the status of the Watcher on the config file.
+     *
+     * @param offset   The byte offset right after the last confirmed line.
+     * @param identity The FileIdentity of the log file the offset belongs to.
      */
-    private void updateStatusOnConfigFile() {
-        ConfigManager.CONFIG_MANAGER.updateWatcherStatus(this.path, this.lastReadLine);
+    private void updateStatusOnConfigFile(long offset, String identity) {
+        ConfigManager.CONFIG_MANAGER.updateWatcherStatus(this.path, offset, identity);
     }
 
     public String getPath() {
         return path;
     }
+
+    /**
+     * The status of the Watcher right after a sent chunk.
+     *
+     * @param offset   The byte offset right after the last line of the chunk.
+     * @param identity The FileIdentity of the log file the offset belongs to.
+     */
+    private record Checkpoint(long offset, String identity) {
+    }
 }
@@ -0,0 +1,22 @@
+package watcher;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+public interface WatcherConfigConstants {
+    ReadMode READ_MODE = ReadMode.AUTO;
+    int READ_BUFFER_SIZE = 64 * 1024;
+    long MAPPED_READ_THRESHOLD = 64L * 1024 * 1024;
+    long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+    int READER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    int READER_QUEUE_SIZE = 1024;
+    long REDISPATCH_DELAY_MILLIS = 100;
+    int MAX_TRACKED_FILE_IDENTITIES = 4096;
+    int BACKFILL_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    long BACKFILL_RANGE_SIZE = 64L * 1024 * 1024;
+    int DECOMPRESSION_BUFFER_SIZE = 1024 * 1024;
+    ZoneId SOURCE_TIME_ZONE = ZoneId.systemDefault();
+    LocalDate SYSLOG_REFERENCE_DATE = null;
+    String LOG_FORMAT = LogFormats.AUTO_DETECT;
+    int FORMAT_DETECTION_SAMPLE_SIZE = 64 * 1024;
+}
@@ -0,0 +1,189 @@
+package watcher;
+
+import utils.GlobalLogger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * A single event loop that watches every listened directory through one WatchService and dispatches the Watchers of
+ * changed log files to a bounded pool of worker threads. Idle log files cost nothing, a Watcher is only run when the
+ * event loop receives a change event for its file.
+ */
+public class WatcherScheduler implements Runnable {
+
+    public static final WatcherScheduler WATCHER_SCHEDULER = new WatcherScheduler();
+
+    // WatchKey:key of a registered directory, DirectoryWatcher:watcher that handles the events of that directory
+    private final ConcurrentHashMap<WatchKey, DirectoryWatcher> directoryWatchers;
+    private final ThreadPoolExecutor executor;
+
+    // Dispatches the Watchers the full executor has rejected again after a delay
+    private final ScheduledExecutorService redispatcher;
+    private final Thread thread;
+
+    private WatchService watchService;
+    private volatile boolean isRunning;
+
+    private WatcherScheduler() {
+        this.directoryWatchers = new ConcurrentHashMap<>();
+        this.isRunning = false;
+        this.thread = new Thread(this, "watcher-scheduler");
+
+        this.redispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread redispatcherThread = new Thread(runnable, "watcher-redispatch");
+            redispatcherThread.setDaemon(true);
+            return redispatcherThread;
+        });
+
+        // Each Watcher is queued at most once at a time, so the queue only fills up when most files change at once.
+        // A rejected Watcher keeps its pending wake up calls, so it is not dispatched again by new events, and is
+        // dispatched again after REDISPATCH_DELAY_MILLIS instead. The event loop never reads a file itself.
+        this.executor = new ThreadPoolExecutor(
+                WatcherConfigConstants.READER_POOL_SIZE,
+                WatcherConfigConstants.READER_POOL_SIZE,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(WatcherConfigConstants.READER_QUEUE_SIZE),
+                (runnable, pool) -> redispatch(runnable));
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.FATAL, "An error occurred trying to create the watch service:", e);
+        }
+    }
+
+    /**
+     * The event loop. It blocks on the WatchService until a registered directory reports changes, then hands the
+     * events over to the DirectoryWatcher of that directory.
+     */
+    @Override
+    public void run() {
+        GlobalLogger.getLoggerInstance().log(Level.INFO, "Started the watcher scheduler.");
+
+        while (isRunning) {
+            WatchKey key;
+
+            try {
+                key = watchService.take(); // Blocking
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                GlobalLogger.getLoggerInstance().log(Level.INFO, "Watcher scheduler has been stopped. Cleaning up and exiting this thread.");
+                break;
+            }
+
+            DirectoryWatcher directoryWatcher = directoryWatchers.get(key);
+
+            // Handle events
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (directoryWatcher == null) {
+                    continue;
+                }
+
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events have been lost, nothing else would wake up the Watchers that missed theirs
+                        directoryWatcher.handleOverflow();
+                    } else {
+                        directoryWatcher.handleEvent(event);
+                    }
+                } catch (Exception e) {
+                    GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to handle a directory event:", e);
+                }
+            }
+
+            if (!key.reset()) {
+                // The directory is no longer accessible
+                directoryWatchers.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Starts the event loop thread.
+     */
+    public void start() {
+        isRunning = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the event loop and the worker threads. Watchers that are already running finish their current read.
+     */
+    public void stop() {
+        isRunning = false;
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            GlobalLogger.getLoggerInstance().log(Level.ERROR, "An error occurred trying to close the watch service:", e);
+        }
+
+        executor.shutdown();
+        redispatcher.shutdownNow();
+    }
+
+    /**
+     * Registers the directory of a DirectoryWatcher to the WatchService, so its events are delivered to it.
+     *
+     * @param directoryWatcher The DirectoryWatcher whose directory will be watched.
+     * @return The WatchKey of the registration.
+     * @throws IOException If the directory can not be registered.
+     */
+    public WatchKey register(DirectoryWatcher directoryWatcher) throws IOException {
+        WatchKey key = directoryWatcher.getDir().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        directoryWatchers.put(key, directoryWatcher);
+        return key;
+    }
+
+    /**
+     * Cancels the registration of a directory.
+     *
+     * @param key The WatchKey returned while registering the directory.
+     */
+    public void unregister(WatchKey key) {
+        key.cancel();
+        directoryWatchers.remove(key);
+    }
+
+    /**
+     * Runs a Watcher on one of the worker threads.
+     *
+     * @param watcher The Watcher whose log file has new data.
+     */
+    public void dispatch(Watcher watcher) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        executor.execute(watcher);
+    }
+
+    /**
+     * Runs a Watcher the executor has rejected on one of the worker threads after REDISPATCH_DELAY_MILLIS, once the
+     * queue has room again.
+     *
+     * @param watcher The rejected Watcher.
+     */
+    private void redispatch(Runnable watcher) {
+        if (executor.isShutdown() || redispatcher.isShutdown()) {
+            return;
+        }
+
+        redispatcher.schedule(() -> {
+            if (!executor.isShutdown()) {
+                executor.execute(watcher);
+            }
+        }, WatcherConfigConstants.REDISPATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,179 @@
+package watcher;
+
+/**
+ * Parses the lines of a Windows DNS server debug log into a LogEntry. The parser works on the raw UTF-8 bytes of a
+ * line: it finds the tokens separated by spaces and points the fields of the entry to them, without creating any
+ * String or array per line. A parser and the entry it fills are reused for every line, so one instance must only be
+ * used by one thread. Low-cardinality fields are decoded into enums or interned Strings.
+ * <p>
+ * The number of tokens in a line varies. The time may or may not be followed by AM/PM, responses have an "R" before
+ * the opcode, and the flag characters between the brackets may be missing:
+ * <pre>
+ * 11/17/2021 6:00:00 AM 0D0C PACKET 00000272D98DD0B0 UDP Rcv 192.168.13.130 0002 Q [0001 D NOERROR] A (8)woshub(2)com(0)
+ * 11/17/2021 18:00:00 0D0C PACKET 00000272D98DD0B0 UDP Snd 192.168.13.130 0002 R Q [8081 DR NOERROR] A (8)woshub(2)com(0)
+ * 11/17/2021 6:00:00 AM 0D0C PACKET 00000272D98DD0B0 UDP Rcv 192.168.13.130 0002 Q [0001 NOERROR] A (8)woshub(2)com(0)
+ * </pre>
+ */
+public class WindowsDnsLogParser implements LogFormatParser {
+
+    public static final String FORMAT_NAME = "windows-dns";
+
+    private static final int MAX_TOKENS = 32;
+
+    // Fewest tokens a line can have: date, time, 7 packet fields, opcode, "[flags", "rcode]", type and name
+    private static final int MIN_TOKENS = 14;
+
+    private static final int DICTIONARY_CAPACITY = 64;
+
+    private final LineTokenizer tokenizer;
+    private final int[] tokenStarts;
+    private final int[] tokenEnds;
+    private final TimestampCache timestampCache;
+    private final StringDictionary contexts;
+    private final StringDictionary opcodes;
+    private final StringDictionary flags;
+
+    public WindowsDnsLogParser() {
+        this.tokenizer = new LineTokenizer(MAX_TOKENS);
+        this.tokenStarts = tokenizer.getStarts();
+        this.tokenEnds = tokenizer.getEnds();
+        this.timestampCache = new TimestampCache(WatcherConfigConstants.SOURCE_TIME_ZONE);
+        this.contexts = new StringDictionary(DICTIONARY_CAPACITY);
+        this.opcodes = new StringDictionary(DICTIONARY_CAPACITY);
+        this.flags = new StringDictionary(DICTIONARY_CAPACITY);
+    }
+
+    @Override
+    public String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+    /**
+     * Parses a log line into an entry.
+     *
+     * @param line   A buffer holding the raw UTF-8 bytes of the line.
+     * @param offset Index of the first byte of the line in the buffer.
+     * @param length Number of bytes in the line.
+     * @param entry  The entry to fill, its previous content is cleared.
+     * @return PARSED if the line has been parsed into the entry, otherwise the reason it has not been.
+     */
+    @Override
+    public ParseStatus parse(byte[] line, int offset, int length, LogEntry entry) {
+        int tokenCount = tokenizer.tokenize(line, offset, offset + length);
+
+        if (tokenCount == 0) {
+            return ParseStatus.BLANK;
+        }
+
+        // Packet lines start with a date, the header block the server writes when it opens a log file does not
+        if (!isDate(line, 0)) {
+            return ParseStatus.IGNORED;
+        }
+
+        if (tokenCount < MIN_TOKENS) {
+            return ParseStatus.TRUNCATED;
+        }
+
+        entry.reset(line);
+
+        int t = 0;
+        entry.setField(LogEntry.DATE, tokenStarts[t], tokenEnds[t]);
+        t++;
+
+        // 12-hour clock times are followed by AM or PM
+        boolean hasMeridiem = isMeridiem(line, t + 1);
+        int timeEnd = hasMeridiem ? tokenEnds[t + 1] : tokenEnds[t];
+
+        long timestamp = timestampCache.toEpochMillis(line, tokenStarts[0], tokenEnds[0], tokenStarts[t], timeEnd);
+        if (timestamp == TimestampCache.INVALID) {
+            return ParseStatus.MALFORMED;
+        }
+
+        entry.setField(LogEntry.TIME, tokenStarts[t], timeEnd);
+        entry.setTimestamp(timestamp);
+        t += hasMeridiem ? 2 : 1;
+
+        setToken(entry, LogEntry.THREAD_ID, t++);
+        setToken(entry, LogEntry.CONTEXT, t);
+        entry.setField(LogEntry.CONTEXT, contexts.lookup(line, tokenStarts[t], tokenEnds[t]));
+        t++;
+        setToken(entry, LogEntry.INTERNAL_PACKET_ID, t++);
+        setToken(entry, LogEntry.UDP_TCP_INDICATOR, t);
+        entry.setProtocol(Protocol.of(line, tokenStarts[t], tokenEnds[t]));
+        t++;
+        setToken(entry, LogEntry.SEND_RECEIVE_INDICATOR, t);
+        entry.setDirection(Direction.of(line, tokenStarts[t], tokenEnds[t]));
+        t++;
+        setToken(entry, LogEntry.REMOTE_IP, t++);
+        setToken(entry, LogEntry.XID_HEX, t++);
+
+        // Find the bracketed flags, the "R" of responses and the opcode come before them
+        int flagsStart = t;
+        while (flagsStart < tokenCount && line[tokenStarts[flagsStart]] != '[') {
+            flagsStart++;
+        }
+
+        int flagsEnd = flagsStart;
+        while (flagsEnd < tokenCount && line[tokenEnds[flagsEnd] - 1] != ']') {
+            flagsEnd++;
+        }
+
+        // The flags must be followed by the record type and the name
+        if (flagsStart == tokenCount || flagsEnd + 2 >= tokenCount) {
+            return ParseStatus.TRUNCATED;
+        }
+
+        if (flagsStart == t || flagsEnd == flagsStart) {
+            return ParseStatus.MALFORMED;
+        }
+
+        setToken(entry, LogEntry.QUERY_RESPONSE, t);
+        entry.setMessageKind(MessageKind.of(line, tokenStarts[t], tokenEnds[t]));
+
+        entry.setField(LogEntry.OPCODE, tokenStarts[flagsStart] + 1, tokenEnds[flagsStart]);
+        entry.setField(LogEntry.OPCODE, opcodes.lookup(line, tokenStarts[flagsStart] + 1, tokenEnds[flagsStart]));
+
+        if (flagsEnd - flagsStart == 2) {
+            setToken(entry, LogEntry.FLAGS_HEX, flagsStart + 1);
+            entry.setField(LogEntry.FLAGS_HEX, flags.lookup(line, tokenStarts[flagsStart + 1], tokenEnds[flagsStart + 1]));
+        }
+
+        entry.setField(LogEntry.FLAGS_CHAR, tokenStarts[flagsEnd], tokenEnds[flagsEnd] - 1);
+        entry.setRcode(ResponseCode.of(line, tokenStarts[flagsEnd], tokenEnds[flagsEnd] - 1));
+
+        setToken(entry, LogEntry.RESPONSE_CODE, flagsEnd + 1);
+        entry.setRecordType(RecordType.of(line, tokenStarts[flagsEnd + 1], tokenEnds[flagsEnd + 1]));
+
+        setToken(entry, LogEntry.QUESTION_TYPE, flagsEnd + 2);
+
+        return ParseStatus.PARSED;
+    }
+
+    private boolean isDate(byte[] line, int token) {
+        int start = tokenStarts[token];
+
+        if (line[start] < '0' || line[start] > '9') {
+            return false;
+        }
+
+        for (int i = start + 1; i < tokenEnds[token]; i++) {
+            if (line[i] == '/') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isMeridiem(byte[] line, int token) {
+        int start = tokenStarts[token];
+
+        return tokenEnds[token] - start == 2
+                && (line[start] == 'A' || line[start] == 'P')
+                && line[start + 1] == 'M';
+    }
+
+    private void setToken(LogEntry entry, int field, int token) {
+        entry.setField(field, tokenStarts[token], tokenEnds[token]);
+    }
+}
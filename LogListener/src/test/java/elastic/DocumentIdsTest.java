@@ -0,0 +1,48 @@
+package elastic;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentIdsTest {
+
+    @Test
+    void matchesMurmurHash3() {
+        // Reference values of MurmurHash3_x64_128 with seed 0, covering every length of the tail
+        assertEquals("y8NXzLdj3yhS_ujE_H1V8g", id("", 0));
+        assertEquals("FssmyefgLlctopwNmqdrHA", id("host:(dev=1,ino=2)", 66));
+        assertEquals("EgkBBnGef2H19UJVVX12NA", id("0123456789abcdef", 5_000_000_000L));
+        assertEquals("_LGdBLfJKOjxBWVvLO2O9w", id("/var/log/dnsmasq.log", -1));
+        assertEquals("BX0_fmyr8xW-rbg17KJuWQ", id("0123456789abcdef0123456789abcde", 123_456_789L));
+    }
+
+    @Test
+    void readsTheSourceFromTheMiddleOfABuffer() {
+        byte[] buffer = "xxhost:(dev=1,ino=2)yy".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(id("host:(dev=1,ino=2)", 66), DocumentIds.of(buffer, 2, buffer.length - 4, 66));
+    }
+
+    @Test
+    void givesEveryLineItsOwnId() {
+        Set<String> ids = new HashSet<>();
+
+        for (String source : new String[]{"a:(dev=1,ino=2)", "a:(dev=1,ino=3)", "b:(dev=1,ino=2)"}) {
+            for (long offset = 0; offset < 10_000; offset++) {
+                String id = id(source, offset);
+
+                assertEquals(22, id.length());
+                assertTrue(ids.add(id), id);
+            }
+        }
+    }
+
+    private static String id(String source, long offset) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        return DocumentIds.of(bytes, 0, bytes.length, offset);
+    }
+}
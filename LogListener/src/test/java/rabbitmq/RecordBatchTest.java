@@ -0,0 +1,222 @@
+package rabbitmq;
+
+import org.junit.jupiter.api.Test;
+import watcher.DnsmasqLogParser;
+import watcher.LogEntry;
+import watcher.LogFormatParser;
+import watcher.LogFormats;
+import watcher.ParseStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordBatchTest {
+
+    private static final List<Function<LogEntry, String>> TEXT_FIELDS = List.of(
+            LogEntry::getDate,
+            LogEntry::getTime,
+            LogEntry::getThreadId,
+            LogEntry::getContext,
+            LogEntry::getInternalPacketId,
+            LogEntry::getUdpTcpIndicator,
+            LogEntry::getSendReceiveIndicator,
+            LogEntry::getRemoteIp,
+            LogEntry::getXidHex,
+            LogEntry::getQueryResponse,
+            LogEntry::getOpcode,
+            LogEntry::getFlagsHex,
+            LogEntry::getFlagsChar,
+            LogEntry::getResponseCode,
+            LogEntry::getQuestionType);
+
+    @Test
+    void roundTripsWindowsDnsEntries() {
+        List<byte[]> lines = lines(
+                "11/17/2021 6:00:00 AM 0D0C PACKET  00000272D98DD0B0 UDP Rcv 192.168.13.130  0002   Q [0001   D   NOERROR] A      (8)woshub(2)com(0)",
+                "08/24/2023 03:38:12 PM 000C21F0 PACKET  192.168.87.125 UDP Snd 192.168.87.125  0002 R Q [8081   DR  NOERROR] CNAME  (15)ixutlvqgwnhzarq(0)",
+                "11/17/2021 6:00:01 AM 0D0C PACKET  00000272D98DD0B0 TCP Rcv 10.0.0.1        0003   Q [0001   D   NXDOMAIN] AAAA   (8)woshub(2)com(0)");
+
+        assertRoundTrip(lines, null, null, null);
+    }
+
+    @Test
+    void keepsNullFields() {
+        List<byte[]> lines = lines("Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from 192.168.1.10");
+
+        List<LogEntry> entries = decode(new RecordBatchEncoder().encode(lines, DnsmasqLogParser.FORMAT_NAME, null, null));
+
+        assertEquals(1, entries.size());
+        LogEntry entry = entries.get(0);
+        assertEquals("1234", entry.getThreadId());
+        assertEquals("192.168.1.10", entry.getRemoteIp());
+        assertEquals("www.google.com", entry.getQuestionName());
+        assertNull(entry.getContext());
+        assertNull(entry.getXidHex());
+        assertNull(entry.getOpcode());
+        assertNull(entry.getFlagsHex());
+        assertNull(entry.getProtocol());
+        assertNull(entry.getRcode());
+
+        assertRoundTrip(lines, DnsmasqLogParser.FORMAT_NAME, null, null);
+    }
+
+    @Test
+    void keepsAddressesThatAreNotDottedQuadsAsText() {
+        List<byte[]> lines = lines(
+                "Sep 20 14:25:53 dnsmasq[1]: query[AAAA] a.example from 2001:db8::1",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] b.example from ::1",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] c.example from 010.1.2.3",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] d.example from 256.1.2.3",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] e.example from 1.2.3",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] f.example from 0.0.0.0",
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] g.example from 255.255.255.255");
+
+        assertRoundTrip(lines, DnsmasqLogParser.FORMAT_NAME, null, null);
+    }
+
+    @Test
+    void carriesTheSourceAndLinePositions() {
+        List<byte[]> lines = lines(
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] a.example from 192.168.1.10",
+                "Sep 20 14:25:54 dnsmasq[1]: query[A] b.example from 192.168.1.10",
+                "Sep 20 14:25:52 dnsmasq[1]: query[A] c.example from 192.168.1.11");
+        long[] positions = {0, 66, 5_000_000_000L};
+
+        assertRoundTrip(lines, DnsmasqLogParser.FORMAT_NAME, "host:(dev=1,ino=2)", positions);
+
+        for (byte[] batch : new RecordBatchEncoder().encode(lines, DnsmasqLogParser.FORMAT_NAME, "host:(dev=1,ino=2)", positions)) {
+            if (batch != null) {
+                RecordBatchDecoder decoder = new RecordBatchDecoder();
+                decoder.reset(batch);
+
+                assertTrue(decoder.hasSource());
+                assertEquals("host:(dev=1,ino=2)", new String(decoder.getSource(), decoder.getSourceStart(), decoder.getSourceLength(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void referencesLiteralsPastTheDictionaryCapacity() {
+        List<String> texts = new ArrayList<>();
+
+        // Every line adds its name as a new literal, so the dictionary fills up half way through
+        for (int i = 0; i < RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY + 500; i++) {
+            texts.add("Sep 20 14:25:53 dnsmasq[1]: query[A] host" + i + ".example from 192.168.1.10");
+        }
+
+        // A name that is in the dictionary and one that came after it was full
+        texts.add("Sep 20 14:25:53 dnsmasq[1]: query[A] host0.example from 192.168.1.10");
+        texts.add("Sep 20 14:25:53 dnsmasq[1]: query[A] host" + (RabbitMQConfigConstants.RECORD_DICTIONARY_CAPACITY + 100) + ".example from 192.168.1.10");
+
+        assertRoundTrip(lines(texts.toArray(new String[0])), DnsmasqLogParser.FORMAT_NAME, null, null);
+    }
+
+    @Test
+    void reportsATruncatedBatchAsCorrupt() {
+        List<byte[]> lines = lines(
+                "Sep 20 14:25:53 dnsmasq[1]: query[A] a.example from 192.168.1.10",
+                "Sep 20 14:25:54 dnsmasq[1]: query[A] b.example from 192.168.1.10");
+        byte[] batch = Arrays.stream(new RecordBatchEncoder().encode(lines, DnsmasqLogParser.FORMAT_NAME, null, null))
+                .filter(b -> b != null)
+                .findFirst()
+                .orElseThrow();
+
+        RecordBatchDecoder decoder = new RecordBatchDecoder();
+        decoder.reset(Arrays.copyOf(batch, batch.length - 1));
+        LogEntry entry = new LogEntry();
+
+        while (decoder.next(entry)) {
+            // Entries before the cut may be read
+        }
+
+        assertTrue(decoder.isCorrupt());
+    }
+
+    /**
+     * Encodes the lines, decodes the batches and checks that every entry reads the same as the parsed line.
+     */
+    private static void assertRoundTrip(List<byte[]> lines, String format, String source, long[] positions) {
+        LogFormatParser parser = LogFormats.LOG_FORMATS.newParser(format);
+        List<String> expected = new ArrayList<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            LogEntry entry = new LogEntry();
+            byte[] line = lines.get(i);
+
+            assertEquals(ParseStatus.PARSED, parser.parse(line, 0, line.length, entry), new String(line, StandardCharsets.UTF_8));
+            expected.add(describe(entry) + (source != null ? " @" + positions[i] : ""));
+        }
+
+        List<String> actual = new ArrayList<>();
+        RecordBatchDecoder decoder = new RecordBatchDecoder();
+
+        for (byte[] batch : new RecordBatchEncoder().encode(lines, format, source, positions)) {
+            if (batch == null) {
+                continue;
+            }
+
+            decoder.reset(batch);
+            LogEntry entry = new LogEntry();
+
+            while (decoder.next(entry)) {
+                actual.add(describe(entry) + (source != null ? " @" + decoder.getLinePosition() : ""));
+            }
+
+            assertFalse(decoder.isCorrupt());
+        }
+
+        // Entries keep their order within a partition, but not across partitions
+        expected.sort(null);
+        actual.sort(null);
+        assertEquals(expected, actual);
+    }
+
+    private static List<LogEntry> decode(byte[][] batches) {
+        List<LogEntry> entries = new ArrayList<>();
+
+        for (byte[] batch : batches) {
+            if (batch == null) {
+                continue;
+            }
+
+            RecordBatchDecoder decoder = new RecordBatchDecoder();
+            decoder.reset(batch);
+            LogEntry entry = new LogEntry();
+
+            while (decoder.next(entry)) {
+                entries.add(entry);
+                entry = new LogEntry();
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return Everything the batch carries of an entry. Text fields an enum holds are not written into the batch.
+     */
+    private static String describe(LogEntry entry) {
+        StringBuilder description = new StringBuilder()
+                .append(entry.getTimestamp()).append('|')
+                .append(entry.getProtocol()).append('|')
+                .append(entry.getDirection()).append('|')
+                .append(entry.getMessageKind()).append('|')
+                .append(entry.getRcode()).append('|')
+                .append(entry.getRecordType());
+
+        for (int field = 0; field < LogEntry.FIELD_COUNT; field++) {
+            description.append('|').append(RecordBatch.isHeldByEnum(entry, field) ? "enum" : TEXT_FIELDS.get(field).apply(entry));
+        }
+
+        return description.toString();
+    }
+
+    private static List<byte[]> lines(String... lines) {
+        return Arrays.stream(lines).map(line -> line.getBytes(StandardCharsets.UTF_8)).toList();
+    }
+}
@@ -0,0 +1,131 @@
+package rabbitmq;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    @Test
+    void roundsTheCapacityUpToAPowerOfTwo() {
+        RingBuffer<Integer> ring = new RingBuffer<>(5, MAX_PARK_NANOS);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(i));
+        }
+
+        assertFalse(ring.offer(8));
+        assertEquals(8, ring.size());
+    }
+
+    @Test
+    void keepsTheOrderAcrossLaps() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4, MAX_PARK_NANOS);
+
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(lap * 3 + i));
+            }
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(lap * 3 + i, ring.poll());
+            }
+        }
+
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void drainsUpToTheBatchSize() {
+        RingBuffer<Integer> ring = new RingBuffer<>(8, MAX_PARK_NANOS);
+        Object[] batch = new Object[4];
+
+        for (int i = 0; i < 6; i++) {
+            ring.offer(i);
+        }
+
+        assertEquals(4, ring.drainTo(batch, batch.length));
+        assertArrayEquals(new Object[]{0, 1, 2, 3}, batch);
+        assertEquals(2, ring.drainTo(batch, batch.length));
+        assertEquals(0, ring.drainTo(batch, batch.length));
+    }
+
+    @Test
+    void handsEveryElementToExactlyOneConsumer() throws InterruptedException {
+        int producerCount = 4;
+        int consumerCount = 4;
+        int perProducer = 50_000;
+        int total = producerCount * perProducer;
+
+        RingBuffer<Integer> ring = new RingBuffer<>(64, MAX_PARK_NANOS);
+        BitSet seen = new BitSet(total);
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producerCount; p++) {
+            int first = p * perProducer;
+
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = first; i < first + perProducer; i++) {
+                        ring.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        for (int c = 0; c < consumerCount; c++) {
+            threads.add(new Thread(() -> {
+                int attempt = 0;
+
+                try {
+                    while (consumed.get() < total) {
+                        Integer element = ring.poll();
+
+                        if (element == null) {
+                            ring.idle(attempt++);
+                            continue;
+                        }
+
+                        attempt = 0;
+
+                        synchronized (seen) {
+                            if (seen.get(element)) {
+                                duplicates.incrementAndGet();
+                            }
+
+                            seen.set(element);
+                        }
+
+                        consumed.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertFalse(thread.isAlive());
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(total, seen.cardinality());
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+package rabbitmq;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpoolTest {
+
+    private static final String CONTENT_TYPE = "text/plain";
+    private static final String FORMAT = "dnsmasq";
+
+    // Confirmed position at the start of a segment, then the length and the CRC of each record
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopensUpToATruncatedRecord() throws IOException {
+        Spool spool = new Spool(directory);
+        spool.open();
+
+        assertTrue(spool.append(message(1, "first"), null));
+        assertTrue(spool.append(message(2, "second"), null));
+        assertTrue(spool.append(message(3, "third"), null));
+
+        // The last record was being written when the process stopped, its last bytes never reached the file
+        long thirdEnd = HEADER_SIZE + recordSize("first") + recordSize("second") + recordSize("third");
+        try (FileChannel channel = FileChannel.open(onlySegment(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(3), thirdEnd - 3);
+        }
+
+        Spool reopened = new Spool(directory);
+        reopened.open();
+
+        Spool.Segment segment = reopened.nextToReplay();
+        assertNotNull(segment);
+        assertMessage(1, "first", reopened.readRecord(segment));
+        assertMessage(2, "second", reopened.readRecord(segment));
+        assertNull(reopened.nextToReplay());
+
+        // New messages go to a new segment after the ones left by the previous run
+        assertTrue(reopened.append(message(4, "fourth"), null));
+        assertMessage(4, "fourth", reopened.readRecord(reopened.nextToReplay()));
+        assertNull(reopened.nextToReplay());
+    }
+
+    @Test
+    void reopensAfterACutOffLength() throws IOException {
+        Spool spool = new Spool(directory);
+        spool.open();
+
+        assertTrue(spool.append(message(1, "first"), null));
+        assertTrue(spool.append(message(2, "second"), null));
+
+        // A length that runs past the end of the segment
+        try (FileChannel channel = FileChannel.open(onlySegment(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, Integer.MAX_VALUE), HEADER_SIZE + recordSize("first"));
+        }
+
+        Spool reopened = new Spool(directory);
+        reopened.open();
+
+        assertMessage(1, "first", reopened.readRecord(reopened.nextToReplay()));
+        assertNull(reopened.nextToReplay());
+    }
+
+    @Test
+    void deletesConfirmedSegmentsWhenReopened() throws IOException {
+        Spool spool = new Spool(directory);
+        spool.open();
+
+        assertTrue(spool.append(message(1, "first"), null));
+
+        // Every message of the segment was confirmed before the process stopped
+        Path segment = onlySegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, HEADER_SIZE + recordSize("first")), 0);
+        }
+
+        Spool reopened = new Spool(directory);
+        reopened.open();
+
+        assertNull(reopened.nextToReplay());
+        assertFalse(Files.exists(segment));
+    }
+
+    @Test
+    void deletesAConfirmedSegmentWhenItIsSealed() throws IOException {
+        // Room for a single record before the 0 that ends the segment
+        Spool spool = new Spool(directory, HEADER_SIZE + recordSize("body") + Integer.BYTES);
+        spool.open();
+
+        // Every message fills a segment and is confirmed before the next message seals the segment
+        for (int i = 0; i <= RabbitMQConfigConstants.SPOOL_MAX_SEGMENTS; i++) {
+            assertTrue(spool.append(message(i % RabbitMQConfigConstants.PARTITION_COUNT, "body"), null));
+
+            Spool.Segment segment = spool.nextToReplay();
+            assertMessage(i % RabbitMQConfigConstants.PARTITION_COUNT, "body", spool.readRecord(segment));
+            spool.confirm(segment, HEADER_SIZE + recordSize("body"));
+        }
+
+        onlySegment();
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.toList();
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private static TransportMessage message(int partition, String body) {
+        return new TransportMessage(partition, CONTENT_TYPE, FORMAT, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int recordSize(String body) {
+        return RECORD_HEADER_SIZE + 3 * Short.BYTES + CONTENT_TYPE.length() + FORMAT.length() + body.length();
+    }
+
+    private static void assertMessage(int partition, String body, TransportMessage message) {
+        assertEquals(partition, message.getPartition());
+        assertEquals(CONTENT_TYPE, message.getContentType());
+        assertEquals(FORMAT, message.getFormat());
+        assertEquals(body, new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+}
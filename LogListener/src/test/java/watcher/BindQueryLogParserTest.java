@@ -0,0 +1,71 @@
+package watcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BindQueryLogParserTest {
+
+    private final BindQueryLogParser parser = new BindQueryLogParser();
+    private final LogEntry entry = new LogEntry();
+
+    @Test
+    void parsesAQueryWithCategoryAndClientObject() {
+        assertEquals(ParseStatus.PARSED, parse("20-Sep-2023 14:25:53.123 queries: info: client @0x7f8b2c0 192.168.1.10#53421 (www.google.com): query: www.google.com IN A +E(0)K (192.168.1.1)"));
+
+        assertEquals("20-Sep-2023", entry.getDate());
+        assertEquals("14:25:53.123", entry.getTime());
+        assertEquals(epochMillis(LocalDateTime.of(2023, 9, 20, 14, 25, 53)) + 123, entry.getTimestamp());
+        assertEquals(Protocol.UDP, entry.getProtocol());
+        assertEquals(Direction.RECEIVE, entry.getDirection());
+        assertEquals(MessageKind.QUERY, entry.getMessageKind());
+        assertEquals("192.168.1.10", entry.getRemoteIp());
+        assertEquals("+E(0)K", entry.getFlagsHex());
+        assertEquals(RecordType.A, entry.getRecordType());
+        assertEquals("www.google.com", entry.getQuestionName());
+    }
+
+    @Test
+    void parsesATcpQueryOfAnOlderVersion() {
+        assertEquals(ParseStatus.PARSED, parse("20-Sep-2023 14:25:53.5 client 2001:db8::1#53421 (example.org): query: example.org IN AAAA +T (192.168.1.1)"));
+
+        assertEquals(epochMillis(LocalDateTime.of(2023, 9, 20, 14, 25, 53)) + 500, entry.getTimestamp());
+        assertEquals(Protocol.TCP, entry.getProtocol());
+        assertEquals("2001:db8::1", entry.getRemoteIp());
+        assertEquals(RecordType.AAAA, entry.getRecordType());
+        assertEquals("example.org", entry.getQuestionName());
+    }
+
+    @Test
+    void reportsWhyALineIsNotParsed() {
+        assertEquals(ParseStatus.BLANK, parse(" "));
+        assertEquals(ParseStatus.IGNORED, parse("20-Sep-2023 14:25:53.123 lame-servers: info: connection refused resolving 'example.org/A/IN'"));
+        assertEquals(ParseStatus.TRUNCATED, parse("20-Sep-2023 14:25:53.123 client 192.168.1.10#53421 (www.google.com): query: www.google.com IN"));
+        assertEquals(ParseStatus.MALFORMED, parse("20-Sep-2023 14:25:53.123 client 192.168.1.10 (www.google.com): query: www.google.com IN A + (192.168.1.1)"));
+        assertEquals(ParseStatus.MALFORMED, parse("20-Foo-2023 14:25:53.123 client 192.168.1.10#53421 (www.google.com): query: www.google.com IN A + (192.168.1.1)"));
+    }
+
+    @Test
+    void isDetectedFromASample() {
+        assertEquals(BindQueryLogParser.FORMAT_NAME, LogFormats.LOG_FORMATS.detect(List.of(
+                bytes("20-Sep-2023 14:25:53.123 client 192.168.1.10#53421 (www.google.com): query: www.google.com IN A + (192.168.1.1)"),
+                bytes("20-Sep-2023 14:25:54.001 client 192.168.1.11#53422 (example.org): query: example.org IN MX + (192.168.1.1)"))));
+    }
+
+    private ParseStatus parse(String line) {
+        byte[] bytes = bytes(line);
+        return parser.parse(bytes, 0, bytes.length, entry);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long epochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(WatcherConfigConstants.SOURCE_TIME_ZONE).toInstant().toEpochMilli();
+    }
+}
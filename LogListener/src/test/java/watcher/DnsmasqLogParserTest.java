@@ -0,0 +1,94 @@
+package watcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.TextStyle;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DnsmasqLogParserTest {
+
+    private final DnsmasqLogParser parser = new DnsmasqLogParser();
+    private final LogEntry entry = new LogEntry();
+
+    @Test
+    void parsesAQuery() {
+        assertEquals(ParseStatus.PARSED, parse("Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from 192.168.1.10"));
+
+        assertEquals("Sep 20", entry.getDate());
+        assertEquals("14:25:53", entry.getTime());
+        assertEquals("1234", entry.getThreadId());
+        assertEquals(Direction.RECEIVE, entry.getDirection());
+        assertEquals(MessageKind.QUERY, entry.getMessageKind());
+        assertEquals("192.168.1.10", entry.getRemoteIp());
+        assertEquals(RecordType.A, entry.getRecordType());
+        assertEquals("www.google.com", entry.getQuestionName());
+        assertNull(entry.getProtocol());
+    }
+
+    @Test
+    void parsesAQueryOfLogQueriesExtra() {
+        assertEquals(ParseStatus.PARSED, parse("Sep  2 14:25:53 dnsmasq[1234]: 27 192.168.1.10/53421 query[AAAA] www.google.com from 192.168.1.10"));
+
+        assertEquals("Sep  2", entry.getDate());
+        assertEquals(RecordType.AAAA, entry.getRecordType());
+        assertEquals("192.168.1.10", entry.getRemoteIp());
+        assertEquals("www.google.com", entry.getQuestionName());
+    }
+
+    @Test
+    void datesLinesOfLaterMonthsInThePreviousYear() {
+        LocalDate today = LocalDate.now(WatcherConfigConstants.SOURCE_TIME_ZONE);
+
+        assertEquals(ParseStatus.PARSED, parse(lineOf(today)));
+        assertEquals(epochMillis(today.atTime(14, 25, 53)), entry.getTimestamp());
+
+        // December lines read in January were written the year before
+        if (today.getMonthValue() < 12) {
+            LocalDate nextMonth = today.withDayOfMonth(1).plusMonths(1);
+
+            assertEquals(ParseStatus.PARSED, parse(lineOf(nextMonth)));
+            assertEquals(epochMillis(nextMonth.minusYears(1).atTime(14, 25, 53)), entry.getTimestamp());
+        }
+    }
+
+    @Test
+    void reportsWhyALineIsNotParsed() {
+        assertEquals(ParseStatus.BLANK, parse(""));
+        assertEquals(ParseStatus.IGNORED, parse("Sep 20 14:25:53 dnsmasq[1234]: forwarded www.google.com to 8.8.8.8"));
+        assertEquals(ParseStatus.IGNORED, parse("Sep 20 14:25:53 dnsmasq[1234]: reply www.google.com is 142.250.74.36"));
+        assertEquals(ParseStatus.TRUNCATED, parse("Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from"));
+        assertEquals(ParseStatus.MALFORMED, parse("Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com to 192.168.1.10"));
+        assertEquals(ParseStatus.MALFORMED, parse("Foo 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from 192.168.1.10"));
+    }
+
+    @Test
+    void isDetectedFromASample() {
+        assertEquals(DnsmasqLogParser.FORMAT_NAME, LogFormats.LOG_FORMATS.detect(List.of(
+                bytes("Sep 20 14:25:53 dnsmasq[1234]: query[A] www.google.com from 192.168.1.10"),
+                bytes("Sep 20 14:25:53 dnsmasq[1234]: forwarded www.google.com to 8.8.8.8"))));
+    }
+
+    private ParseStatus parse(String line) {
+        byte[] bytes = bytes(line);
+        return parser.parse(bytes, 0, bytes.length, entry);
+    }
+
+    private static String lineOf(LocalDate date) {
+        return String.format("%s %2d 14:25:53 dnsmasq[1]: query[A] a.example from 192.168.1.10",
+                date.getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH), date.getDayOfMonth());
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long epochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(WatcherConfigConstants.SOURCE_TIME_ZONE).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,82 @@
+package watcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WindowsDnsLogParserTest {
+
+    private final WindowsDnsLogParser parser = new WindowsDnsLogParser();
+    private final LogEntry entry = new LogEntry();
+
+    @Test
+    void parsesAReceivedQuery() {
+        assertEquals(ParseStatus.PARSED, parse("11/17/2021 6:00:00 AM 0D0C PACKET  00000272D98DD0B0 UDP Rcv 192.168.13.130  0002   Q [0001   D   NOERROR] A      (8)woshub(2)com(0)"));
+
+        assertEquals("11/17/2021", entry.getDate());
+        assertEquals("6:00:00 AM", entry.getTime());
+        assertEquals(epochMillis(LocalDateTime.of(2021, 11, 17, 6, 0, 0)), entry.getTimestamp());
+        assertEquals("0D0C", entry.getThreadId());
+        assertEquals("PACKET", entry.getContext());
+        assertEquals("00000272D98DD0B0", entry.getInternalPacketId());
+        assertEquals(Protocol.UDP, entry.getProtocol());
+        assertEquals(Direction.RECEIVE, entry.getDirection());
+        assertEquals("192.168.13.130", entry.getRemoteIp());
+        assertEquals("0002", entry.getXidHex());
+        assertEquals(MessageKind.QUERY, entry.getMessageKind());
+        assertEquals("0001", entry.getOpcode());
+        assertEquals("D", entry.getFlagsHex());
+        assertEquals(ResponseCode.NOERROR, entry.getRcode());
+        assertEquals(RecordType.A, entry.getRecordType());
+        assertEquals("(8)woshub(2)com(0)", entry.getQuestionType());
+        assertEquals("woshub.com", entry.getQuestionName());
+    }
+
+    @Test
+    void parsesASentResponseWithA24HourTime() {
+        assertEquals(ParseStatus.PARSED, parse("11/17/2021 18:00:00 0D0C PACKET  00000272D98DD0B0 TCP Snd 10.0.0.1        0002 R Q [8081   DR  NXDOMAIN] CNAME  (15)ixutlvqgwnhzarq(0)"));
+
+        assertEquals("18:00:00", entry.getTime());
+        assertEquals(epochMillis(LocalDateTime.of(2021, 11, 17, 18, 0, 0)), entry.getTimestamp());
+        assertEquals(Protocol.TCP, entry.getProtocol());
+        assertEquals(Direction.SEND, entry.getDirection());
+        assertEquals(MessageKind.RESPONSE, entry.getMessageKind());
+        assertEquals("8081", entry.getOpcode());
+        assertEquals("DR", entry.getFlagsHex());
+        assertEquals(ResponseCode.NXDOMAIN, entry.getRcode());
+        assertEquals(RecordType.CNAME, entry.getRecordType());
+        assertEquals("ixutlvqgwnhzarq", entry.getQuestionName());
+    }
+
+    @Test
+    void parsesAPmTimeWithoutFlagCharacters() {
+        assertEquals(ParseStatus.PARSED, parse("08/24/2023 03:38:12 PM 000C21F0 PACKET  192.168.87.125 UDP Rcv 192.168.87.125  0002   Q [0001   NOERROR] AAAA   (3)www(6)google(3)com(0)"));
+
+        assertEquals(epochMillis(LocalDateTime.of(2023, 8, 24, 15, 38, 12)), entry.getTimestamp());
+        assertNull(entry.getFlagsHex());
+        assertEquals(ResponseCode.NOERROR, entry.getRcode());
+        assertEquals(RecordType.AAAA, entry.getRecordType());
+        assertEquals("www.google.com", entry.getQuestionName());
+    }
+
+    @Test
+    void reportsWhyALineIsNotParsed() {
+        assertEquals(ParseStatus.BLANK, parse("   "));
+        assertEquals(ParseStatus.IGNORED, parse("DNS Server log file creation at 11/17/2021 6:00:00 AM"));
+        assertEquals(ParseStatus.TRUNCATED, parse("11/17/2021 6:00:00 AM 0D0C PACKET  00000272D98DD0B0 UDP Rcv 192.168.13.130  0002   Q [0001"));
+        assertEquals(ParseStatus.MALFORMED, parse("13/45/2021 6:00:00 AM 0D0C PACKET  00000272D98DD0B0 UDP Rcv 192.168.13.130  0002   Q [0001   D   NOERROR] A      (8)woshub(2)com(0)"));
+    }
+
+    private ParseStatus parse(String line) {
+        // The line is put in the middle of a larger buffer, as the Watcher passes it
+        byte[] bytes = ("xx" + line + "yy").getBytes(StandardCharsets.UTF_8);
+        return parser.parse(bytes, 2, bytes.length - 4, entry);
+    }
+
+    private static long epochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(WatcherConfigConstants.SOURCE_TIME_ZONE).toInstant().toEpochMilli();
+    }
+}